@@ -0,0 +1,284 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the maintenance tasks of all websites (site map rebuilds, cleanup of
+ * old files) with a small, fixed number of threads shared by all websites.
+ *
+ * <p>Tasks are submitted with a key, usually the website. A key has at most
+ * one task waiting and one running: a task submitted while another one with
+ * the same key is waiting is discarded, and a task submitted while another
+ * one is running is run once after it (further submissions are coalesced).
+ * Tasks that are not urgent are delayed by a random time, so websites that
+ * become due at the same time are not rebuilt all together.</p>
+ */
+public final class BackgroundScheduler {
+  /**
+   * Number of threads that run the tasks.
+   */
+  public static final int WORKER_THREADS = 2;
+
+  /**
+   * Maximum delay of tasks submitted with jitter, in milliseconds.
+   */
+  public static final long MAX_JITTER = 30000L;
+
+  private static BackgroundScheduler instance;
+
+  private ScheduledThreadPoolExecutor timer;
+  private ThreadPoolExecutor workers;
+  private Map slots;
+  private Random random;
+
+  private BackgroundScheduler() {
+    timer = new ScheduledThreadPoolExecutor(1,
+        new NamedThreadFactory("Background task timer"));
+    workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue(),
+        new NamedThreadFactory("Background task"));
+    workers.allowCoreThreadTimeOut(true);
+    slots = new HashMap();
+    random = new Random();
+  }
+
+  /**
+   * Returns the scheduler shared by all websites.
+   */
+  public static synchronized BackgroundScheduler getInstance() {
+    if (instance == null) {
+      instance = new BackgroundScheduler();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Stops the scheduler, waiting a few seconds for the running tasks to
+   * finish. Waiting tasks are discarded. Called when the application is
+   * stopped.
+   */
+  public static void shutdown() {
+    BackgroundScheduler scheduler;
+
+    synchronized (BackgroundScheduler.class) {
+      scheduler = instance;
+      instance = null;
+    }
+
+    if (scheduler != null) {
+      scheduler.timer.shutdownNow();
+      scheduler.workers.shutdown();
+      scheduler.workers.getQueue().clear();
+
+      try {
+        if (!scheduler.workers.awaitTermination(10L, TimeUnit.SECONDS)) {
+          scheduler.workers.shutdownNow();
+        }
+      } catch (InterruptedException ex) {
+        scheduler.workers.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Submits a task.
+   *
+   * @param key the key used to avoid running similar tasks more than once
+   * @param task the task to be run
+   * @param jitter if true, the task is delayed by a random time up to
+   * {@link #MAX_JITTER}
+   *
+   * @return false if the task has been discarded since another one with the
+   * same key is already waiting
+   */
+  public boolean submit(Object key, Runnable task, boolean jitter) {
+    Slot slot;
+
+    synchronized (slots) {
+      slot = (Slot) slots.get(key);
+
+      if (slot == null) {
+        slot = new Slot(key);
+        slots.put(key, slot);
+      }
+
+      if (slot.waiting) {
+        return false;
+      }
+
+      if (slot.running) {
+        slot.followUp = task;
+        return true;
+      }
+
+      slot.waiting = true;
+      slot.task = task;
+    }
+
+    try {
+      if (jitter) {
+        timer.schedule(new Dispatcher(slot), (long) (random.nextDouble() *
+            MAX_JITTER), TimeUnit.MILLISECONDS);
+      } else {
+        workers.execute(slot);
+      }
+    } catch (RejectedExecutionException ex) {
+      // shutting down
+      release(slot);
+    }
+
+    return true;
+  }
+
+  /**
+   * Submits a task at regular intervals, without jitter. Each run is
+   * submitted like a single task, so runs never overlap.
+   *
+   * @param key the key used to avoid running similar tasks more than once
+   * @param task the task to be run
+   * @param period the time between two submissions, in milliseconds
+   *
+   * @return the future used to cancel the submissions, or null if the
+   * scheduler is being stopped
+   */
+  public ScheduledFuture schedule(final Object key, final Runnable task,
+      long period) {
+    try {
+      return timer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          submit(key, task, false);
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      // shutting down
+      return null;
+    }
+  }
+
+  /**
+   * Returns true if a task with the given key is waiting or running.
+   */
+  public boolean isPending(Object key) {
+    synchronized (slots) {
+      return slots.containsKey(key);
+    }
+  }
+
+  private void release(Slot slot) {
+    synchronized (slots) {
+      slots.remove(slot.key);
+    }
+  }
+
+  private class Slot implements Runnable {
+    private Object key;
+    private Runnable task;
+    private Runnable followUp;
+    private boolean waiting;
+    private boolean running;
+
+    private Slot(Object key) {
+      this.key = key;
+    }
+
+    public void run() {
+      Runnable r;
+
+      synchronized (slots) {
+        waiting = false;
+        running = true;
+        r = task;
+      }
+
+      try {
+        r.run();
+      } catch (RuntimeException ex) {
+        ex.printStackTrace();
+      } finally {
+        boolean again;
+
+        synchronized (slots) {
+          running = false;
+          task = followUp;
+          followUp = null;
+          again = task != null;
+          waiting = again;
+
+          if (!again) {
+            slots.remove(key);
+          }
+        }
+
+        if (again) {
+          try {
+            workers.execute(this);
+          } catch (RejectedExecutionException ex) {
+            release(this);
+          }
+        }
+      }
+    }
+  }
+
+  private class Dispatcher implements Runnable {
+    private Slot slot;
+
+    private Dispatcher(Slot slot) {
+      this.slot = slot;
+    }
+
+    public void run() {
+      try {
+        workers.execute(slot);
+      } catch (RejectedExecutionException ex) {
+        release(slot);
+      }
+    }
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private String name;
+    private int count;
+
+    private NamedThreadFactory(String name) {
+      this.name = name;
+    }
+
+    public synchronized Thread newThread(Runnable r) {
+      Thread t = new Thread(r, name + " " + (++count));
+      t.setDaemon(true);
+      t.setPriority(Thread.NORM_PRIORITY - 1);
+      return t;
+    }
+  }
+}
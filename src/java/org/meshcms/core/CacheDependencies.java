@@ -0,0 +1,134 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Records what a page depends on while it is being rendered: the files that
+ * have been read (the page itself, the theme, modules and their contents) and
+ * whether the page shows the structure of the site (e.g. menus) or the
+ * contents of other pages (e.g. lists of latest changes). A cached page
+ * remains valid until one of its dependencies changes.
+ *
+ * @see WebUtils#addCacheDependency
+ */
+public class CacheDependencies {
+  /**
+   * The page does not depend on the site map.
+   */
+  public static final int NO_SITE_MAP = 0;
+
+  /**
+   * The page depends on the paths, titles and order of the pages.
+   */
+  public static final int SITE_STRUCTURE = 1;
+
+  /**
+   * The page depends on the contents of other pages too.
+   */
+  public static final int SITE_CONTENTS = 2;
+
+  /**
+   * The page depends on the hit counts of other pages too (e.g. lists of the
+   * most visited pages). Hit counts change at every request, so these pages
+   * are rendered again after each full rebuild of the site map.
+   */
+  public static final int SITE_HITS = 3;
+
+  private Map files;
+  private int siteMapDependency;
+
+  public CacheDependencies() {
+    files = new HashMap();
+  }
+
+  /**
+   * Adds a file, recording its current modification time.
+   */
+  public synchronized void addFile(File file) {
+    if (!files.containsKey(file)) {
+      files.put(file, new Long(file.lastModified()));
+    }
+  }
+
+  /**
+   * Sets the dependency on the site map. The strongest dependency is kept.
+   *
+   * @param level one of {@link #SITE_STRUCTURE}, {@link #SITE_CONTENTS} and
+   * {@link #SITE_HITS}
+   */
+  public synchronized void setSiteMapDependency(int level) {
+    siteMapDependency = Math.max(siteMapDependency, level);
+  }
+
+  public synchronized int getSiteMapDependency() {
+    return siteMapDependency;
+  }
+
+  /**
+   * Returns the number of files the page depends on.
+   */
+  public synchronized int getFileCount() {
+    return files.size();
+  }
+
+  /**
+   * Checks that no file has been modified since it has been added.
+   */
+  public synchronized boolean isUpToDate() {
+    Iterator iter = files.entrySet().iterator();
+
+    while (iter.hasNext()) {
+      Map.Entry entry = (Map.Entry) iter.next();
+
+      if (((File) entry.getKey()).lastModified() !=
+          ((Long) entry.getValue()).longValue()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Checks if a page with these dependencies is still valid after the site
+   * map has been rebuilt.
+   *
+   * @param structureChanged true if the structure of the site has changed
+   * @param contentsChanged true if the contents of any page have changed
+   * @param rescanned true if the whole site has been parsed again
+   */
+  public boolean isValid(boolean structureChanged, boolean contentsChanged,
+      boolean rescanned) {
+    int level = getSiteMapDependency();
+
+    if ((level >= SITE_STRUCTURE && structureChanged) ||
+        (level >= SITE_CONTENTS && contentsChanged) ||
+        (level >= SITE_HITS && rescanned)) {
+      return false;
+    }
+
+    return isUpToDate();
+  }
+}
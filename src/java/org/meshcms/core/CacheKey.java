@@ -0,0 +1,106 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import org.meshcms.util.Path;
+
+/**
+ * Identifies a cached page: the path of the page and a variant that contains
+ * the significant request parameters and, if required, the language of the
+ * visitor. The variant is empty for the page requested without parameters.
+ *
+ * @see CacheKeyBuilder
+ */
+public final class CacheKey {
+  private Path path;
+  private String variant;
+
+  /**
+   * Creates the key of a page requested without parameters.
+   */
+  public CacheKey(Path path) {
+    this(path, "");
+  }
+
+  public CacheKey(Path path, String variant) {
+    this.path = path;
+    this.variant = (variant == null) ? "" : variant;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Returns the variant in canonical form (e.g.
+   * <code>firstentry=10&amp;lang=en</code>).
+   */
+  public String getVariant() {
+    return variant;
+  }
+
+  /**
+   * Returns true if this key identifies the page requested without
+   * parameters.
+   */
+  public boolean isDefault() {
+    return variant.length() == 0;
+  }
+
+  /**
+   * Returns a short string that identifies the variant in file names, or an
+   * empty string for the default variant.
+   */
+  public String getVariantId() {
+    if (isDefault()) {
+      return "";
+    }
+
+    try {
+      return CachedPage.computeETag(variant.getBytes("UTF-8")).substring(0, 16);
+    } catch (java.io.UnsupportedEncodingException ex) {
+      return Integer.toHexString(variant.hashCode()); // UTF-8 is always available
+    }
+  }
+
+  /**
+   * Returns a key for the same variant of another path.
+   */
+  public CacheKey withPath(Path path) {
+    return new CacheKey(path, variant);
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof CacheKey)) {
+      return false;
+    }
+
+    CacheKey key = (CacheKey) o;
+    return path.equals(key.path) && variant.equals(key.variant);
+  }
+
+  public int hashCode() {
+    return path.hashCode() * 31 + variant.hashCode();
+  }
+
+  public String toString() {
+    return isDefault() ? path.toString() : path + "?" + variant;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+import javax.servlet.http.HttpServletRequest;
+import org.meshcms.util.Path;
+import org.meshcms.util.Utils;
+
+/**
+ * Builds the {@link CacheKey} of a request. Parameters listed in
+ * {@link Configuration#getCacheableParameters} are part of the key, while
+ * those listed in {@link Configuration#getIgnoredParameters} are dropped
+ * (a name ending with <code>*</code> matches all names with that prefix).
+ * Requests with any other parameter are not cached.
+ */
+public class CacheKeyBuilder {
+  private String[] cacheable;
+  private String[] ignored;
+  private boolean byLanguage;
+
+  public CacheKeyBuilder(Configuration configuration) {
+    cacheable = configuration.getCacheableParameters();
+    ignored = configuration.getIgnoredParameters();
+    byLanguage = configuration.isCacheByLanguage();
+  }
+
+  /**
+   * Returns the key of the page at the given path for this request, or null
+   * if the request contains parameters that prevent caching.
+   */
+  public CacheKey build(HttpServletRequest request, Path path)
+      throws IOException {
+    String query = request.getQueryString();
+    List params = new ArrayList();
+
+    if (!Utils.isNullOrEmpty(query)) {
+      StringTokenizer st = new StringTokenizer(query, "&");
+
+      while (st.hasMoreTokens()) {
+        String param = st.nextToken();
+        String name = Utils.decodeURL(getName(param));
+
+        if (matches(ignored, name)) {
+          continue;
+        }
+
+        if (!matches(cacheable, name)) {
+          return null;
+        }
+
+        params.add(param);
+      }
+    }
+
+    // the order of different parameters is not significant
+    Collections.sort(params, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return getName((String) o1).compareTo(getName((String) o2));
+      }
+    });
+
+    StringBuffer sb = new StringBuffer();
+
+    for (int i = 0; i < params.size(); i++) {
+      if (i > 0) {
+        sb.append('&');
+      }
+
+      sb.append(params.get(i));
+    }
+
+    if (byLanguage) {
+      Path lang = HitFilter.getPreferredLanguage(request);
+
+      if (lang != null) {
+        sb.append("|lang=").append(lang);
+      }
+    }
+
+    return new CacheKey(path, sb.toString());
+  }
+
+  private static String getName(String param) {
+    int idx = param.indexOf('=');
+    return (idx < 0) ? param : param.substring(0, idx);
+  }
+
+  private static boolean matches(String[] names, String name) {
+    if (names != null) {
+      for (int i = 0; i < names.length; i++) {
+        if (names[i].endsWith("*") ? name.startsWith(names[i].substring(0,
+            names[i].length() - 1)) : name.equals(names[i])) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.meshcms.util.LatencyHistogram;
+
+/**
+ * Collects statistics about the page cache of a website: how many pages are
+ * served from the cache, where they come from and how long it takes to render
+ * the others. The statistics are shown in the control panel and are also
+ * available through JMX.
+ */
+public class CacheMetrics implements CacheMetricsMBean {
+  /**
+   * The page has been found in memory (on the Java heap or off-heap).
+   */
+  public static final int FROM_MEMORY = 0;
+
+  /**
+   * The page has been found on disk (in a cache file or in a segment).
+   */
+  public static final int FROM_DISK = 1;
+
+  private static final Set registered = new HashSet();
+
+  private WebSite webSite;
+  private ObjectName objectName;
+
+  private AtomicLong memoryHits = new AtomicLong();
+  private AtomicLong diskHits = new AtomicLong();
+  private AtomicLong staleHits = new AtomicLong();
+  private AtomicLong coalesced = new AtomicLong();
+  private AtomicLong notModified = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+  private AtomicLong uncacheable = new AtomicLong();
+  private AtomicLong bytesFromMemory = new AtomicLong();
+  private AtomicLong bytesFromDisk = new AtomicLong();
+  private AtomicLong bytesRendered = new AtomicLong();
+  private AtomicLong memoryLookups = new AtomicLong();
+  private AtomicLong memoryLookupHits = new AtomicLong();
+  private AtomicLong diskLookups = new AtomicLong();
+  private AtomicLong diskLookupHits = new AtomicLong();
+  private AtomicLong stores = new AtomicLong();
+  private AtomicLong redirectLookups = new AtomicLong();
+  private AtomicLong redirectMatches = new AtomicLong();
+  private AtomicLong redirectCacheHits = new AtomicLong();
+  private AtomicLong siteLoads = new AtomicLong();
+  private AtomicLong siteEvictions = new AtomicLong();
+  private volatile long evictionBase;
+  private LatencyHistogram missTimes = new LatencyHistogram();
+  private LatencyHistogram uncacheableTimes = new LatencyHistogram();
+
+  public CacheMetrics(WebSite webSite) {
+    this.webSite = webSite;
+  }
+
+  /**
+   * Records a page served from the cache.
+   *
+   * @param source one of {@link #FROM_MEMORY} and {@link #FROM_DISK}
+   * @param bytes the number of bytes sent, or -1 if not known
+   * @param stale true if the page was stale
+   */
+  public void recordHit(int source, long bytes, boolean stale) {
+    if (source == FROM_DISK) {
+      diskHits.incrementAndGet();
+    } else {
+      memoryHits.incrementAndGet();
+    }
+
+    if (bytes > 0L) {
+      (source == FROM_DISK ? bytesFromDisk : bytesFromMemory).addAndGet(bytes);
+    }
+
+    if (stale) {
+      staleHits.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records a conditional request answered with 304 Not Modified. The request
+   * is counted as a hit too.
+   */
+  public void recordNotModified(int source) {
+    notModified.incrementAndGet();
+    recordHit(source, 0L, false);
+  }
+
+  /**
+   * Records a page served to a request that has waited for another request
+   * to render it. The page is counted as served from memory.
+   */
+  public void recordCoalesced(long bytes) {
+    coalesced.incrementAndGet();
+    recordHit(FROM_MEMORY, bytes, false);
+  }
+
+  /**
+   * Records a cacheable page that has been rendered since it was not cached.
+   *
+   * @param millis the time taken to render the page
+   * @param bytes the size of the page
+   */
+  public void recordMiss(long millis, long bytes) {
+    misses.incrementAndGet();
+    bytesRendered.addAndGet(bytes);
+    missTimes.record(millis);
+  }
+
+  /**
+   * Records a page that could not be taken from the cache (e.g. requested by
+   * a registered user or with unknown parameters).
+   */
+  public void recordUncacheable(long millis) {
+    uncacheable.incrementAndGet();
+    uncacheableTimes.record(millis);
+  }
+
+  /**
+   * Records a lookup in the memory cache.
+   */
+  public void recordMemoryLookup(boolean found) {
+    memoryLookups.incrementAndGet();
+
+    if (found) {
+      memoryLookupHits.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records a lookup of a cache file.
+   */
+  public void recordDiskLookup(boolean found) {
+    diskLookups.incrementAndGet();
+
+    if (found) {
+      diskLookupHits.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records a page added to the cache.
+   */
+  public void recordStore() {
+    stores.incrementAndGet();
+  }
+
+  /**
+   * Records a search of the page that has replaced a missing page.
+   *
+   * @param matched true if a page has been found
+   * @param cached true if the result was already known
+   */
+  public void recordRedirectLookup(boolean matched, boolean cached) {
+    redirectLookups.incrementAndGet();
+
+    if (matched) {
+      redirectMatches.incrementAndGet();
+    }
+
+    if (cached) {
+      redirectCacheHits.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records a virtual website loaded in memory. Only used by the main website.
+   */
+  public void recordSiteLoad() {
+    siteLoads.incrementAndGet();
+  }
+
+  /**
+   * Records a virtual website removed from memory. Only used by the main
+   * website.
+   */
+  public void recordSiteEviction() {
+    siteEvictions.incrementAndGet();
+  }
+
+  public String getSite() {
+    return webSite.getRootFile().getAbsolutePath();
+  }
+
+  /**
+   * Returns the number of requests of pages made by guests.
+   */
+  public long getRequestCount() {
+    return getHitCount() + getMissCount() + getUncacheableCount();
+  }
+
+  public long getHitCount() {
+    return memoryHits.get() + diskHits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the fraction of cacheable requests served from the cache.
+   */
+  public double getHitRatio() {
+    long hits = getHitCount();
+    long total = hits + getMissCount();
+    return total == 0L ? 0.0 : (double) hits / total;
+  }
+
+  public long getMemoryHitCount() {
+    return memoryHits.get();
+  }
+
+  public long getDiskHitCount() {
+    return diskHits.get();
+  }
+
+  public long getStaleHitCount() {
+    return staleHits.get();
+  }
+
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  public long getNotModifiedCount() {
+    return notModified.get();
+  }
+
+  public long getUncacheableCount() {
+    return uncacheable.get();
+  }
+
+  public long getBytesFromMemory() {
+    return bytesFromMemory.get();
+  }
+
+  public long getBytesFromDisk() {
+    return bytesFromDisk.get();
+  }
+
+  public long getBytesRendered() {
+    return bytesRendered.get();
+  }
+
+  public long getMemoryLookupCount() {
+    return memoryLookups.get();
+  }
+
+  public long getMemoryLookupHitCount() {
+    return memoryLookupHits.get();
+  }
+
+  public long getDiskLookupCount() {
+    return diskLookups.get();
+  }
+
+  public long getDiskLookupHitCount() {
+    return diskLookupHits.get();
+  }
+
+  public long getStoreCount() {
+    return stores.get();
+  }
+
+  /**
+   * Returns the number of requests of missing pages that have been searched
+   * in the site map (when the search of moved pages is enabled).
+   */
+  public long getRedirectLookupCount() {
+    return redirectLookups.get();
+  }
+
+  public long getRedirectMatchCount() {
+    return redirectMatches.get();
+  }
+
+  public long getRedirectCacheHitCount() {
+    return redirectCacheHits.get();
+  }
+
+  /**
+   * Returns the fraction of missing pages that have been redirected to
+   * another page.
+   */
+  public double getRedirectMatchRatio() {
+    long lookups = redirectLookups.get();
+    return lookups == 0L ? 0.0 : (double) redirectMatches.get() / lookups;
+  }
+
+  /**
+   * Returns the number of virtual websites currently loaded in memory, or 0
+   * if this is not a main website.
+   */
+  public int getResidentSiteCount() {
+    return (webSite instanceof MainWebSite) ?
+        ((MainWebSite) webSite).getResidentSiteCount() : 0;
+  }
+
+  /**
+   * Returns an estimate of the memory used by the virtual websites currently
+   * loaded, in bytes.
+   */
+  public long getResidentSiteBytes() {
+    return (webSite instanceof MainWebSite) ?
+        ((MainWebSite) webSite).getResidentSiteBytes() : 0L;
+  }
+
+  public long getSiteLoadCount() {
+    return siteLoads.get();
+  }
+
+  public long getSiteEvictionCount() {
+    return siteEvictions.get();
+  }
+
+  /**
+   * Returns the number of pages removed from the cache to make room for
+   * other pages. The count is taken from the stores used by the current site
+   * map.
+   */
+  public long getEvictionCount() {
+    return Math.max(getStoreEvictionCount() - evictionBase, 0L);
+  }
+
+  private long getStoreEvictionCount() {
+    SiteMap siteMap = webSite.getSiteMap();
+    long count = 0L;
+
+    if (siteMap != null) {
+      if (siteMap.getPageCache() != null) {
+        count += siteMap.getPageCache().getEvictionCount();
+      }
+
+      if (siteMap.getOffHeapStore() != null) {
+        count += siteMap.getOffHeapStore().getEvictionCount();
+      }
+
+      if (siteMap.getSegmentStore() != null) {
+        count += siteMap.getSegmentStore().getEvictionCount();
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Returns the upper bounds of the buckets of the render time histograms,
+   * measured in milliseconds.
+   */
+  public long[] getRenderTimeBounds() {
+    return missTimes.getBounds();
+  }
+
+  /**
+   * Returns the number of cacheable pages rendered in each bucket of time.
+   */
+  public long[] getMissRenderTimes() {
+    return missTimes.getCounts();
+  }
+
+  /**
+   * Returns the number of uncacheable pages rendered in each bucket of time.
+   */
+  public long[] getUncacheableRenderTimes() {
+    return uncacheableTimes.getCounts();
+  }
+
+  public long getMeanMissRenderTime() {
+    return missTimes.getMean();
+  }
+
+  public long getMaxMissRenderTime() {
+    return missTimes.getMax();
+  }
+
+  public long getMissRenderTime95() {
+    return missTimes.getPercentile(95.0);
+  }
+
+  public long getMeanUncacheableRenderTime() {
+    return uncacheableTimes.getMean();
+  }
+
+  public long getMaxUncacheableRenderTime() {
+    return uncacheableTimes.getMax();
+  }
+
+  /**
+   * Sets all counters to zero.
+   */
+  public void reset() {
+    AtomicLong[] counters = {
+      memoryHits, diskHits, staleHits, coalesced, notModified, misses,
+      uncacheable, bytesFromMemory, bytesFromDisk, bytesRendered,
+      memoryLookups, memoryLookupHits, diskLookups, diskLookupHits, stores,
+      redirectLookups, redirectMatches, redirectCacheHits, siteLoads,
+      siteEvictions
+    };
+
+    for (int i = 0; i < counters.length; i++) {
+      counters[i].set(0L);
+    }
+
+    evictionBase = getStoreEvictionCount();
+    missTimes.reset();
+    uncacheableTimes.reset();
+  }
+
+  /**
+   * Registers this object in the platform MBean server, replacing the metrics
+   * of a previous instance of the same website. Errors are logged and
+   * ignored, since JMX is not always available.
+   */
+  void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.meshcms:type=CacheMetrics,site=" +
+          ObjectName.quote(getSite()));
+
+      synchronized (registered) {
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+
+        server.registerMBean(this, name);
+        registered.add(name);
+        objectName = name;
+      }
+
+    } catch (Exception ex) {
+      webSite.log("Can't register the cache metrics", ex);
+    }
+  }
+
+  /**
+   * Unregisters this object, if it has been registered. Called when the
+   * website is removed from memory.
+   */
+  void unregister() {
+    synchronized (registered) {
+      if (objectName != null && registered.remove(objectName)) {
+        try {
+          ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception ex) {}
+      }
+
+      objectName = null;
+    }
+  }
+
+  /**
+   * Unregisters the metrics of all websites. Called when the application is
+   * stopped.
+   */
+  public static void unregisterAll() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    synchronized (registered) {
+      Iterator iter = registered.iterator();
+
+      while (iter.hasNext()) {
+        try {
+          server.unregisterMBean((ObjectName) iter.next());
+        } catch (Exception ex) {}
+      }
+
+      registered.clear();
+    }
+  }
+}
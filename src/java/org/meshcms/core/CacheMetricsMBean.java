@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+/**
+ * Management interface of {@link CacheMetrics}.
+ */
+public interface CacheMetricsMBean {
+  String getSite();
+
+  long getRequestCount();
+
+  long getHitCount();
+
+  long getMissCount();
+
+  double getHitRatio();
+
+  long getMemoryHitCount();
+
+  long getDiskHitCount();
+
+  long getStaleHitCount();
+
+  long getCoalescedCount();
+
+  long getNotModifiedCount();
+
+  long getUncacheableCount();
+
+  long getBytesFromMemory();
+
+  long getBytesFromDisk();
+
+  long getBytesRendered();
+
+  long getMemoryLookupCount();
+
+  long getMemoryLookupHitCount();
+
+  long getDiskLookupCount();
+
+  long getDiskLookupHitCount();
+
+  long getStoreCount();
+
+  long getEvictionCount();
+
+  long getRedirectLookupCount();
+
+  long getRedirectMatchCount();
+
+  long getRedirectCacheHitCount();
+
+  double getRedirectMatchRatio();
+
+  int getResidentSiteCount();
+
+  long getResidentSiteBytes();
+
+  long getSiteLoadCount();
+
+  long getSiteEvictionCount();
+
+  long[] getRenderTimeBounds();
+
+  long[] getMissRenderTimes();
+
+  long[] getUncacheableRenderTimes();
+
+  long getMeanMissRenderTime();
+
+  long getMaxMissRenderTime();
+
+  long getMissRenderTime95();
+
+  long getMeanUncacheableRenderTime();
+
+  long getMaxUncacheableRenderTime();
+
+  void reset();
+}
@@ -63,6 +63,20 @@ public class CacheResponseStream extends ServletOutputStream {
     } catch (IOException ex) {}
   }
 
+  /**
+   * Writes to both streams. Pages are mostly written in blocks (e.g. by the
+   * buffer of the writer), so each block is passed along as a whole.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(byte[] b, int off, int len) throws IOException {
+    output.write(b, off, len);
+
+    try {
+      cacheOutput.write(b, off, len);
+    } catch (IOException ex) {}
+  }
+
   /**
    * Flushes both streams.
    *
@@ -41,6 +41,7 @@ public class CacheResponseWrapper extends HttpServletResponseWrapper {
   ServletOutputStream stream;
   PrintWriter writer;
   OutputStream cacheOutput;
+  int status = SC_OK;
 
   /**
    * Creates a new wrapper.
@@ -78,6 +79,39 @@ public class CacheResponseWrapper extends HttpServletResponseWrapper {
     } catch (IOException e) {}
   }
 
+  public void setStatus(int sc) {
+    status = sc;
+    super.setStatus(sc);
+  }
+
+  public void setStatus(int sc, String sm) {
+    status = sc;
+    super.setStatus(sc, sm);
+  }
+
+  public void sendError(int sc) throws IOException {
+    status = sc;
+    super.sendError(sc);
+  }
+
+  public void sendError(int sc, String msg) throws IOException {
+    status = sc;
+    super.sendError(sc, msg);
+  }
+
+  public void sendRedirect(String location) throws IOException {
+    status = SC_MOVED_TEMPORARILY;
+    super.sendRedirect(location);
+  }
+
+  /**
+   * Returns the status code set while creating the page. Only pages created
+   * with status 200 can be cached.
+   */
+  public int getStatus() {
+    return status;
+  }
+
   public void flushBuffer() throws IOException {
     stream.flush();
   }
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocketFactory;
+import javax.servlet.http.HttpServletRequest;
+import org.meshcms.util.Path;
+import org.meshcms.util.Utils;
+
+/**
+ * Renders the most visited pages in background after the site map has been
+ * rebuilt, so their first visitors don't have to wait for them. Stale pages
+ * served by {@link HitFilter} are rendered again here too.
+ *
+ * <p>Pages are rendered by requesting them to the server itself, since a page
+ * can be decorated only within a request. The address of the server is taken
+ * from the first request served by the website, so nothing happens before
+ * that request. Warm-up requests are not counted as hits.</p>
+ */
+public class CacheWarmer {
+  /**
+   * Name of the request header that identifies warm-up requests.
+   */
+  public static final String WARM_UP_HEADER = "X-MeshCMS-Warm-Up";
+
+  /**
+   * Maximum number of pages rendered after each rebuild.
+   */
+  public static final int MAX_PAGES = 1000;
+
+  /**
+   * Maximum number of pages rendered at the same time.
+   */
+  public static final int MAX_THREADS = 8;
+
+  private static final int CONNECT_TIMEOUT = 5000;
+  private static final int READ_TIMEOUT = 60000;
+
+  private WebSite webSite;
+  private ThreadPoolExecutor executor;
+  private String token;
+  private int generation;
+  private Set revalidating;
+
+  private String scheme;
+  private String serverName;
+  private volatile String address;
+  private int port;
+  private String contextPath;
+
+  private long runCount;
+  private long scheduledCount;
+  private long renderedCount;
+  private long skippedCount;
+  private long failedCount;
+  private long revalidationCount;
+  private long lastRunTime;
+
+  public CacheWarmer(final WebSite webSite) {
+    this.webSite = webSite;
+    token = Long.toHexString(new Random().nextLong());
+    revalidating = new HashSet();
+    executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue(MAX_PAGES * 2), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cache warmer for \"" +
+            webSite.getTypeDescription() + '"');
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Stores the address used to request pages to the server. The local address
+   * of the connection is used instead of the requested host, so pages are
+   * never requested to another server. Only the first call has effect; it also
+   * warms up the cache with the current site map.
+   */
+  public void setOrigin(HttpServletRequest request) {
+    if (address != null) {
+      return; // don't lock at each request
+    }
+
+    synchronized (this) {
+      if (address != null) {
+        return;
+      }
+
+      scheme = request.getScheme();
+      serverName = request.getServerName();
+      contextPath = request.getContextPath();
+      Object localPort = invoke(request, "getLocalPort");
+      port = (localPort instanceof Integer) ?
+          ((Integer) localPort).intValue() : request.getServerPort();
+      address = Utils.noNull((String) invoke(request, "getLocalAddr"),
+          "127.0.0.1");
+    }
+
+    SiteMap siteMap = webSite.getSiteMap();
+
+    if (siteMap != null) {
+      warm(siteMap);
+    }
+  }
+
+  /**
+   * Calls a method added in Servlet 2.4, returning null if not available.
+   */
+  private static Object invoke(HttpServletRequest request, String name) {
+    try {
+      return request.getClass().getMethod(name, new Class[0]).invoke(request,
+          new Object[0]);
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks if the request has been made by this object.
+   */
+  public boolean isWarmUpRequest(HttpServletRequest request) {
+    return token.equals(request.getHeader(WARM_UP_HEADER));
+  }
+
+  /**
+   * Schedules the rendering of the most visited pages of the site map. Pages
+   * still waiting from a previous call are skipped.
+   */
+  public void warm(final SiteMap siteMap) {
+    Configuration c = webSite.getConfiguration();
+    int count = c.getWarmUpPages();
+
+    if (count <= 0 || c.getCacheType() == Configuration.NO_CACHE) {
+      return;
+    }
+
+    List pages = new ArrayList(siteMap.getPagesList());
+    Collections.sort(pages, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return ((PageInfo) o2).getTotalHits() - ((PageInfo) o1).getTotalHits();
+      }
+    });
+
+    synchronized (this) {
+      if (address == null) {
+        return;
+      }
+
+      final int current = ++generation;
+      int threads = c.getWarmUpThreads();
+
+      if (executor.getMaximumPoolSize() < threads) {
+        executor.setMaximumPoolSize(threads);
+        executor.setCorePoolSize(threads);
+      } else {
+        executor.setCorePoolSize(threads);
+        executor.setMaximumPoolSize(threads);
+      }
+
+      runCount++;
+      lastRunTime = System.currentTimeMillis();
+
+      for (int i = 0; i < pages.size() && i < count; i++) {
+        final PageInfo pageInfo = (PageInfo) pages.get(i);
+
+        if (pageInfo.getTotalHits() == 0) {
+          break; // no evidence that these pages will be requested
+        }
+
+        scheduledCount++;
+
+        try {
+          executor.execute(new Runnable() {
+            public void run() {
+              if (isCurrent(current) && !isCached(siteMap, pageInfo)) {
+                render(siteMap, pageInfo, null, null);
+              } else {
+                synchronized (CacheWarmer.this) {
+                  skippedCount++;
+                }
+              }
+            }
+          });
+        } catch (RejectedExecutionException ex) {
+          skippedCount++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Schedules the rendering of a stale page, unless it is already scheduled.
+   * The page is requested with the same parameters and languages of the
+   * given request, so the same variant of the page is cached.
+   */
+  public void revalidate(final SiteMap siteMap, final PageInfo pageInfo,
+      HttpServletRequest request) {
+    final String query = request.getQueryString();
+    final String languages = request.getHeader("Accept-Language");
+    final String key = pageInfo.getPath() + "?" + Utils.noNull(query) +
+        "\n" + Utils.noNull(languages);
+
+    synchronized (this) {
+      if (address == null || !revalidating.add(key)) {
+        return;
+      }
+
+      revalidationCount++;
+    }
+
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            render(siteMap, pageInfo, query, languages);
+          } finally {
+            synchronized (CacheWarmer.this) {
+              revalidating.remove(key);
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      synchronized (this) {
+        revalidating.remove(key);
+      }
+    }
+  }
+
+  private synchronized boolean isCurrent(int current) {
+    return current == generation;
+  }
+
+  private void render(SiteMap siteMap, PageInfo pageInfo, String query,
+      String languages) {
+    boolean ok = false;
+
+    try {
+      ok = request(siteMap.getServedPath(pageInfo.getPath()), query,
+          languages);
+    } catch (IOException ex) {
+      webSite.log("Can't warm up the cache for " + pageInfo.getPath(), ex);
+    }
+
+    synchronized (this) {
+      if (ok) {
+        renderedCount++;
+      } else {
+        failedCount++;
+      }
+    }
+  }
+
+  private boolean isCached(SiteMap siteMap, PageInfo pageInfo) {
+    int cacheType = webSite.getConfiguration().getCacheType();
+
+    if (cacheType == Configuration.ON_DISK_CACHE) {
+      return WebUtils.getCacheFile(webSite, siteMap, pageInfo.getPath()) != null;
+    }
+
+    return siteMap.isCached(pageInfo.getPath());
+  }
+
+  /**
+   * Requests a page and discards the response.
+   *
+   * @param query the query string, or null
+   * @param languages the value of the Accept-Language header, or null
+   *
+   * @return true if the server has replied with 200 OK
+   */
+  private boolean request(Path path, String query, String languages)
+      throws IOException {
+    String scheme, serverName, address, contextPath;
+    int port;
+
+    synchronized (this) {
+      scheme = this.scheme;
+      serverName = this.serverName;
+      address = this.address;
+      port = this.port;
+      contextPath = this.contextPath;
+    }
+
+    StringBuffer sb = new StringBuffer("GET ").append(contextPath);
+
+    for (int i = 0; i < path.getElementCount(); i++) {
+      sb.append('/').append(URLEncoder.encode(path.getElementAt(i),
+          Utils.SYSTEM_CHARSET).replaceAll("\\+", "%20"));
+    }
+
+    if (!Utils.isNullOrEmpty(query)) {
+      sb.append('?').append(query);
+    }
+
+    sb.append(" HTTP/1.0\r\nHost: ").append(serverName);
+
+    if (!Utils.isNullOrEmpty(languages)) {
+      // header values can't break the request
+      sb.append("\r\nAccept-Language: ");
+      sb.append(languages.replaceAll("[\\r\\n]", ""));
+    }
+
+    sb.append("\r\n").append(WARM_UP_HEADER).append(": ").append(token);
+    sb.append("\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n");
+
+    Socket socket = "https".equalsIgnoreCase(scheme) ?
+        SSLSocketFactory.getDefault().createSocket() : new Socket();
+
+    try {
+      socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+      socket.setSoTimeout(READ_TIMEOUT);
+      OutputStream out = socket.getOutputStream();
+      out.write(sb.toString().getBytes("ISO-8859-1"));
+      out.flush();
+
+      InputStream in = socket.getInputStream();
+      byte[] buf = new byte[Utils.BUFFER_SIZE];
+      int n = in.read(buf);
+      String statusLine = (n > 0) ? new String(buf, 0, n, "ISO-8859-1") : "";
+
+      while (in.read(buf) != -1) {
+        // the page is cached by the server, the response is not needed
+      }
+
+      return statusLine.startsWith("HTTP/1.") &&
+          statusLine.substring(8).trim().startsWith("200");
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Returns the number of pages waiting to be rendered or being rendered.
+   */
+  public int getPendingCount() {
+    return executor.getQueue().size() + executor.getActiveCount();
+  }
+
+  /**
+   * Returns the number of times the warm-up has been started.
+   */
+  public synchronized long getRunCount() {
+    return runCount;
+  }
+
+  /**
+   * Returns the start time of the last warm-up, or 0 if never started.
+   */
+  public synchronized long getLastRunTime() {
+    return lastRunTime;
+  }
+
+  public synchronized long getScheduledCount() {
+    return scheduledCount;
+  }
+
+  public synchronized long getRenderedCount() {
+    return renderedCount;
+  }
+
+  /**
+   * Returns the number of scheduled pages that have not been rendered since
+   * they were already cached or a newer site map was available.
+   */
+  public synchronized long getSkippedCount() {
+    return skippedCount;
+  }
+
+  public synchronized long getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * Returns the number of stale pages that have been scheduled to be
+   * rendered again.
+   */
+  public synchronized long getRevalidationCount() {
+    return revalidationCount;
+  }
+}
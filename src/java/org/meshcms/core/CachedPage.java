@@ -0,0 +1,176 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import org.meshcms.util.ChunkedBuffer;
+import org.meshcms.util.GZIPEncoder;
+
+/**
+ * A page stored in the cache. Both the compressed and the uncompressed
+ * version are kept, so clients that don't support GZIP can be served without
+ * decompressing the page at each request.
+ *
+ * <p>Both versions are stored in closed {@link ChunkedBuffer}s, so the same
+ * chunks can be shared by all the stores and all the requests that serve the
+ * page.</p>
+ */
+public final class CachedPage {
+  private ChunkedBuffer gzipBuffer;
+  private ChunkedBuffer identityBuffer;
+  private String eTag;
+  private long created;
+
+  /**
+   * Creates a cached page from both versions of the page.
+   */
+  public CachedPage(byte[] gzipBytes, byte[] identityBytes) {
+    this(gzipBytes, identityBytes, System.currentTimeMillis());
+  }
+
+  /**
+   * Creates a cached page from both versions of the page.
+   *
+   * @param created the time the page has been rendered
+   */
+  public CachedPage(byte[] gzipBytes, byte[] identityBytes, long created) {
+    this(ChunkedBuffer.wrap(gzipBytes), ChunkedBuffer.wrap(identityBytes),
+        created);
+  }
+
+  /**
+   * Creates a cached page from both versions of the page. The buffers must be
+   * closed and must not be recycled later.
+   *
+   * @param created the time the page has been rendered
+   */
+  public CachedPage(ChunkedBuffer gzipBuffer, ChunkedBuffer identityBuffer,
+      long created) {
+    this.gzipBuffer = gzipBuffer;
+    this.identityBuffer = identityBuffer;
+    this.created = created;
+  }
+
+  /**
+   * Creates a cached page by compressing the given page.
+   *
+   * @param identityBytes the uncompressed page
+   * @param level the GZIP compression level
+   */
+  public static CachedPage create(byte[] identityBytes, int level) {
+    return new CachedPage(GZIPEncoder.compress(identityBytes, level),
+        identityBytes);
+  }
+
+  /**
+   * Returns the page compressed with GZIP.
+   *
+   * @see ChunkedBuffer#toByteArray
+   */
+  public byte[] getGzipBytes() {
+    return gzipBuffer.toByteArray();
+  }
+
+  /**
+   * Returns the uncompressed page.
+   *
+   * @see ChunkedBuffer#toByteArray
+   */
+  public byte[] getIdentityBytes() {
+    return identityBuffer.toByteArray();
+  }
+
+  /**
+   * Returns the compressed or the uncompressed version of the page. Large
+   * pages are copied to a new array: use {@link #getBuffer} to avoid it.
+   */
+  public byte[] getBytes(boolean gzip) {
+    return getBuffer(gzip).toByteArray();
+  }
+
+  /**
+   * Returns the buffer that contains the compressed or the uncompressed
+   * version of the page.
+   */
+  public ChunkedBuffer getBuffer(boolean gzip) {
+    return gzip ? gzipBuffer : identityBuffer;
+  }
+
+  /**
+   * Returns the time the page has been rendered. The page is stale if it has
+   * been rendered before the last invalidation of the page.
+   *
+   * @see PageInfo#getCacheValidSince
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * Returns an entity tag for the page. It is a hash of the compressed page,
+   * computed the first time it is needed. Quotes are not included.
+   */
+  public synchronized String getETag() {
+    if (eTag == null) {
+      try {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        gzipBuffer.update(md);
+        eTag = toHex(md.digest());
+      } catch (NoSuchAlgorithmException ex) {
+        eTag = computeETag(gzipBuffer.toByteArray());
+      }
+    }
+
+    return eTag;
+  }
+
+  /**
+   * Computes an entity tag (without quotes) as the MD5 hash of the given
+   * bytes.
+   */
+  public static String computeETag(byte[] b) {
+    try {
+      return toHex(MessageDigest.getInstance("MD5").digest(b));
+    } catch (NoSuchAlgorithmException ex) {
+      // MD5 is always available
+      return Integer.toHexString(Arrays.hashCode(b)) + '-' + b.length;
+    }
+  }
+
+  private static String toHex(byte[] digest) {
+    StringBuffer sb = new StringBuffer(digest.length * 2);
+
+    for (int i = 0; i < digest.length; i++) {
+      sb.append(Character.forDigit((digest[i] >> 4) & 0x0f, 16));
+      sb.append(Character.forDigit(digest[i] & 0x0f, 16));
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Returns the memory used by both versions of the page.
+   */
+  public int getLength() {
+    return gzipBuffer.size() + identityBuffer.size();
+  }
+}
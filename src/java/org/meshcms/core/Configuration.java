@@ -21,6 +21,7 @@ package org.meshcms.core;
 
 import java.io.Serializable;
 import org.meshcms.util.Path;
+import org.meshcms.util.Utils;
 
 /**
  * Manages the configuration parameters of a website.
@@ -41,6 +42,19 @@ public class Configuration implements Serializable {
    */
   public static final String[] DEFAULT_VISUAL_EXTENSIONS = {"html", "htm"};
 
+  /**
+   * Contains the request parameters that are part of the cache key by
+   * default.
+   */
+  public static final String[] DEFAULT_CACHEABLE_PARAMETERS =
+      {"firstentry", HitFilter.THEME_FILE_ATTRIBUTE};
+
+  /**
+   * Contains the request parameters that are ignored by the cache by default.
+   */
+  public static final String[] DEFAULT_IGNORED_PARAMETERS =
+      {"utm_*", "gclid", "fbclid"};
+
   /**
    * Value used to disable page caching.
    */
@@ -60,7 +74,47 @@ public class Configuration implements Serializable {
    * Value used to cache pages on disk and, if possible, in memory.
    */
   public static final int MIXED_CACHE = IN_MEMORY_CACHE | ON_DISK_CACHE;
+
+  /**
+   * Value used to cache pages in memory outside of the Java heap.
+   *
+   * @see OffHeapPageStore
+   */
+  public static final int OFF_HEAP_CACHE = 4;
+
+  /**
+   * Value used to cache pages on disk, in a few large segment files.
+   *
+   * @see SegmentPageStore
+   */
+  public static final int SEGMENT_CACHE = 8;
   
+  /**
+   * Default size of the in-memory page cache, measured in megabytes.
+   */
+  public static final int DEFAULT_MEMORY_CACHE_SIZE = 32;
+
+  /**
+   * Default size of the segment files cache, measured in megabytes.
+   */
+  public static final int DEFAULT_DISK_CACHE_SIZE = 256;
+
+  /**
+   * Default GZIP compression level of cached pages.
+   */
+  public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+  /**
+   * Default number of pages rendered at the same time when warming up the
+   * cache.
+   */
+  public static final int DEFAULT_WARM_UP_THREADS = 2;
+
+  /**
+   * Default number of threads used to parse the websites.
+   */
+  public static final int DEFAULT_PARSER_THREADS = 2;
+
   public static final int TIDY_NO = 0;
   public static final int TIDY_YES = 1;
   public static final int TIDY_ASK = 2;
@@ -77,10 +131,21 @@ public class Configuration implements Serializable {
   private boolean searchMovedPages;
   private boolean redirectRoot;
   private boolean passwordProtected;
+  private boolean conditionalGet;
+  private boolean cacheByLanguage;
+  private boolean watchFiles;
   private int backupLife;
   private int statsLength;
   private int updateInterval;
   private int cacheType;
+  private int memoryCacheSize;
+  private int diskCacheSize;
+  private int compressionLevel;
+  private int guestMaxAge;
+  private int warmUpPages;
+  private int warmUpThreads;
+  private int parserThreads;
+  private int maxStaleAge;
   private int tidy;
   private int excerptLength;
   private String mailServer;
@@ -96,6 +161,8 @@ public class Configuration implements Serializable {
   private String exportDir;
   private String exportCommand;
   private String[] visualExtensions;
+  private String[] cacheableParameters;
+  private String[] ignoredParameters;
 
   private Configuration() {
     setUseAdminTheme(true);
@@ -115,6 +182,12 @@ public class Configuration implements Serializable {
     setStatsLength(3);
     setUpdateInterval(2);
     setCacheType(NO_CACHE);
+    setMemoryCacheSize(DEFAULT_MEMORY_CACHE_SIZE);
+    setDiskCacheSize(DEFAULT_DISK_CACHE_SIZE);
+    setCompressionLevel(DEFAULT_COMPRESSION_LEVEL);
+    setWarmUpPages(0);
+    setWarmUpThreads(DEFAULT_WARM_UP_THREADS);
+    setParserThreads(DEFAULT_PARSER_THREADS);
     setTidy(TIDY_NO);
     setExcerptLength(400);
 
@@ -132,6 +205,8 @@ public class Configuration implements Serializable {
     setExportCommand("");
 
     setVisualExtensions(DEFAULT_VISUAL_EXTENSIONS);
+    setCacheableParameters(DEFAULT_CACHEABLE_PARAMETERS);
+    setIgnoredParameters(DEFAULT_IGNORED_PARAMETERS);
   }
 
   /**
@@ -197,6 +272,24 @@ public class Configuration implements Serializable {
     this.statsLength = Math.max(statsLength, 1);
   }
 
+  /**
+   * Returns true if the files of the website are watched, so the site map is
+   * updated as soon as they change.
+   */
+  public boolean isWatchFiles() {
+    return watchFiles;
+  }
+
+  /**
+   * Enables or disables watching the files of the website. When disabled, the
+   * site map is updated only at the configured interval.
+   *
+   * @see #setUpdateInterval
+   */
+  public void setWatchFiles(boolean watchFiles) {
+    this.watchFiles = watchFiles;
+  }
+
   /**
    * Returns the minimum interval between two updates of the site map,
    * measured in hours.
@@ -224,12 +317,177 @@ public class Configuration implements Serializable {
 
   /**
    * Sets the type of cache to be used for pages. Possible values are
-   * {@link #NO_CACHE}, {@link #IN_MEMORY_CACHE} and {@link #ON_DISK_CACHE}.
+   * {@link #NO_CACHE}, {@link #IN_MEMORY_CACHE}, {@link #ON_DISK_CACHE},
+   * {@link #MIXED_CACHE}, {@link #OFF_HEAP_CACHE} and {@link #SEGMENT_CACHE}.
    */
   public void setCacheType(int cacheType) {
     this.cacheType = cacheType;
   }
 
+  /**
+   * Returns the maximum size of the in-memory page cache, measured in
+   * megabytes.
+   */
+  public int getMemoryCacheSize() {
+    return memoryCacheSize;
+  }
+
+  /**
+   * Sets the maximum size of the in-memory page cache, measured in
+   * megabytes. This limit is used by {@link #IN_MEMORY_CACHE},
+   * {@link #MIXED_CACHE} and {@link #OFF_HEAP_CACHE}.
+   */
+  public void setMemoryCacheSize(int memoryCacheSize) {
+    this.memoryCacheSize = Math.max(memoryCacheSize, 1);
+  }
+
+  /**
+   * Returns the maximum size of the in-memory page cache, measured in bytes.
+   */
+  public long getMemoryCacheSizeBytes() {
+    return getMemoryCacheSize() * (long) Utils.MBYTE;
+  }
+
+  /**
+   * Returns the maximum size of the segment files used by
+   * {@link #SEGMENT_CACHE}, measured in megabytes.
+   */
+  public int getDiskCacheSize() {
+    return diskCacheSize;
+  }
+
+  public void setDiskCacheSize(int diskCacheSize) {
+    this.diskCacheSize = Math.max(diskCacheSize, 1);
+  }
+
+  /**
+   * Returns the maximum size of the segment files, measured in bytes.
+   */
+  public long getDiskCacheSizeBytes() {
+    return getDiskCacheSize() * (long) Utils.MBYTE;
+  }
+
+  /**
+   * Returns the GZIP compression level used for cached pages.
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Sets the GZIP compression level used for cached pages, from 1 (fastest)
+   * to 9 (smallest pages).
+   */
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = Utils.constrain(1, 9, compressionLevel);
+  }
+
+  /**
+   * Returns true if cached pages are sent to guests with an entity tag and a
+   * last modification date, so browsers and proxies can revalidate them.
+   */
+  public boolean isConditionalGet() {
+    return conditionalGet;
+  }
+
+  /**
+   * Enables or disables conditional requests for cached pages. When disabled,
+   * all pages are sent with headers that prevent remote caching.
+   */
+  public void setConditionalGet(boolean conditionalGet) {
+    this.conditionalGet = conditionalGet;
+  }
+
+  /**
+   * Returns the time browsers and proxies can keep a cached page without
+   * revalidating it, measured in seconds.
+   */
+  public int getGuestMaxAge() {
+    return guestMaxAge;
+  }
+
+  /**
+   * Sets the time browsers and proxies can keep a cached page without
+   * revalidating it, measured in seconds. This is used only if conditional
+   * requests are enabled.
+   *
+   * @see #setConditionalGet
+   */
+  public void setGuestMaxAge(int guestMaxAge) {
+    this.guestMaxAge = Math.max(guestMaxAge, 0);
+  }
+
+  /**
+   * Returns the number of most visited pages that are rendered in background
+   * after the site map has been rebuilt. Zero disables the warm-up.
+   *
+   * @see CacheWarmer
+   */
+  public int getWarmUpPages() {
+    return warmUpPages;
+  }
+
+  /**
+   * Sets the number of most visited pages that are rendered in background
+   * after the site map has been rebuilt. The value is limited to
+   * {@link CacheWarmer#MAX_PAGES}.
+   */
+  public void setWarmUpPages(int warmUpPages) {
+    this.warmUpPages = Utils.constrain(0, CacheWarmer.MAX_PAGES, warmUpPages);
+  }
+
+  /**
+   * Returns the maximum number of pages rendered at the same time when
+   * warming up the cache.
+   */
+  public int getWarmUpThreads() {
+    return warmUpThreads;
+  }
+
+  public void setWarmUpThreads(int warmUpThreads) {
+    this.warmUpThreads = Utils.constrain(1, CacheWarmer.MAX_THREADS,
+        warmUpThreads);
+  }
+
+  /**
+   * Returns the number of threads used to parse the files of the websites.
+   * The threads are shared by all websites: only the value set for the main
+   * website is used.
+   */
+  public int getParserThreads() {
+    return parserThreads;
+  }
+
+  /**
+   * Sets the number of threads used to parse the files of the websites. If
+   * set to 1, the files are parsed by the thread that updates the site map.
+   */
+  public void setParserThreads(int parserThreads) {
+    this.parserThreads = Utils.constrain(1, SiteMap.MAX_PARSER_THREADS,
+        parserThreads);
+  }
+
+  /**
+   * Returns the time a cached page can still be served after it has been
+   * invalidated, measured in seconds. Stale pages are served while they are
+   * rendered again in background. Zero disables stale pages.
+   */
+  public int getMaxStaleAge() {
+    return maxStaleAge;
+  }
+
+  public void setMaxStaleAge(int maxStaleAge) {
+    this.maxStaleAge = Math.max(maxStaleAge, 0);
+  }
+
+  /**
+   * Returns the time a cached page can still be served after it has been
+   * invalidated, measured in milliseconds.
+   */
+  public long getMaxStaleAgeMillis() {
+    return maxStaleAge * 1000L;
+  }
+
   /**
    * Returns the name of the mail server (SMTP).
    */
@@ -296,6 +554,42 @@ public class Configuration implements Serializable {
     return c;
   }
 
+  /**
+   * Called after deserialization: values added in newer versions are missing
+   * from older configuration files, so they are set to their defaults.
+   */
+  private Object readResolve() {
+    if (memoryCacheSize <= 0) {
+      setMemoryCacheSize(DEFAULT_MEMORY_CACHE_SIZE);
+    }
+
+    if (diskCacheSize <= 0) {
+      setDiskCacheSize(DEFAULT_DISK_CACHE_SIZE);
+    }
+
+    if (compressionLevel <= 0) {
+      setCompressionLevel(DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    if (warmUpThreads <= 0) {
+      setWarmUpThreads(DEFAULT_WARM_UP_THREADS);
+    }
+
+    if (parserThreads <= 0) {
+      setParserThreads(DEFAULT_PARSER_THREADS);
+    }
+
+    if (cacheableParameters == null) {
+      setCacheableParameters(DEFAULT_CACHEABLE_PARAMETERS);
+    }
+
+    if (ignoredParameters == null) {
+      setIgnoredParameters(DEFAULT_IGNORED_PARAMETERS);
+    }
+
+    return this;
+  }
+
   /**
    * Saves the current configuration to file.
    */
@@ -335,6 +629,47 @@ public class Configuration implements Serializable {
     this.visualExtensions = visualExtensions;
   }
 
+  /**
+   * Returns the names of the request parameters that identify different
+   * versions of a page. Pages requested with these parameters are cached
+   * separately for each combination of values.
+   */
+  public String[] getCacheableParameters() {
+    return cacheableParameters;
+  }
+
+  public void setCacheableParameters(String[] cacheableParameters) {
+    this.cacheableParameters = (cacheableParameters == null) ?
+        new String[0] : cacheableParameters;
+  }
+
+  /**
+   * Returns the names of the request parameters that don't change the page
+   * (e.g. tracking parameters). A name ending with <code>*</code> matches all
+   * names that start with it. Pages requested with parameters that are
+   * neither cacheable nor ignored are not cached.
+   */
+  public String[] getIgnoredParameters() {
+    return ignoredParameters;
+  }
+
+  public void setIgnoredParameters(String[] ignoredParameters) {
+    this.ignoredParameters = (ignoredParameters == null) ?
+        new String[0] : ignoredParameters;
+  }
+
+  /**
+   * Returns true if pages are cached separately for each language negotiated
+   * with the browser.
+   */
+  public boolean isCacheByLanguage() {
+    return cacheByLanguage;
+  }
+
+  public void setCacheByLanguage(boolean cacheByLanguage) {
+    this.cacheByLanguage = cacheByLanguage;
+  }
+
   /**
    * Returns the state of the automatic redirection to welcome files.
    */
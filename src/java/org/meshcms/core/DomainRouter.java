@@ -0,0 +1,190 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Maps host names to websites. A domain can be a host name like
+ * <code>example.com</code> or a wildcard like <code>*.example.com</code>,
+ * that matches all the host names that end with <code>.example.com</code>.
+ * Host names are matched ignoring case: an exact match is preferred,
+ * otherwise the wildcard with the longest suffix wins.
+ *
+ * <p>Instances are immutable, so they can be shared by all requests without
+ * locking. Domains are stored in open addressing hash tables, and the hash
+ * of each suffix of the host name is computed while scanning it, so a lookup
+ * creates no objects.</p>
+ *
+ * @see MultiSiteManager#getWebSite
+ */
+public final class DomainRouter {
+  /**
+   * Prefix of wildcard domains.
+   */
+  public static final String WILDCARD = "*.";
+
+  private Table exact;
+  private Table wildcards;
+
+  /**
+   * Creates a router for the given map.
+   *
+   * @param domains a map whose keys are domains (in lower case) and whose
+   * values are the targets returned by {@link #get}
+   */
+  public DomainRouter(Map domains) {
+    int wildcardCount = 0;
+    Iterator iter = domains.keySet().iterator();
+
+    while (iter.hasNext()) {
+      if (((String) iter.next()).startsWith(WILDCARD)) {
+        wildcardCount++;
+      }
+    }
+
+    exact = new Table(domains.size() - wildcardCount);
+    wildcards = new Table(wildcardCount);
+    iter = domains.entrySet().iterator();
+
+    while (iter.hasNext()) {
+      Map.Entry entry = (Map.Entry) iter.next();
+      String domain = (String) entry.getKey();
+
+      if (domain.startsWith(WILDCARD)) {
+        wildcards.put(domain.substring(WILDCARD.length()), entry.getValue());
+      } else {
+        exact.put(domain, entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns the target of the given host name, or null if no domain matches.
+   */
+  public Object get(String host) {
+    Object result = null;
+    int hash = 0;
+    int power = 1;
+
+    // the hash of the suffixes is computed from right to left
+    for (int i = host.length() - 1; i >= 0; i--) {
+      char c = host.charAt(i);
+
+      if (c == '.' && wildcards.size > 0) {
+        // longer suffixes are found later and replace shorter ones
+        Object target = wildcards.get(host, i + 1, hash);
+
+        if (target != null) {
+          result = target;
+        }
+      }
+
+      hash += Character.toLowerCase(c) * power;
+      power *= 31;
+    }
+
+    Object target = exact.get(host, 0, hash);
+    return target == null ? result : target;
+  }
+
+  /**
+   * Returns the number of domains.
+   */
+  public int size() {
+    return exact.size + wildcards.size;
+  }
+
+  /**
+   * Returns the same value as <code>s.toLowerCase().hashCode()</code> for
+   * ASCII strings.
+   */
+  private static int hash(String s) {
+    int hash = 0;
+
+    for (int i = 0; i < s.length(); i++) {
+      hash = 31 * hash + Character.toLowerCase(s.charAt(i));
+    }
+
+    return hash;
+  }
+
+  private static class Table {
+    private String[] keys;
+    private int[] hashes;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    private Table(int count) {
+      int capacity = 2;
+
+      while (capacity < count * 2) {
+        capacity <<= 1;
+      }
+
+      keys = new String[capacity];
+      hashes = new int[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+    }
+
+    private void put(String key, Object value) {
+      int hash = hash(key);
+      int i = index(hash);
+
+      while (keys[i] != null) {
+        if (hashes[i] == hash && keys[i].equalsIgnoreCase(key)) {
+          values[i] = value;
+          return;
+        }
+
+        i = (i + 1) & mask;
+      }
+
+      keys[i] = key;
+      hashes[i] = hash;
+      values[i] = value;
+      size++;
+    }
+
+    /**
+     * Returns the value whose key is equal to the end of <code>host</code>
+     * starting at <code>start</code>.
+     */
+    private Object get(String host, int start, int hash) {
+      int length = host.length() - start;
+
+      for (int i = index(hash); keys[i] != null; i = (i + 1) & mask) {
+        if (hashes[i] == hash && keys[i].length() == length &&
+            keys[i].regionMatches(true, 0, host, start, length)) {
+          return values[i];
+        }
+      }
+
+      return null;
+    }
+
+    private int index(int hash) {
+      return (hash ^ (hash >>> 16)) & mask;
+    }
+  }
+}
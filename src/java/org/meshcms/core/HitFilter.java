@@ -20,20 +20,24 @@
 package org.meshcms.core;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -45,6 +49,7 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import org.meshcms.util.ChunkedBuffer;
 import org.meshcms.util.Path;
 import org.meshcms.util.Utils;
 
@@ -57,6 +62,17 @@ public final class HitFilter implements Filter {
    */
   public static final String CACHE_FILE_NAME = "_cache.gz";
   
+  /**
+   * Name of the uncompressed copy of a cache file in the repository.
+   */
+  public static final String IDENTITY_CACHE_FILE_NAME = "_cache.html";
+  
+  /**
+   * Maximum time a request waits for the same page to be rendered by another
+   * request, in milliseconds.
+   */
+  public static final long RENDER_WAIT_TIME = 10000L;
+  
   /**
    * Name of the request attribute that contains the name of the current theme
    * file.
@@ -77,6 +93,12 @@ public final class HitFilter implements Filter {
   
   public static final String BLOCK_CACHE_ATTRIBUTE = "meshcmsnocache";
   
+  /**
+   * Name of the request attribute that contains the
+   * {@link CacheDependencies} of the page being rendered.
+   */
+  public static final String CACHE_DEPENDENCIES_ATTRIBUTE = "meshcmscachedeps";
+  
   public static final String WEBSITE_ATTRIBUTE = "webSite";
   
   /**
@@ -100,14 +122,54 @@ public final class HitFilter implements Filter {
   
   public static final String ROOT_WEBSITE = "meshcmsrootsite";
   
+  /**
+   * Maximum time a request waits for its website to be initialized, in
+   * milliseconds. After that time, the request is answered with a 503 status.
+   */
+  public static final long READY_WAIT = 1000L;
+  
+  /**
+   * Value of the <code>Retry-After</code> header sent with the 503 status,
+   * in seconds.
+   */
+  public static final int RETRY_AFTER = 5;
+  
+  private static final Object rootSiteLock = new Object();
+  private static final Object rootSiteRebuildLock = new Object();
+  
   private FilterConfig filterConfig = null;
+  private CountDownLatch rootSiteReady;
   
+  /**
+   * Initializes the filter. The main website is created in background, so
+   * requests can be answered while it is initialized.
+   */
   public void init(FilterConfig filterConfig) throws ServletException {
     this.filterConfig = filterConfig;
+    final ServletContext sc = filterConfig.getServletContext();
+    rootSiteReady = new CountDownLatch(1);
+    Thread bootstrap = new Thread("Site bootstrap") {
+      public void run() {
+        try {
+          getRootSite(sc, false);
+        } catch (RuntimeException ex) {
+          sc.log("Can't initialize the website", ex);
+        } finally {
+          rootSiteReady.countDown();
+        }
+      }
+    };
+    bootstrap.setDaemon(true);
+    bootstrap.start();
   }
   
   public void destroy() {
     this.filterConfig = null;
+    BackgroundScheduler.shutdown();
+    CacheMetrics.unregisterAll();
+    SiteMapWatcher.shutdown();
+    SiteMap.shutdownParserPool();
+    SiteMapSnapshot.saveAll();
   }
   
   /**
@@ -118,6 +180,12 @@ public final class HitFilter implements Filter {
     if (filterConfig != null && (request instanceof HttpServletRequest)) {
       ServletContext sc = filterConfig.getServletContext();
       HttpServletResponse httpRes = (HttpServletResponse) response;
+      
+      if (!isRootSiteReady()) {
+        sendUnavailable(httpRes);
+        return;
+      }
+      
       WebSite rootSite = getRootSite(sc, false);
       WebSite webSite = rootSite.getWebSite(request);
       
@@ -126,6 +194,15 @@ public final class HitFilter implements Filter {
         return;
       }
       
+      /* other sites are served while this one is initialized; a site that
+         can't be initialized is loaded again by a later request */
+      if (webSite instanceof VirtualWebSite &&
+          (!((VirtualWebSite) webSite).awaitReady(READY_WAIT) ||
+          ((VirtualWebSite) webSite).isFailed())) {
+        sendUnavailable(httpRes);
+        return;
+      }
+      
       request.setAttribute(WEBSITE_ATTRIBUTE, webSite);
       request.setCharacterEncoding(Utils.SYSTEM_CHARSET);
       HttpServletRequest httpReq = webSite.wrapRequest(request);
@@ -168,6 +245,8 @@ public final class HitFilter implements Filter {
       PageInfo pageInfo = null;
       boolean isAdminPage = false;
       boolean isGuest = true;
+      boolean isWarmUp = false;
+      boolean validateCache = false;
       String pageCharset = null;
       
       if (webSite.getCMSPath() != null) {
@@ -179,7 +258,15 @@ public final class HitFilter implements Filter {
         
         siteMap = webSite.getSiteMap();
         isAdminPage = pagePath.isContainedIn(webSite.getAdminPath());
-        HttpSession session = httpReq.getSession();
+        CacheWarmer cacheWarmer = webSite.getCacheWarmer();
+        isWarmUp = cacheWarmer.isWarmUpRequest(httpReq);
+        
+        if (!isWarmUp) {
+          cacheWarmer.setOrigin((HttpServletRequest) request);
+        }
+        
+        // warm-up requests are made by guests and don't need a session
+        HttpSession session = isWarmUp ? null : httpReq.getSession();
         
         if (webSite.getConfiguration().isSearchMovedPages() &&
             !(isAdminPage || webSite.getFile(pagePath).exists())) {
@@ -226,8 +313,20 @@ public final class HitFilter implements Filter {
             return;
           }
           
+          // record what the page depends on, to invalidate it when needed
+          httpReq.setAttribute(CACHE_DEPENDENCIES_ATTRIBUTE,
+              new CacheDependencies());
+          WebUtils.addCacheDependency(httpReq,
+              webSite.getFile(webSite.getPropertiesFilePath()));
+          WebUtils.addCacheDependency(httpReq,
+              webSite.getFile(webSite.getConfigFilePath()));
           WebUtils.updateLastModifiedTime(httpReq, webSite.getFile(pagePath));
-          blockRemoteCaching(httpRes);
+          
+          if (isGuest && webSite.getConfiguration().isConditionalGet()) {
+            validateCache = true; // remote caching is managed below
+          } else {
+            blockRemoteCaching(httpRes);
+          }
           
           // Find a theme for this page
           Path themePath = null;
@@ -254,6 +353,8 @@ public final class HitFilter implements Filter {
             }
             
             request.setAttribute(THEME_PATH_ATTRIBUTE, themePath);
+            WebUtils.addCacheDependency(httpReq,
+                webSite.getFile(themePath.add(SiteMap.THEME_DECORATOR)));
             
             // pages in /admin do not need a decorator to be specified:
             if (!isAdminPage || themeParameter != null) {
@@ -302,7 +403,7 @@ public final class HitFilter implements Filter {
         pageInfo = siteMap.getPageInfo(pagePath);
         
         if (pageInfo != null) { // this page is contained in the site map
-          if (isGuest) {
+          if (isGuest && !isWarmUp) {
             pageInfo.addHit();
           }
           
@@ -350,91 +451,291 @@ public final class HitFilter implements Filter {
       
       try {
         // Cache management
+        CacheKey cacheKey = null;
+        
         if (isGuest && pageInfo != null &&
             httpReq.getMethod().equalsIgnoreCase("get") &&
-            Utils.isNullOrEmpty(httpReq.getQueryString()) &&
             webSite.isVisuallyEditable(pagePath)) {
+          // null if the request has parameters that prevent caching
+          cacheKey = new CacheKeyBuilder(webSite.getConfiguration()).build(httpReq,
+              pageInfo.getPath());
+        }
+        
+        if (cacheKey != null) {
           int cacheType = webSite.getConfiguration().getCacheType();
+          String variantId = cacheKey.getVariantId();
+          String vary = webSite.getConfiguration().isCacheByLanguage() ?
+              "Accept-Encoding, Accept-Language" : "Accept-Encoding";
           
           // Let's see if the browser supports GZIP
-          String ae = httpReq.getHeader("Accept-Encoding");
-          boolean gzip = ae != null && ae.toLowerCase().indexOf("gzip") > -1;
+          boolean gzip = WebUtils.isGzipAccepted(httpReq);
+          CacheMetrics metrics = webSite.getCacheMetrics();
           InputStream in = null;
+          int source = CacheMetrics.FROM_MEMORY;
+          boolean inflate = false;
+          String eTag = null;
+          
+          /* pages cached before the last invalidation are stale: they can be
+             served for a while, as long as they are rendered again */
+          long validSince = pageInfo.getCacheValidSince();
+          long maxStaleAge = webSite.getConfiguration().getMaxStaleAgeMillis();
+          boolean allowStale = !isWarmUp && maxStaleAge > 0L &&
+              System.currentTimeMillis() - validSince <= maxStaleAge;
+          boolean stale = false;
           
           if (cacheType == Configuration.IN_MEMORY_CACHE ||
               cacheType == Configuration.MIXED_CACHE) {
-            byte[] pageBytes = siteMap.getCached(pageInfo.getPath());
+            CachedPage page = siteMap.getCached(cacheKey);
             
             // a cached page too small is suspicious
-            if (pageBytes != null && pageBytes.length > 256) {
-              in = new ByteArrayInputStream(pageBytes);
+            if (page != null && page.getBuffer(true).size() > 256 &&
+                (page.getCreated() >= validSince || allowStale)) {
+              stale = page.getCreated() < validSince;
+              in = page.getBuffer(gzip).getInputStream();
+              eTag = page.getETag();
+            }
+          } else if (cacheType == Configuration.OFF_HEAP_CACHE ||
+              cacheType == Configuration.SEGMENT_CACHE) {
+            // the page is read directly from the off-heap slab or mapped file
+            PageInputStream pis = null;
+            
+            try {
+              pis = siteMap.openCached(cacheKey, gzip);
+              
+              if (pis != null && pis.available() > 256 &&
+                  (pis.getCreated() >= validSince || allowStale)) {
+                stale = pis.getCreated() < validSince;
+                eTag = pis.getETag();
+                source = cacheType == Configuration.SEGMENT_CACHE ?
+                    CacheMetrics.FROM_DISK : CacheMetrics.FROM_MEMORY;
+                in = pis;
+              }
+            } finally {
+              // the stream is released unless it is sent below
+              if (pis != null && in != pis) {
+                pis.close();
+              }
             }
           }
           
           if (cacheType == Configuration.ON_DISK_CACHE ||
               (in == null && cacheType == Configuration.MIXED_CACHE)) {
-            File cacheFile = WebUtils.getCacheFile(webSite, siteMap, pagePath);
+            File cacheFile = WebUtils.getCacheFile(webSite, siteMap, pagePath,
+                variantId);
+            
+            if (cacheFile == null && allowStale) {
+              cacheFile = WebUtils.getStaleCacheFile(webSite, siteMap, pagePath,
+                  variantId);
+              stale = cacheFile != null;
+            }
             
             if (cacheFile != null) {
-              in = new FileInputStream(cacheFile);
+              File identityFile = WebUtils.getIdentityCacheFile(webSite,
+                  siteMap, pagePath, variantId);
+              source = CacheMetrics.FROM_DISK;
               
               if (cacheType == Configuration.MIXED_CACHE) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                Utils.copyStream(in, baos, true);
-                byte[] b = baos.toByteArray();
-                siteMap.cache(pageInfo.getPath(), b);
-                in = new ByteArrayInputStream(b);
+                CachedPage page = readCachedPage(cacheFile, identityFile);
+                if (cacheKey.isDefault() ||
+                    pageInfo.addCacheVariant(cacheKey.getVariant())) {
+                  siteMap.cache(cacheKey, page);
+                }
+                
+                in = page.getBuffer(gzip).getInputStream();
+                eTag = page.getETag();
+              } else {
+                if (validateCache) {
+                  eTag = getCacheFileETag(pageInfo, cacheFile);
+                }
+                
+                if (gzip || identityFile == null) {
+                  in = new FileInputStream(cacheFile);
+                  inflate = !gzip; // cached by an older version
+                } else {
+                  in = new FileInputStream(identityFile);
+                }
               }
             }
           }
           
           // if a valid cached version has been found, use it
           if (in != null) {
-            ServletOutputStream sos = response.getOutputStream();
+            ServletOutputStream sos;
+            long length = -1L;
             
-            if (gzip) {
-              httpRes.setHeader("Content-Encoding", "gzip");
-            } else {
-              // uncompress the page on the fly for that spider or old browser
-              in = new GZIPInputStream(in);
+            // off-heap streams must always be released
+            try {
+              httpRes.setHeader("Vary", vary);
+              
+              if (stale) {
+                // the page is rendered again in background
+                webSite.getCacheWarmer().revalidate(siteMap, pageInfo,
+                    httpReq);
+                
+                if (validateCache) {
+                  blockRemoteCaching(httpRes);
+                }
+              } else if (validateCache) {
+                // the two versions of the page need different tags
+                eTag = '"' + eTag + (gzip ? "-gzip\"" : "\"");
+                long lastModified = Math.max(pageInfo.getLastModified(),
+                    pageInfo.getCacheValidSince());
+                allowRemoteCaching(httpRes, eTag, lastModified,
+                    webSite.getConfiguration().getGuestMaxAge());
+                
+                if (isNotModified(httpReq, eTag, lastModified)) {
+                  metrics.recordNotModified(source);
+                  httpRes.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                  return;
+                }
+              }
+              
+              sos = response.getOutputStream();
+              
+              if (gzip) {
+                httpRes.setHeader("Content-Encoding", "gzip");
+              } else if (inflate) {
+                // uncompress the page on the fly for that spider or old browser
+                in = new GZIPInputStream(in);
+              }
+              
+              if (in instanceof FileInputStream) {
+                /* the cache file is sent through its channel: directly if
+                   the container allows it, otherwise in large blocks */
+                FileChannel channel = ((FileInputStream) in).getChannel();
+                length = channel.size();
+                httpRes.setContentLength((int) length);
+                Utils.transferFile(channel, sos);
+              } else if (in instanceof ChunkedBuffer.ChunkInputStream) {
+                // send the chunks of the cached page as they are
+                length = in.available();
+                httpRes.setContentLength((int) length);
+                ((ChunkedBuffer.ChunkInputStream) in).writeTo(sos);
+              } else {
+                if (!inflate) {
+                  // the whole page is available in memory
+                  length = in.available();
+                  httpRes.setContentLength((int) length);
+                }
+                
+                Utils.copyStream(in, sos, false);
+              }
+            } finally {
+              in.close();
             }
             
-            Utils.copyStream(in, sos, false);
+            metrics.recordHit(source, length, stale);
             sos.flush();
             return;
           }
           
+          /* a page rendered now could block the cache after the headers have
+             been sent, so it can't be cached remotely */
+          if (validateCache) {
+            blockRemoteCaching(httpRes);
+          }
+          
           // otherwise, if cache is enabled, store the generated page
           if (cacheType != Configuration.NO_CACHE) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            OutputStream os = new GZIPOutputStream(baos);
-            CacheResponseWrapper wrapper = new CacheResponseWrapper(httpRes, os);
-            chain.doFilter(httpReq, wrapper);
-            wrapper.finishResponse();
-            // os.flush();
+            httpRes.setHeader("Vary", vary);
+            Path servedPath = siteMap.getServedPath(pagePath);
+            SingleFlight renderFlights = siteMap.getRenderFlights();
+            SingleFlight.Flight flight =
+                renderFlights.join(cacheKey.withPath(servedPath));
             
-            /* If WebUtils.setBlockCache has not been called while creating
-               the page, it can be cached */
-            if (!WebUtils.isCacheBlocked(httpReq)) {
-              if (cacheType == Configuration.IN_MEMORY_CACHE ||
-                  cacheType == Configuration.MIXED_CACHE) {
-                siteMap.cache(pageInfo.getPath(), baos.toByteArray());
+            // if the page is already being rendered, wait for it
+            if (!flight.isLeader()) {
+              CachedPage page = renderFlights.await(flight, RENDER_WAIT_TIME);
+              
+              if (page != null) {
+                ChunkedBuffer buffer = page.getBuffer(gzip);
+                
+                if (gzip) {
+                  httpRes.setHeader("Content-Encoding", "gzip");
+                }
+                
+                httpRes.setContentLength(buffer.size());
+                ServletOutputStream sos = response.getOutputStream();
+                buffer.writeTo(sos);
+                metrics.recordCoalesced(buffer.size());
+                sos.flush();
+                return;
               }
               
-              if (cacheType == Configuration.ON_DISK_CACHE ||
-                  cacheType == Configuration.MIXED_CACHE) {
-                File cacheFile = webSite.getRepositoryFile
-                    (siteMap.getServedPath(pagePath), CACHE_FILE_NAME);
-                cacheFile.getParentFile().mkdirs();
-                Utils.writeFully(cacheFile, baos.toByteArray());
+              flight = null; // the page must be rendered again
+            }
+            
+            CachedPage page = null;
+            
+            // the page is compressed while it is sent to the browser
+            PageCapture capture = new PageCapture(webSite.getConfiguration().
+                getCompressionLevel());
+            
+            try {
+              CacheResponseWrapper wrapper = new CacheResponseWrapper(httpRes,
+                  capture);
+              long startTime = System.currentTimeMillis();
+              chain.doFilter(httpReq, wrapper);
+              wrapper.finishResponse();
+              metrics.recordMiss(System.currentTimeMillis() - startTime,
+                  capture.getSize());
+              
+              CacheDependencies deps = WebUtils.getCacheDependencies(httpReq);
+              
+              /* If WebUtils.setBlockCache has not been called while creating
+                 the page, it can be cached, unless a file has been modified
+                 while the page was being created. Error pages are never
+                 cached, so they can't replace a stale page */
+              if (wrapper.getStatus() == HttpServletResponse.SC_OK &&
+                  !WebUtils.isCacheBlocked(httpReq) && deps.isUpToDate() &&
+                  (cacheKey.isDefault() ||
+                  pageInfo.addCacheVariant(cacheKey.getVariant()))) {
+                // both stores share the buffers of the page
+                page = capture.getPage();
+                pageInfo.setCacheDependencies(deps);
+                
+                if (cacheType == Configuration.IN_MEMORY_CACHE ||
+                    cacheType == Configuration.MIXED_CACHE ||
+                    cacheType == Configuration.OFF_HEAP_CACHE ||
+                    cacheType == Configuration.SEGMENT_CACHE) {
+                  siteMap.cache(cacheKey, page);
+                }
+                
+                if (cacheType == Configuration.ON_DISK_CACHE ||
+                    cacheType == Configuration.MIXED_CACHE) {
+                  writeCacheFile(webSite.getRepositoryFile(servedPath,
+                      WebUtils.getCacheFileName(variantId, false)),
+                      page.getBuffer(false));
+                  // written last, since its date is checked to validate both
+                  writeCacheFile(webSite.getRepositoryFile(servedPath,
+                      WebUtils.getCacheFileName(variantId, true)),
+                      page.getBuffer(true));
+                }
+              }
+            } finally {
+              if (page == null) {
+                capture.discard(); // the buffers can be reused
+              }
+              
+              if (flight != null) {
+                renderFlights.complete(flight, page);
               }
             }
             
             return;
           }
+        } else if (validateCache) {
+          blockRemoteCaching(httpRes);
         } // end of cache management
         
+        long startTime = System.currentTimeMillis();
         chain.doFilter(httpReq, httpRes);
+        
+        if (pageInfo != null && !isAdminPage) {
+          webSite.getCacheMetrics().recordUncacheable(
+              System.currentTimeMillis() - startTime);
+        }
+        
         webSite.updateSiteMap(false); // better here than nowhere :)
       } catch (Exception ex) {
         if (isAdminPage) {
@@ -479,39 +780,200 @@ public final class HitFilter implements Filter {
     }
   }
   
+  /**
+   * Returns the entity tag of a page cached on disk. The tag is computed once
+   * for each version of the cache file and stored in the page info.
+   */
+  private static String getCacheFileETag(PageInfo pageInfo, File cacheFile)
+      throws IOException {
+    long cacheTime = cacheFile.lastModified();
+    String eTag = pageInfo.getCacheETag(cacheFile.getName(), cacheTime);
+    
+    if (eTag == null) {
+      eTag = CachedPage.computeETag(readFile(cacheFile));
+      pageInfo.setCacheETag(eTag, cacheFile.getName(), cacheTime);
+    }
+    
+    return eTag;
+  }
+  
+  /**
+   * Checks the conditional headers of the request against the validators of
+   * a cached page. <code>If-None-Match</code> takes precedence over
+   * <code>If-Modified-Since</code>, as required by HTTP/1.1.
+   */
+  private static boolean isNotModified(HttpServletRequest httpReq, String eTag,
+      long lastModified) {
+    String ifNoneMatch = httpReq.getHeader("If-None-Match");
+    
+    if (ifNoneMatch != null) {
+      StringTokenizer st = new StringTokenizer(ifNoneMatch, ",");
+      
+      while (st.hasMoreTokens()) {
+        String tag = st.nextToken().trim();
+        
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2); // weak comparison is fine for GET
+        }
+        
+        if (tag.equals("*") || tag.equals(eTag)) {
+          return true;
+        }
+      }
+      
+      return false;
+    }
+    
+    long ifModifiedSince;
+    
+    try {
+      ifModifiedSince = httpReq.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException ex) {
+      return false;
+    }
+    
+    // HTTP dates have no milliseconds
+    return ifModifiedSince != -1L && lastModified / 1000L <= ifModifiedSince / 1000L;
+  }
+  
+  /**
+   * Reads a page cached on disk. Files cached by older versions have no
+   * uncompressed copy, so the page is uncompressed once here.
+   */
+  private static CachedPage readCachedPage(File cacheFile, File identityFile)
+      throws IOException {
+    long created = cacheFile.lastModified();
+    byte[] gzipBytes = readFile(cacheFile);
+    byte[] identityBytes = (identityFile == null) ?
+        Utils.readFully(new GZIPInputStream(new ByteArrayInputStream(gzipBytes))) :
+        readFile(identityFile);
+    return new CachedPage(gzipBytes, identityBytes, created);
+  }
+  
+  private static void writeCacheFile(File file, ChunkedBuffer buffer)
+      throws IOException {
+    FileOutputStream fos = new FileOutputStream(file);
+    
+    try {
+      buffer.writeTo(fos);
+    } finally {
+      fos.close();
+    }
+  }
+  
+  private static byte[] readFile(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    
+    try {
+      // read into an array of the right size, with no intermediate copies
+      FileChannel channel = in.getChannel();
+      ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+      
+      while (buf.hasRemaining()) {
+        if (channel.read(buf) == -1) {
+          break; // the file has been truncated
+        }
+      }
+      
+      return buf.hasRemaining() ?
+          Arrays.copyOf(buf.array(), buf.position()) : buf.array();
+    } finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Waits for the main website to be created by the bootstrap thread, for at
+   * most {@link #READY_WAIT} milliseconds.
+   */
+  private boolean isRootSiteReady() {
+    try {
+      return rootSiteReady.await(READY_WAIT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+  
+  /**
+   * Answers that the website is not ready yet and the request should be
+   * repeated later.
+   */
+  private static void sendUnavailable(HttpServletResponse httpRes)
+      throws IOException {
+    blockRemoteCaching(httpRes);
+    httpRes.setHeader("Retry-After", Integer.toString(RETRY_AFTER));
+    httpRes.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+        "The site is starting, please retry later");
+  }
+  
   /**
    * Returns the main website instance. It will be created if not already done.
+   * The lock is taken only to create the first instance: when the instance is
+   * replaced, requests keep using the current one until the new one is ready.
+   * The replaced instance, together with its virtual websites, is closed
+   * before the new one is created, so they never write the same files.
    */
   public static WebSite getRootSite(ServletContext sc, boolean alwaysCreate) {
-    WebSite rootSite = (WebSite) sc.getAttribute(ROOT_WEBSITE);
+    WebSite rootSite;
     
-    if (rootSite == null || alwaysCreate) {
-      File rootFile = new File(sc.getRealPath("/"));
-      Path cmsPath = new CMSDirectoryFinder(rootFile, false).getCMSPath();
-      boolean multisite = false;
-      File sitesDir = new File(rootFile, cmsPath + "/sites");
-      
-      if (sitesDir.isDirectory()) {
-        File[] dirs = sitesDir.listFiles();
+    if (alwaysCreate) {
+      synchronized (rootSiteRebuildLock) {
+        WebSite oldSite = (WebSite) sc.getAttribute(ROOT_WEBSITE);
         
-        for (int i = 0; i < dirs.length; i++) {
-          if (dirs[i].isDirectory()) {
-            multisite = true;
-          }
+        if (oldSite != null) {
+          oldSite.close();
+        }
+        
+        rootSite = createRootSite(sc);
+        
+        synchronized (rootSiteLock) {
+          sc.setAttribute(ROOT_WEBSITE, rootSite);
         }
       }
       
-      rootSite = multisite ?
-        MainWebSite.create(sc, WebUtils.getWelcomeFiles(sc), rootFile,
-          Path.ROOT, cmsPath) :
-        WebSite.create(sc, WebUtils.getWelcomeFiles(sc), rootFile,
-          Path.ROOT, cmsPath);
-      sc.setAttribute(ROOT_WEBSITE, rootSite);
+      return rootSite;
+    }
+    
+    rootSite = (WebSite) sc.getAttribute(ROOT_WEBSITE);
+    
+    if (rootSite == null) {
+      synchronized (rootSiteLock) {
+        rootSite = (WebSite) sc.getAttribute(ROOT_WEBSITE);
+        
+        if (rootSite == null) {
+          rootSite = createRootSite(sc);
+          sc.setAttribute(ROOT_WEBSITE, rootSite);
+        }
+      }
     }
     
     return rootSite;
   }
   
+  private static WebSite createRootSite(ServletContext sc) {
+    File rootFile = new File(sc.getRealPath("/"));
+    Path cmsPath = new CMSDirectoryFinder(rootFile, false).getCMSPath();
+    boolean multisite = false;
+    File sitesDir = new File(rootFile, cmsPath + "/sites");
+    
+    if (sitesDir.isDirectory()) {
+      File[] dirs = sitesDir.listFiles();
+      
+      for (int i = 0; i < dirs.length; i++) {
+        if (dirs[i].isDirectory()) {
+          multisite = true;
+        }
+      }
+    }
+    
+    return multisite ?
+      MainWebSite.create(sc, WebUtils.getWelcomeFiles(sc), rootFile,
+        Path.ROOT, cmsPath) :
+      WebSite.create(sc, WebUtils.getWelcomeFiles(sc), rootFile,
+        Path.ROOT, cmsPath);
+  }
+  
   /**
    * Sets some headers to discourage remote caching of pages.
    */
@@ -524,6 +986,19 @@ public final class HitFilter implements Filter {
     httpRes.setDateHeader("Expires", -1);
   }
   
+  /**
+   * Sets the validators of a cached page and lets browsers and proxies keep
+   * it for <code>maxAge</code> seconds. If <code>maxAge</code> is zero, the
+   * page must be revalidated at each request.
+   */
+  public static void allowRemoteCaching(HttpServletResponse httpRes,
+      String eTag, long lastModified, int maxAge) {
+    httpRes.setHeader("ETag", eTag);
+    httpRes.setDateHeader("Last-Modified", lastModified);
+    httpRes.setHeader("Cache-Control", maxAge > 0 ?
+        "public, max-age=" + maxAge : "no-cache");
+  }
+  
   public static Path getPreferredLanguage(HttpServletRequest request) throws IOException {
     WebSite webSite = (WebSite) request.getAttribute(HitFilter.WEBSITE_ATTRIBUTE);
     List available = webSite.getSiteMap().getLangList();
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.meshcms.util.Path;
+
+/**
+ * Append-only file of the hits added to the pages since the last site map
+ * snapshot. Hits are written in batches; each batch is checked with a CRC,
+ * so a batch that has not been completely written before a crash is ignored
+ * when the journal is read.
+ *
+ * <p>The file starts with the generation of the snapshot it refers to: when
+ * a new snapshot is written, the journal is started again with the new
+ * generation. A journal whose generation does not match the snapshot is not
+ * read, since its hits are already included in the snapshot.</p>
+ *
+ * <p>The path of a page is written only the first time the page is found in
+ * the journal, together with a number used for the following records.</p>
+ *
+ * @see SiteMapSnapshot
+ */
+public class HitJournal {
+  private static final int MAGIC = 0x4D534A4E; // MSJN
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 16;
+  private static final int PATH_RECORD = 1;
+  private static final int HITS_RECORD = 2;
+
+  private File file;
+  private boolean open;
+  private Map ids;
+  private ByteArrayOutputStream buffer;
+  private DataOutputStream batch;
+  private int records;
+
+  public HitJournal(File file) {
+    this.file = file;
+    ids = new HashMap();
+    buffer = new ByteArrayOutputStream();
+    batch = new DataOutputStream(buffer);
+  }
+
+  /**
+   * Returns the file that contains the journal.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the current size of the journal file.
+   */
+  public long getLength() {
+    return file.length();
+  }
+
+  /**
+   * Returns true if the journal can be appended to without being started
+   * again.
+   */
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Reads the journal and adds its hits to the pages.
+   *
+   * @param generation the generation of the snapshot the pages have been read
+   * from
+   * @param pages a map of the pages by their path
+   *
+   * @return the number of hit records found, or -1 if the journal does not
+   * refer to that generation
+   */
+  public int replay(long generation, Map pages) throws IOException {
+    open = false;
+    ids.clear();
+
+    if (file.length() < HEADER_LENGTH) {
+      return -1;
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try {
+      if (raf.readInt() != MAGIC || raf.readInt() != VERSION ||
+          raf.readLong() != generation) {
+        return -1;
+      }
+
+      long validLength = raf.getFilePointer();
+      Map paths = new HashMap();
+      CRC32 crc = new CRC32();
+      int count = 0;
+
+      try {
+        while (true) {
+          int length = raf.readInt();
+
+          if (length <= 0 || length > raf.length() - raf.getFilePointer()) {
+            break; // incomplete batch
+          }
+
+          byte[] b = new byte[length];
+          raf.readFully(b);
+          crc.reset();
+          crc.update(b, 0, length);
+
+          if (raf.readInt() != (int) crc.getValue()) {
+            break;
+          }
+
+          DataInputStream in =
+              new DataInputStream(new ByteArrayInputStream(b));
+
+          while (in.available() > 0) {
+            int type = in.readByte();
+            Integer id = new Integer(in.readInt());
+
+            if (type == PATH_RECORD) {
+              Path path = new Path(in.readUTF());
+              paths.put(id, path);
+              ids.put(path, id);
+            } else {
+              long day = in.readLong();
+              int hits = in.readInt();
+              PageInfo pageInfo = (PageInfo) pages.get(paths.get(id));
+
+              if (pageInfo != null) {
+                pageInfo.addHits(day, hits);
+              }
+
+              count++;
+            }
+          }
+
+          validLength = raf.getFilePointer();
+        }
+      } catch (EOFException ex) {}
+
+      // batches written only in part are removed, so new ones can follow
+      raf.setLength(validLength);
+      open = true;
+      return count;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Starts the journal again with the given generation. All previous hits
+   * are removed.
+   */
+  public void reset(long generation) throws IOException {
+    open = false;
+    ids.clear();
+    buffer.reset();
+    records = 0;
+    FileOutputStream fos = new FileOutputStream(file);
+
+    try {
+      DataOutputStream out = new DataOutputStream(fos);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(generation);
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+
+    open = true;
+  }
+
+  /**
+   * Adds some hits to the current batch.
+   */
+  public void add(Path path, long day, int hits) throws IOException {
+    Integer id = (Integer) ids.get(path);
+
+    if (id == null) {
+      id = new Integer(ids.size());
+      ids.put(path, id);
+      batch.writeByte(PATH_RECORD);
+      batch.writeInt(id.intValue());
+      batch.writeUTF(path.toString());
+    }
+
+    batch.writeByte(HITS_RECORD);
+    batch.writeInt(id.intValue());
+    batch.writeLong(day);
+    batch.writeInt(hits);
+    records++;
+  }
+
+  /**
+   * Appends the current batch to the file and waits for it to be written to
+   * the disk.
+   *
+   * @return the number of hit records written
+   */
+  public int commit() throws IOException {
+    int count = records;
+
+    if (count == 0) {
+      return 0;
+    }
+
+    batch.flush();
+    byte[] b = buffer.toByteArray();
+    buffer.reset();
+    records = 0;
+    CRC32 crc = new CRC32();
+    crc.update(b, 0, b.length);
+    ByteArrayOutputStream record = new ByteArrayOutputStream(b.length + 8);
+    DataOutputStream out = new DataOutputStream(record);
+    out.writeInt(b.length);
+    out.write(b);
+    out.writeInt((int) crc.getValue());
+    FileOutputStream fos = null;
+
+    try {
+      fos = new FileOutputStream(file, true);
+      record.writeTo(fos); // a single write for the whole batch
+      fos.getFD().sync();
+    } catch (IOException ex) {
+      open = false; // the journal must be started again
+      throw ex;
+    } finally {
+      if (fos != null) {
+        fos.close();
+      }
+    }
+
+    return count;
+  }
+}
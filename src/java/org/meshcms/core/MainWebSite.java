@@ -20,14 +20,40 @@
 package org.meshcms.core;
 
 import java.io.File;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletRequest;
 import org.meshcms.util.Path;
 
 public class MainWebSite extends WebSite {
-  private SortedMap virtualSitesMap;
+  /**
+   * Interval between two checks of the virtual websites to be removed from
+   * memory, in milliseconds. A website is never removed if it has been
+   * requested more recently.
+   */
+  public static final long EVICTION_INTERVAL = 60000L;
+
+  /**
+   * Maximum number of virtual websites initialized at the same time.
+   */
+  public static final int LOADER_THREADS = 4;
+
+  private ConcurrentMap virtualSitesMap;
+  private ThreadPoolExecutor loader;
+  private ScheduledFuture evictionTask;
   private MultiSiteManager multiSiteManager;
 
   /**
@@ -42,14 +68,34 @@ public class MainWebSite extends WebSite {
 
   /**
    * Initializes the website. After calling the method of the superclass,
-   * initializes the virtual websites.
+   * maps the domains to the virtual websites. Virtual websites are created
+   * when first requested and removed from memory when they are not requested
+   * for the time set in the {@link MultiSiteManager}, or when they use more
+   * memory than allowed.
    */
   protected void init(ServletContext sc, String[] welcomeFiles, File rootFile,
       Path rootPath, Path cmsPath) {
     super.init(sc, welcomeFiles, rootFile, rootPath, cmsPath);
 
     if (virtualSitesMap == null) {
-      virtualSitesMap = new TreeMap();
+      virtualSitesMap = new ConcurrentHashMap();
+      loader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 60L,
+          TimeUnit.SECONDS, new LinkedBlockingQueue(), new ThreadFactory() {
+        private int count;
+
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Virtual site loader " + (++count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      loader.allowCoreThreadTimeOut(true);
+      evictionTask = BackgroundScheduler.getInstance().schedule(virtualSitesMap,
+          new Runnable() {
+        public void run() {
+          evictSites();
+        }
+      }, EVICTION_INTERVAL);
     }
 
     if (multiSiteManager == null) {
@@ -62,10 +108,11 @@ public class MainWebSite extends WebSite {
   /**
    * Returns the right website for the given request. Since this is a main
    * website, it will return the website itself or a virtual website, according
-   * to the requested host name.
+   * to the requested host name. A virtual website might not be
+   * {@link VirtualWebSite#isReady ready} yet.
    */
   public WebSite getWebSite(ServletRequest request) {
-    return multiSiteManager.getWebSite(request.getServerName());
+    return multiSiteManager.getWebSite(request.getServerName(), false);
   }
 
   public String getTypeDescription() {
@@ -78,19 +125,194 @@ public class MainWebSite extends WebSite {
    * directory does not exist (this is subject to change).
    */
   public VirtualWebSite getVirtualSite(String dirName) {
+    return getVirtualSite(dirName, true);
+  }
+
+  /**
+   * Returns the virtual website instance related to the given directory name.
+   * If not found, that instance is created and initialized in background,
+   * together with at most {@link #LOADER_THREADS} - 1 other websites.
+   *
+   * @param wait if true, waits for the website to be ready; if false, the
+   * returned website might not be ready yet. A website whose initialization
+   * has failed is {@link VirtualWebSite#isFailed marked as failed}
+   */
+  public VirtualWebSite getVirtualSite(final String dirName, boolean wait) {
     VirtualWebSite vws = (VirtualWebSite) virtualSitesMap.get(dirName);
 
     if (vws == null) {
-      Path sitePath = virtualSitesPath.add(dirName);
-      File root = getFile(sitePath);
-      Path cms = new CMSDirectoryFinder(root, true).getCMSPath();
-      vws = VirtualWebSite.create(this, sitePath, cms);
-      virtualSitesMap.put(dirName, vws);
+      synchronized (virtualSitesMap) {
+        vws = (VirtualWebSite) virtualSitesMap.get(dirName);
+
+        if (vws == null) {
+          final VirtualWebSite newSite = new VirtualWebSite();
+          virtualSitesMap.put(dirName, newSite);
+          getCacheMetrics().recordSiteLoad();
+
+          try {
+            loader.execute(new Runnable() {
+              public void run() {
+                try {
+                  newSite.init(MainWebSite.this, virtualSitesPath.add(dirName),
+                      getVirtualSiteCMSPath(dirName));
+                } catch (RuntimeException ex) {
+                  // the next request will try to load the website again
+                  log("Can't initialize " + virtualSitesPath.add(dirName), ex);
+                  virtualSitesMap.remove(dirName, newSite);
+                  newSite.setFailed();
+                  return;
+                }
+
+                // the main website has been closed while loading this one
+                if (isClosed() && virtualSitesMap.remove(dirName, newSite)) {
+                  newSite.close();
+                }
+              }
+            });
+          } catch (RejectedExecutionException ex) {
+            // the main website has been closed
+            virtualSitesMap.remove(dirName, newSite);
+            newSite.setFailed();
+          }
+
+          vws = newSite;
+        }
+      }
+    }
+
+    vws.touch();
+
+    if (wait) {
+      vws.awaitReady();
     }
 
     return vws;
   }
 
+  /**
+   * Returns the CMS path of the virtual website related to the given
+   * directory name, or null if that website has no CMS. The website is not
+   * loaded.
+   */
+  public Path getVirtualSiteCMSPath(String dirName) {
+    File root = getFile(virtualSitesPath.add(dirName));
+    return new CMSDirectoryFinder(root, true).getCMSPath();
+  }
+
+  /**
+   * Returns the number of virtual websites currently loaded in memory.
+   */
+  public int getResidentSiteCount() {
+    return virtualSitesMap.size();
+  }
+
+  /**
+   * Returns an estimate of the memory used by the virtual websites currently
+   * loaded, in bytes.
+   */
+  public long getResidentSiteBytes() {
+    long bytes = 0L;
+    Iterator iter = virtualSitesMap.values().iterator();
+
+    while (iter.hasNext()) {
+      bytes += ((VirtualWebSite) iter.next()).getMemoryFootprint();
+    }
+
+    return bytes;
+  }
+
+  /**
+   * Removes from memory the virtual websites that have not been requested
+   * for too long, then the least recently requested ones until the others
+   * fit in the memory budget.
+   */
+  void evictSites() {
+    long idleTime = multiSiteManager.getSiteIdleTimeMillis();
+    long budget = multiSiteManager.getSitesMemoryBudgetBytes();
+
+    if (idleTime <= 0L && budget <= 0L) {
+      return;
+    }
+
+    synchronized (virtualSitesMap) {
+      // access times are copied, since they can change while sorting
+      List residents = new ArrayList(virtualSitesMap.size());
+      Iterator iter = virtualSitesMap.entrySet().iterator();
+      long total = 0L;
+
+      while (iter.hasNext()) {
+        Resident resident = new Resident((Map.Entry) iter.next());
+        residents.add(resident);
+        total += resident.footprint;
+      }
+
+      Collections.sort(residents, new Comparator() {
+        public int compare(Object o1, Object o2) {
+          long t1 = ((Resident) o1).lastAccess;
+          long t2 = ((Resident) o2).lastAccess;
+          return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+        }
+      });
+
+      long now = System.currentTimeMillis();
+
+      for (int i = 0; i < residents.size(); i++) {
+        Resident resident = (Resident) residents.get(i);
+        long idle = now - resident.lastAccess;
+
+        if (idle < EVICTION_INTERVAL) {
+          break; // the others have been requested even more recently
+        }
+
+        if (!resident.webSite.isReady()) {
+          continue;
+        }
+
+        if ((idleTime > 0L && idle > idleTime) ||
+            (budget > 0L && total > budget)) {
+          virtualSitesMap.remove(resident.dirName);
+          resident.webSite.close();
+          total -= resident.footprint;
+          getCacheMetrics().recordSiteEviction();
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases the resources of this website and of all its virtual websites:
+   * the eviction task is cancelled and no more virtual websites are loaded.
+   * Websites still being initialized are closed as soon as they are ready.
+   */
+  void close() {
+    super.close();
+
+    if (evictionTask != null) {
+      evictionTask.cancel(false);
+    }
+
+    if (loader != null) {
+      loader.shutdown();
+    }
+
+    if (virtualSitesMap != null) {
+      synchronized (virtualSitesMap) {
+        Iterator iter = virtualSitesMap.entrySet().iterator();
+
+        while (iter.hasNext()) {
+          Map.Entry entry = (Map.Entry) iter.next();
+          VirtualWebSite vws = (VirtualWebSite) entry.getValue();
+
+          // the loader closes the websites that are not ready yet
+          if (vws.isReady() &&
+              virtualSitesMap.remove(entry.getKey(), vws)) {
+            vws.close();
+          }
+        }
+      }
+    }
+  }
+
   /**
    * Returns the MultiSiteManager instance.
    */
@@ -102,7 +324,21 @@ public class MainWebSite extends WebSite {
     super.updateSiteMap(force);
 
     if (multiSiteManager != null) {
-      multiSiteManager.initDomainsMap();
+      multiSiteManager.updateDomainsMap();
+    }
+  }
+
+  private static class Resident {
+    private Object dirName;
+    private VirtualWebSite webSite;
+    private long lastAccess;
+    private long footprint;
+
+    private Resident(Map.Entry entry) {
+      dirName = entry.getKey();
+      webSite = (VirtualWebSite) entry.getValue();
+      lastAccess = webSite.getLastAccess();
+      footprint = webSite.getMemoryFootprint();
     }
   }
 
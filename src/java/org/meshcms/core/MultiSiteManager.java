@@ -23,27 +23,46 @@ import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.SortedMap;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import org.meshcms.util.Utils;
 
 public class MultiSiteManager implements Serializable {
+  /**
+   * Default value of the time after which an idle virtual website is removed
+   * from memory, in minutes.
+   */
+  public static final int DEFAULT_SITE_IDLE_TIME = 60;
+
+  /**
+   * Minimum time between two checks of the changes of the sites, in
+   * milliseconds.
+   */
+  public static final long CHECK_INTERVAL = 1000L;
+
   private transient MainWebSite mainWebSite;
-  private transient SortedMap domainsMap;
+  private transient volatile DomainRouter router;
   private transient int siteCount;
+  private transient long sitesFileTime;
+  private transient long sitesDirTime;
+  private transient volatile long lastCheck;
 
   private boolean manageTripleWs;
   private boolean useDirsAsDomains;
   private String mainWebSiteDomains;
   private Properties domains;
   private List jspBlocks;
+  private int siteIdleTime;
+  private int sitesMemoryBudget;
 
   private MultiSiteManager() {
     domains = new Properties();
     jspBlocks = new ArrayList();
     manageTripleWs = true;
     useDirsAsDomains = true;
+    siteIdleTime = DEFAULT_SITE_IDLE_TIME;
   }
   
   public List getJSPBlocks() {
@@ -74,6 +93,39 @@ public class MultiSiteManager implements Serializable {
     this.useDirsAsDomains = useDirsAsDomains;
   }
 
+  /**
+   * Returns the time after which a virtual website that has not been
+   * requested is removed from memory, in minutes. 0 means never.
+   */
+  public int getSiteIdleTime() {
+    return siteIdleTime;
+  }
+
+  public void setSiteIdleTime(int siteIdleTime) {
+    this.siteIdleTime = Math.max(siteIdleTime, 0);
+  }
+
+  public long getSiteIdleTimeMillis() {
+    return siteIdleTime * 60000L;
+  }
+
+  /**
+   * Returns the memory that can be used by the virtual websites loaded at the
+   * same time, in megabytes. When it is exceeded, the least recently
+   * requested websites are removed from memory. 0 means no limit.
+   */
+  public int getSitesMemoryBudget() {
+    return sitesMemoryBudget;
+  }
+
+  public void setSitesMemoryBudget(int sitesMemoryBudget) {
+    this.sitesMemoryBudget = Math.max(sitesMemoryBudget, 0);
+  }
+
+  public long getSitesMemoryBudgetBytes() {
+    return sitesMemoryBudget * (long) Utils.MBYTE;
+  }
+
   public void setDomains(String dir, String domainNames) {
     if (domainNames != null) {
       domains.setProperty(dir, domainNames);
@@ -84,20 +136,29 @@ public class MultiSiteManager implements Serializable {
     return domains.getProperty(dir.toLowerCase());
   }
 
-  public int initDomainsMap() {
-    domainsMap = new TreeMap();
-    File[] dirs = mainWebSite.getFile(mainWebSite.getVirtualSitesPath()).listFiles();
-    siteCount = 0;
+  /**
+   * Maps the domains to the virtual websites. Virtual websites are not
+   * loaded: their directory names are mapped instead. The new map replaces
+   * the old one when it is complete.
+   */
+  public synchronized int initDomainsMap() {
+    Map domainsMap = new TreeMap();
+    File sitesDir = mainWebSite.getFile(mainWebSite.getVirtualSitesPath());
+    sitesFileTime = mainWebSite.getFile(mainWebSite.getSitesFilePath()).
+        lastModified();
+    sitesDirTime = sitesDir.lastModified();
+    lastCheck = System.currentTimeMillis();
+    File[] dirs = sitesDir.listFiles();
+    int siteCount = 0;
 
     for (int i = 0; i < dirs.length; i++) {
       if (dirs[i].isDirectory()) {
         siteCount++;
         String dirName = dirs[i].getName().toLowerCase();
-        VirtualWebSite webSite = mainWebSite.getVirtualSite(dirName);
-        parseDomains(domainsMap, webSite, getDomains(dirName));
+        parseDomains(domainsMap, dirName, getDomains(dirName));
 
         if (useDirsAsDomains) {
-          parseDomains(domainsMap, webSite, dirName);
+          parseDomains(domainsMap, dirName, dirName);
         }
       }
     }
@@ -108,10 +169,43 @@ public class MultiSiteManager implements Serializable {
       mainWebSiteDomains = null;
     }
 
+    this.siteCount = siteCount;
+    router = new DomainRouter(domainsMap);
     return domainsMap.size();
   }
 
-  private boolean parseDomains(SortedMap map, WebSite webSite, String domainNames) {
+  /**
+   * Maps the domains again if the sites file or the directory of the
+   * virtual websites have been modified. They are checked at most once every
+   * {@link #CHECK_INTERVAL} milliseconds.
+   */
+  public void updateDomainsMap() {
+    long now = System.currentTimeMillis();
+
+    if (now - lastCheck < CHECK_INTERVAL) {
+      return;
+    }
+
+    synchronized (this) {
+      if (now - lastCheck < CHECK_INTERVAL) {
+        return;
+      }
+
+      lastCheck = now;
+
+      if (mainWebSite.getFile(mainWebSite.getSitesFilePath()).lastModified() !=
+          sitesFileTime || mainWebSite.getFile(mainWebSite.
+          getVirtualSitesPath()).lastModified() != sitesDirTime) {
+        initDomainsMap();
+      }
+    }
+  }
+
+  /**
+   * Maps the given domains to <code>target</code>, that is the main website
+   * or the directory name of a virtual website.
+   */
+  private boolean parseDomains(Map map, Object target, String domainNames) {
     boolean result = false;
 
     if (domainNames != null) {
@@ -119,11 +213,11 @@ public class MultiSiteManager implements Serializable {
 
       while (st.hasMoreTokens()) {
         String token = st.nextToken();
-        map.put(token, webSite);
+        map.put(token, target);
         result = true;
 
-        if (manageTripleWs) {
-          map.put("www." + token, webSite);
+        if (manageTripleWs && !token.startsWith(DomainRouter.WILDCARD)) {
+          map.put("www." + token, target);
         }
       }
     }
@@ -132,13 +226,27 @@ public class MultiSiteManager implements Serializable {
   }
 
   public WebSite getWebSite(String domain) {
-    WebSite webSite = (WebSite) domainsMap.get(domain.toLowerCase());
+    return getWebSite(domain, true);
+  }
+
+  /**
+   * Returns the website mapped to the given domain, or null if none.
+   *
+   * @param wait if false, a virtual website is returned even if it is not
+   * ready yet
+   */
+  public WebSite getWebSite(String domain, boolean wait) {
+    Object target = router.get(domain);
+
+    if (target instanceof String) {
+      return mainWebSite.getVirtualSite((String) target, wait);
+    }
 
-    if (webSite == null && mainWebSiteDomains == null) {
-      webSite = mainWebSite;
+    if (target == null && mainWebSiteDomains == null) {
+      target = mainWebSite;
     }
 
-    return webSite;
+    return (WebSite) target;
   }
   
   public int getSiteCount() {
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.meshcms.util.Utils;
+
+/**
+ * Stores cached pages outside of the Java heap. Memory is allocated in slabs
+ * of direct <code>ByteBuffer</code>s and pages are appended to the current
+ * slab. When the budget is exhausted, the slab with less live data is either
+ * compacted (if that leaves enough room for the new page) or emptied.
+ *
+ * <p>A slab is never reused while a stream returned by {@link #openStream} is
+ * reading from it, so a page being served can't be overwritten.</p>
+ */
+public class OffHeapPageStore {
+  /**
+   * Default size of a slab.
+   */
+  public static final int DEFAULT_SLAB_SIZE = Utils.MBYTE;
+
+  private long maxBytes;
+  private int slabSize;
+  private int maxSlabs;
+  private List slabs;
+  private Slab current;
+  private Map entries;
+
+  private long compactionCount;
+  private long evictionCount;
+  private long rejectionCount;
+
+  /**
+   * Creates a store that will use up to <code>maxBytes</code> bytes of
+   * direct memory, allocated in slabs of {@link #DEFAULT_SLAB_SIZE} bytes.
+   */
+  public OffHeapPageStore(long maxBytes) {
+    this(maxBytes, DEFAULT_SLAB_SIZE);
+  }
+
+  public OffHeapPageStore(long maxBytes, int slabSize) {
+    this.maxBytes = maxBytes;
+    this.slabSize = slabSize;
+    maxSlabs = (int) Math.max(maxBytes / slabSize, 1L);
+    slabs = new ArrayList();
+    entries = new HashMap();
+  }
+
+  /**
+   * Stores a page. Both versions of the page are stored one after the other
+   * in the same slab. Pages larger than a slab are not stored.
+   *
+   * @return true if the page has been stored
+   */
+  public synchronized boolean put(Object key, CachedPage page) {
+    remove(key);
+    int length = page.getLength();
+
+    if (length > slabSize) {
+      rejectionCount++;
+      return false;
+    }
+
+    Slab slab = allocate(length);
+
+    if (slab == null) {
+      rejectionCount++;
+      return false;
+    }
+
+    ByteBuffer dst = slab.buffer.duplicate();
+    dst.position(slab.top);
+    page.getBuffer(true).writeTo(dst);
+    page.getBuffer(false).writeTo(dst);
+    Entry entry = new Entry(key, slab, slab.top, length,
+        page.getBuffer(true).size(), page.getETag(), page.getCreated());
+    slab.top += length;
+    slab.liveBytes += length;
+    slab.entries.add(entry);
+    entries.put(key, entry);
+    return true;
+  }
+
+  /**
+   * Removes a page from the store. Its space will be reclaimed when the slab
+   * is compacted or emptied.
+   */
+  public synchronized void remove(Object key) {
+    Entry entry = (Entry) entries.remove(key);
+
+    if (entry != null) {
+      entry.slab.entries.remove(entry);
+      entry.slab.liveBytes -= entry.length;
+    }
+  }
+
+  public synchronized boolean contains(Object key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Returns the time the stored page has been rendered, or -1 if the page is
+   * not available.
+   *
+   * @see CachedPage#getCreated
+   */
+  public synchronized long getCreated(Object key) {
+    Entry entry = (Entry) entries.get(key);
+    return entry == null ? -1L : entry.created;
+  }
+
+  /**
+   * Returns a stream that reads the stored page directly from the slab, or
+   * null if the page is not available. The stream must be closed to release
+   * the slab.
+   *
+   * @param gzip true to read the compressed version of the page
+   */
+  public synchronized PageInputStream openStream(Object key, boolean gzip) {
+    Entry entry = (Entry) entries.get(key);
+
+    if (entry == null) {
+      return null;
+    }
+
+    ByteBuffer src = entry.slab.buffer.duplicate();
+
+    if (gzip) {
+      src.limit(entry.offset + entry.gzipLength);
+      src.position(entry.offset);
+    } else {
+      src.limit(entry.offset + entry.length);
+      src.position(entry.offset + entry.gzipLength);
+    }
+
+    entry.slab.readers++;
+    return new SlabInputStream(entry.slab, src, entry.eTag, entry.created);
+  }
+
+  /**
+   * Removes all pages. Slabs are kept for reuse.
+   */
+  public synchronized void clear() {
+    entries.clear();
+
+    for (int i = 0; i < slabs.size(); i++) {
+      Slab slab = (Slab) slabs.get(i);
+      slab.entries.clear();
+      slab.liveBytes = 0;
+    }
+
+    current = null;
+  }
+
+  /**
+   * Returns the number of stored pages.
+   */
+  public synchronized int getPageCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the total size of the stored pages.
+   */
+  public synchronized long getUsedBytes() {
+    long used = 0L;
+
+    for (int i = 0; i < slabs.size(); i++) {
+      used += ((Slab) slabs.get(i)).liveBytes;
+    }
+
+    return used;
+  }
+
+  /**
+   * Returns the amount of direct memory allocated so far.
+   */
+  public synchronized long getAllocatedBytes() {
+    return slabs.size() * (long) slabSize;
+  }
+
+  /**
+   * Returns the budget of this store. Since memory is allocated in slabs, up
+   * to one slab more could be used when the budget is very small.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getCompactionCount() {
+    return compactionCount;
+  }
+
+  /**
+   * Returns the number of pages removed to make room for other pages.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getRejectionCount() {
+    return rejectionCount;
+  }
+
+  /**
+   * Finds a slab with at least <code>length</code> free bytes at its end.
+   */
+  private Slab allocate(int length) {
+    if (current != null && slabSize - current.top >= length) {
+      return current;
+    }
+
+    for (int i = 0; i < slabs.size(); i++) {
+      Slab slab = (Slab) slabs.get(i);
+
+      if (slab.entries.isEmpty() && slab.readers == 0) {
+        slab.top = 0;
+        return current = slab;
+      }
+    }
+
+    if (slabs.size() < maxSlabs) {
+      current = new Slab(ByteBuffer.allocateDirect(slabSize));
+      slabs.add(current);
+      return current;
+    }
+
+    Slab victim = null;
+
+    for (int i = 0; i < slabs.size(); i++) {
+      Slab slab = (Slab) slabs.get(i);
+
+      if (slab.readers == 0 &&
+          (victim == null || slab.liveBytes < victim.liveBytes)) {
+        victim = slab;
+      }
+    }
+
+    if (victim == null) {
+      return null; // all slabs are being read
+    }
+
+    if (slabSize - victim.liveBytes >= length) {
+      compact(victim);
+    } else {
+      evictionCount += victim.entries.size();
+      Iterator iter = victim.entries.iterator();
+
+      while (iter.hasNext()) {
+        entries.remove(((Entry) iter.next()).key);
+      }
+
+      victim.entries.clear();
+      victim.liveBytes = 0;
+      victim.top = 0;
+    }
+
+    return current = victim;
+  }
+
+  /**
+   * Moves the live pages of the slab to its beginning. Pages are moved in
+   * order of offset, so a page is never copied over data not moved yet.
+   */
+  private void compact(Slab slab) {
+    List list = new ArrayList(slab.entries);
+    Collections.sort(list, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return ((Entry) o1).offset - ((Entry) o2).offset;
+      }
+    });
+
+    byte[] buf = new byte[Utils.BUFFER_SIZE];
+    ByteBuffer src = slab.buffer.duplicate();
+    ByteBuffer dst = slab.buffer.duplicate();
+    int top = 0;
+
+    for (int i = 0; i < list.size(); i++) {
+      Entry entry = (Entry) list.get(i);
+
+      if (entry.offset != top) {
+        src.position(entry.offset);
+        dst.position(top);
+
+        for (int done = 0; done < entry.length; ) {
+          int n = Math.min(buf.length, entry.length - done);
+          src.get(buf, 0, n);
+          dst.put(buf, 0, n);
+          done += n;
+        }
+
+        entry.offset = top;
+      }
+
+      top += entry.length;
+    }
+
+    slab.top = top;
+    compactionCount++;
+  }
+
+  private synchronized void release(Slab slab) {
+    slab.readers--;
+  }
+
+  private static class Slab {
+    ByteBuffer buffer;
+    int top;
+    int liveBytes;
+    int readers;
+    Set entries;
+
+    Slab(ByteBuffer buffer) {
+      this.buffer = buffer;
+      entries = new HashSet();
+    }
+  }
+
+  private static class Entry {
+    Object key;
+    Slab slab;
+    int offset;
+    int length;
+    int gzipLength;
+    String eTag;
+    long created;
+
+    Entry(Object key, Slab slab, int offset, int length, int gzipLength,
+        String eTag, long created) {
+      this.key = key;
+      this.slab = slab;
+      this.offset = offset;
+      this.length = length;
+      this.gzipLength = gzipLength;
+      this.eTag = eTag;
+      this.created = created;
+    }
+  }
+
+  /**
+   * Reads a page from a slab, which is released when the stream is closed.
+   */
+  private class SlabInputStream extends PageInputStream {
+    private Slab slab;
+
+    SlabInputStream(Slab slab, ByteBuffer src, String eTag, long created) {
+      super(src, eTag, created);
+      this.slab = slab;
+    }
+
+    protected void release() {
+      OffHeapPageStore.this.release(slab);
+    }
+  }
+}
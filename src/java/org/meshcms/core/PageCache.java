@@ -0,0 +1,286 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory page cache limited by the total size of the cached pages. The
+ * eviction policy is a segmented LRU: new pages enter a probation segment and
+ * are promoted to the protected segment when they are requested again, so
+ * pages that are hit only once can't push frequently requested pages out of
+ * the cache.
+ *
+ * <p>Lookups are served by a concurrent map; the segments are updated while
+ * holding the lock of the cache.</p>
+ */
+public class PageCache {
+  /**
+   * Approximate memory used by a cache entry in addition to the page bytes.
+   */
+  public static final int ENTRY_OVERHEAD = 96;
+
+  /**
+   * Percentage of the budget reserved to the protected segment.
+   */
+  public static final int PROTECTED_PERCENT = 80;
+
+  private Map entries;
+  private LinkedHashMap probation;
+  private LinkedHashMap protectedSegment;
+  private long maxBytes;
+  private long probationBytes;
+  private long protectedBytes;
+
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private long evictedBytes;
+  private long rejectionCount;
+
+  /**
+   * Creates a new cache that will use up to <code>maxBytes</code> bytes.
+   */
+  public PageCache(long maxBytes) {
+    entries = new ConcurrentHashMap();
+    probation = new LinkedHashMap(16, 0.75F, true);
+    protectedSegment = new LinkedHashMap(16, 0.75F, true);
+    this.maxBytes = Math.max(maxBytes, 0L);
+  }
+
+  /**
+   * Returns the cached page for the given key, or null if not available.
+   */
+  public CachedPage get(Object key) {
+    Entry entry = (Entry) entries.get(key);
+
+    synchronized (this) {
+      if (entry == null || entry.removed) {
+        missCount++;
+        return null;
+      }
+
+      hitCount++;
+
+      if (entry.isProtected) {
+        protectedSegment.get(key); // moves the entry to the MRU position
+      } else {
+        probation.remove(key);
+        probationBytes -= entry.weight;
+        entry.isProtected = true;
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.weight;
+        demoteProtected();
+      }
+    }
+
+    return entry.page;
+  }
+
+  /**
+   * Returns the cached page for the given key without counting a hit or
+   * changing its position in the cache.
+   */
+  public CachedPage peek(Object key) {
+    Entry entry = (Entry) entries.get(key);
+    return entry == null ? null : entry.page;
+  }
+
+  /**
+   * Stores a page in the cache. Pages larger than the probation segment are
+   * not admitted, since they would evict everything else.
+   */
+  public synchronized void put(Object key, CachedPage page) {
+    remove(key);
+    Entry entry = new Entry(page);
+
+    if (entry.weight > getProbationMaxBytes()) {
+      rejectionCount++;
+      return;
+    }
+
+    entries.put(key, entry);
+    probation.put(key, entry);
+    probationBytes += entry.weight;
+    evictProbation();
+  }
+
+  /**
+   * Removes a page from the cache.
+   */
+  public synchronized void remove(Object key) {
+    Entry entry = (Entry) entries.remove(key);
+
+    if (entry != null) {
+      entry.removed = true;
+
+      if (entry.isProtected) {
+        protectedSegment.remove(key);
+        protectedBytes -= entry.weight;
+      } else {
+        probation.remove(key);
+        probationBytes -= entry.weight;
+      }
+    }
+  }
+
+  /**
+   * Checks if a page is available in the cache. This method does not count
+   * as a hit.
+   */
+  public boolean contains(Object key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Removes all pages from the cache. Counters are not reset.
+   */
+  public synchronized void clear() {
+    Iterator iter = entries.values().iterator();
+
+    while (iter.hasNext()) {
+      ((Entry) iter.next()).removed = true;
+    }
+
+    entries.clear();
+    probation.clear();
+    protectedSegment.clear();
+    probationBytes = protectedBytes = 0L;
+  }
+
+  /**
+   * Changes the size of the cache, evicting pages if needed.
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = Math.max(maxBytes, 0L);
+    demoteProtected();
+    evictProbation();
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the number of bytes currently used by the cache.
+   */
+  public synchronized long getUsedBytes() {
+    return probationBytes + protectedBytes;
+  }
+
+  /**
+   * Returns the number of pages in the cache.
+   */
+  public int getPageCount() {
+    return entries.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of pages removed to make room for other pages.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns the total size of the pages removed to make room for other pages.
+   */
+  public synchronized long getEvictedBytes() {
+    return evictedBytes;
+  }
+
+  /**
+   * Returns the number of pages that have not been cached since they were
+   * too large.
+   */
+  public synchronized long getRejectionCount() {
+    return rejectionCount;
+  }
+
+  private long getProtectedMaxBytes() {
+    return maxBytes * PROTECTED_PERCENT / 100L;
+  }
+
+  private long getProbationMaxBytes() {
+    return maxBytes - getProtectedMaxBytes();
+  }
+
+  /**
+   * Moves the least recently used protected pages back to probation until
+   * the protected segment fits its share of the budget.
+   */
+  private void demoteProtected() {
+    Iterator iter = protectedSegment.entrySet().iterator();
+
+    while (protectedBytes > getProtectedMaxBytes() && iter.hasNext()) {
+      Map.Entry me = (Map.Entry) iter.next();
+      Entry entry = (Entry) me.getValue();
+      iter.remove();
+      protectedBytes -= entry.weight;
+      entry.isProtected = false;
+      probation.put(me.getKey(), entry);
+      probationBytes += entry.weight;
+    }
+
+    evictProbation();
+  }
+
+  /**
+   * Evicts the least recently used pages on probation until the whole cache
+   * fits the budget.
+   */
+  private void evictProbation() {
+    Iterator iter = probation.entrySet().iterator();
+
+    while (probationBytes + protectedBytes > maxBytes && iter.hasNext()) {
+      Map.Entry me = (Map.Entry) iter.next();
+      Entry entry = (Entry) me.getValue();
+      iter.remove();
+      entries.remove(me.getKey());
+      entry.removed = true;
+      probationBytes -= entry.weight;
+      evictionCount++;
+      evictedBytes += entry.weight;
+    }
+  }
+
+  private static class Entry {
+    CachedPage page;
+    long weight;
+    boolean isProtected;
+    boolean removed;
+
+    Entry(CachedPage page) {
+      this.page = page;
+      weight = page.getLength() + ENTRY_OVERHEAD;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.meshcms.util.ChunkedBuffer;
+import org.meshcms.util.GZIPEncoder;
+
+/**
+ * Receives a page while it is sent to the browser, to cache it. The page is
+ * stored in pooled chunks and compressed while it is written, so both versions
+ * are ready as soon as the page is complete.
+ *
+ * @see CacheResponseStream
+ */
+public class PageCapture extends OutputStream {
+  private ChunkedBuffer identityBuffer;
+  private ChunkedBuffer gzipBuffer;
+  private OutputStream compressor;
+  private boolean closed;
+
+  /**
+   * Creates a new capture.
+   *
+   * @param level the GZIP compression level
+   */
+  public PageCapture(int level) throws IOException {
+    identityBuffer = new ChunkedBuffer();
+    gzipBuffer = new ChunkedBuffer();
+    compressor = GZIPEncoder.createOutputStream(gzipBuffer, level);
+  }
+
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    identityBuffer.write(b, off, len);
+    compressor.write(b, off, len);
+  }
+
+  /**
+   * Completes the compression. Further writes are rejected.
+   */
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      identityBuffer.close();
+      compressor.close(); // closes gzipBuffer too
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the uncompressed page written so far.
+   */
+  public int getSize() {
+    return identityBuffer.size();
+  }
+
+  /**
+   * Returns the captured page. The capture must not be discarded after this
+   * call, since the page shares its buffers.
+   */
+  public CachedPage getPage() throws IOException {
+    close();
+    return new CachedPage(gzipBuffer, identityBuffer,
+        System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the buffers to the pool when the page is not going to be cached.
+   */
+  public void discard() {
+    try {
+      close();
+    } catch (IOException ex) {}
+
+    identityBuffer.recycle();
+    gzipBuffer.recycle();
+  }
+}
@@ -19,6 +19,11 @@
 
 package org.meshcms.core;
 
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import org.meshcms.util.Path;
 
 /**
@@ -27,16 +32,28 @@ import org.meshcms.util.Path;
  */
 public final class PageInfo {
   public static final String ARTICLE_IMAGE_SUFFIX = "_image.jpg";
+
+  /**
+   * Maximum number of variants of a page that can be cached, to limit the
+   * effect of requests with random values of significant parameters.
+   */
+  public static final int MAX_CACHE_VARIANTS = 32;
+
   private Path path;
   private String title;
-  private int[] stats;
-  private int statSum;
-  private int lastStatsIndex;
+  private AtomicReferenceArray stats;
+  private volatile boolean dirty;
   private WebSite webSite;
   private long lastModified;
   private String charset;
   private String[] keywords;
   private String excerpt;
+  private String cacheETag;
+  private String cacheETagFile;
+  private long cacheETagTime;
+  private Set cacheVariants;
+  private CacheDependencies cacheDependencies;
+  private long cacheValidSince;
 
   /**
    * Creates a page info in the specified {@link WebSite} to describe the page
@@ -45,7 +62,8 @@ public final class PageInfo {
   public PageInfo(WebSite webSite, Path path) {
     this.webSite = webSite;
     this.path = path;
-    stats = new int[webSite.getStatsLength()];
+    stats = new AtomicReferenceArray(webSite.getStatsLength());
+    cacheValidSince = System.currentTimeMillis();
   }
 
   /**
@@ -77,61 +95,283 @@ public final class PageInfo {
   }
 
   /**
-   * Adds a hit to the count.
+   * Adds a hit to the count. Hits are counted without locking, so many
+   * requests can hit the same page at the same time. The first hit after
+   * the last write to the hit journal queues the page for the next one.
    */
-  public synchronized void addHit() {
-    stats[getIndex()]++;
-    statSum++;
+  public void addHit() {
+    getDailyHits(webSite.getStatsDay(), true).hits.increment();
+
+    if (!dirty) {
+      SiteMapSnapshot snapshot = webSite.getSiteMapSnapshot();
+
+      if (snapshot != null) {
+        dirty = true;
+        snapshot.markDirty(this);
+      }
+    }
   }
 
   /**
    * Returns the hit count for the last day.
    */
-  public synchronized int getHits() {
-    return stats[getIndex()];
+  public int getHits() {
+    return getHits(0);
   }
 
   /**
    * Returns the hit count for a previous day.
    */
-  public synchronized int getHits(int daysBefore) {
-    int index = getIndex() - daysBefore;
-    return stats[index < 0 ? index + stats.length : index];
+  public int getHits(int daysBefore) {
+    long day = webSite.getStatsDay() - daysBefore;
+
+    if (daysBefore < 0 || daysBefore >= stats.length() || day < 0L) {
+      return 0;
+    }
+
+    DailyHits dailyHits = getDailyHits(day, false);
+    return dailyHits == null ? 0 : dailyHits.hits.intValue();
   }
 
   /**
    * Returns the total hit count.
    */
-  public synchronized int getTotalHits() {
-    getIndex(); // to update index before sum
-    return statSum;
+  public int getTotalHits() {
+    long day = webSite.getStatsDay();
+    long sum = 0L;
+
+    for (int i = 0; i < stats.length(); i++) {
+      DailyHits dailyHits = (DailyHits) stats.get(i);
+
+      if (dailyHits != null && day - dailyHits.day < stats.length()) {
+        sum += dailyHits.hits.sum();
+      }
+    }
+
+    return (int) sum;
+  }
+
+  protected void copyStatsFrom(PageInfo other) {
+    stats = other.stats;
+  }
+
+  /**
+   * Returns the daily hit counts, to be stored in a site map snapshot. The
+   * count of a day is stored at the index returned by
+   * {@link WebSite#getStatsIndex} for that day.
+   *
+   * @param day the current day, as returned by {@link WebSite#getStatsDay}
+   */
+  int[] copyStats(long day) {
+    int[] counts = new int[stats.length()];
+
+    for (int i = 0; i < counts.length; i++) {
+      DailyHits dailyHits = (DailyHits) stats.get(i);
+
+      if (dailyHits != null && day - dailyHits.day < counts.length) {
+        long sum = dailyHits.hits.sum();
+        counts[i] = (int) sum;
+        dailyHits.flushed = sum; // the snapshot includes all these hits
+      }
+    }
+
+    return counts;
+  }
+
+  /**
+   * Restores the daily hit counts read from a site map snapshot.
+   *
+   * @param counts the counts returned by {@link #copyStats}
+   * @param day the day passed to {@link #copyStats}
+   */
+  void restoreStats(int[] counts, long day) {
+    int length = stats.length();
+
+    for (int i = 0; i < counts.length && i < length; i++) {
+      if (counts[i] > 0) {
+        // the most recent day, up to the given one, stored at this index
+        long countDay = day - ((day - i) % length + length) % length;
+
+        if (countDay < 0L) {
+          continue; // the stats started less than length days before
+        }
+
+        DailyHits dailyHits = getDailyHits(countDay, true);
+        dailyHits.hits.add(counts[i]);
+        dailyHits.flushed += counts[i];
+      }
+    }
+  }
+
+  /**
+   * Adds the hits of a day read from the hit journal. Hits of a day that is
+   * no longer counted are ignored.
+   */
+  void addHits(long day, int count) {
+    if (day >= 0L && webSite.getStatsDay() - day < stats.length()) {
+      DailyHits dailyHits = getDailyHits(day, true);
+
+      if (dailyHits.day == day) {
+        dailyHits.hits.add(count);
+        dailyHits.flushed += count;
+      }
+    }
+  }
+
+  /**
+   * Adds the hits counted since the last call to the current batch of the
+   * journal. If <code>journal</code> is null, the page is only removed from
+   * the queue of the snapshot, since all its hits will be written by a new
+   * snapshot.
+   */
+  void writeHits(HitJournal journal) throws IOException {
+    // cleared first, so a hit counted meanwhile queues the page again
+    dirty = false;
+
+    if (journal == null) {
+      return;
+    }
+
+    long day = webSite.getStatsDay();
+
+    for (int i = 0; i < stats.length(); i++) {
+      DailyHits dailyHits = (DailyHits) stats.get(i);
+
+      if (dailyHits != null && day - dailyHits.day < stats.length()) {
+        long sum = dailyHits.hits.sum();
+
+        if (sum > dailyHits.flushed) {
+          journal.add(path, dailyHits.day, (int) (sum - dailyHits.flushed));
+          dailyHits.flushed = sum;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the hit counter of the given day. When the day changes, the
+   * counter of the oldest day is replaced atomically: a hit is always added
+   * to exactly one counter, even if the day changes in the meantime.
+   *
+   * @param create if false, null is returned when there is no counter
+   */
+  private DailyHits getDailyHits(long day, boolean create) {
+    int index = (int) (day % stats.length());
+
+    while (true) {
+      DailyHits dailyHits = (DailyHits) stats.get(index);
+
+      if (dailyHits != null && dailyHits.day >= day) {
+        /* a newer day is found when another thread has seen the day change
+           first: in that case the hit is added to the new day */
+        return (dailyHits.day == day || create) ? dailyHits : null;
+      }
+
+      if (!create) {
+        return null;
+      }
+
+      DailyHits newHits = new DailyHits(day);
+
+      if (stats.compareAndSet(index, dailyHits, newHits)) {
+        return newHits;
+      }
+    }
+  }
+
+  /**
+   * Returns the time since cached copies of this page are valid. Copies
+   * cached before that time must not be used.
+   */
+  public synchronized long getCacheValidSince() {
+    return cacheValidSince;
   }
 
-  protected synchronized int[] getStats() {
-    return stats;
+  /**
+   * Returns the dependencies recorded when the page has been cached, or null
+   * if the page has not been cached since the last invalidation.
+   */
+  public synchronized CacheDependencies getCacheDependencies() {
+    return cacheDependencies;
   }
 
-  protected synchronized int getLastStatsIndex() {
-    return lastStatsIndex;
+  synchronized void setCacheDependencies(CacheDependencies cacheDependencies) {
+    this.cacheDependencies = cacheDependencies;
   }
 
-  protected synchronized void copyStatsFrom(PageInfo other) {
-    getIndex(); // to update index before copying
-    statSum = other.getTotalHits(); // this one calls other.getIndex()
-    stats = other.getStats();
-    lastStatsIndex = other.getLastStatsIndex();
+  /**
+   * Checks if cached copies of this page are still valid after the site map
+   * has been rebuilt. If no dependencies have been recorded, the page has not
+   * been cached since the last invalidation (copies cached by a previous run
+   * are older than this page info) and there is nothing to invalidate.
+   */
+  boolean isCacheValid(boolean structureChanged, boolean contentsChanged,
+      boolean rescanned) {
+    CacheDependencies deps = getCacheDependencies();
+    return deps == null ||
+        deps.isValid(structureChanged, contentsChanged, rescanned);
   }
 
-  private synchronized int getIndex() {
-    int index = webSite.getStatsIndex();
+  /**
+   * Invalidates all cached copies of this page.
+   */
+  synchronized void invalidateCache(long time) {
+    cacheDependencies = null;
+    cacheValidSince = Math.max(time, cacheValidSince + 1L);
+  }
 
-    if (index != lastStatsIndex) {
-      lastStatsIndex = index;
-      statSum -= stats[index];
-      stats[index] = 0;
+  /**
+   * Returns the entity tag of the page cached on disk, if it has been computed
+   * for the cache file with the given name and modification time.
+   */
+  synchronized String getCacheETag(String cacheFile, long cacheTime) {
+    return cacheTime == cacheETagTime && cacheFile.equals(cacheETagFile) ?
+        cacheETag : null;
+  }
+
+  synchronized void setCacheETag(String cacheETag, String cacheFile,
+      long cacheTime) {
+    this.cacheETag = cacheETag;
+    this.cacheETagFile = cacheFile;
+    this.cacheETagTime = cacheTime;
+  }
+
+  /**
+   * Registers a variant of this page (see {@link CacheKey#getVariant}), so it
+   * can be removed from the cache together with the page.
+   *
+   * @return false if the page has already too many variants, and this one
+   * should not be cached
+   */
+  synchronized boolean addCacheVariant(String variant) {
+    if (cacheVariants == null) {
+      cacheVariants = new HashSet();
+    }
+
+    if (cacheVariants.contains(variant)) {
+      return true;
     }
 
-    return index;
+    if (cacheVariants.size() >= MAX_CACHE_VARIANTS) {
+      return false;
+    }
+
+    cacheVariants.add(variant);
+    return true;
+  }
+
+  /**
+   * Returns the variants of this page that have been cached, and forgets them.
+   */
+  synchronized String[] removeCacheVariants() {
+    if (cacheVariants == null) {
+      return new String[0];
+    }
+
+    String[] variants =
+        (String[]) cacheVariants.toArray(new String[cacheVariants.size()]);
+    cacheVariants = null;
+    return variants;
   }
 
   /**
@@ -194,4 +434,20 @@ public final class PageInfo {
   public void setExcerpt(String excerpt) {
     this.excerpt = excerpt;
   }
+
+  /**
+   * The hit count of a page in a day. <code>flushed</code> is the part of the
+   * count already stored in the snapshot or in the journal, and is only
+   * accessed while holding the lock of the {@link SiteMapSnapshot}.
+   */
+  private static final class DailyHits {
+    private final long day;
+    private final LongAdder hits;
+    private long flushed;
+
+    private DailyHits(long day) {
+      this.day = day;
+      hits = new LongAdder();
+    }
+  }
 }
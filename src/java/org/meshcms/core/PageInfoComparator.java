@@ -114,6 +114,7 @@ public final class PageInfoComparator implements Comparator, Serializable {
       return 1;
     }
 
-    return 0;
+    // without this, pages inside a folder could be sorted apart from it
+    return subPath1.compareTo(subPath2);
   }
 }
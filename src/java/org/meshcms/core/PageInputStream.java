@@ -0,0 +1,93 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a cached page stored outside of the Java heap, directly from the
+ * buffer that contains it.
+ *
+ * @see OffHeapPageStore#openStream
+ * @see SegmentPageStore#openStream
+ */
+public class PageInputStream extends InputStream {
+  private ByteBuffer src;
+  private String eTag;
+  private long created;
+
+  public PageInputStream(ByteBuffer src, String eTag, long created) {
+    this.src = src;
+    this.eTag = eTag;
+    this.created = created;
+  }
+
+  /**
+   * Returns the time the page being read has been rendered.
+   *
+   * @see CachedPage#getCreated
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * Returns the entity tag of the page being read.
+   *
+   * @see CachedPage#getETag
+   */
+  public String getETag() {
+    return eTag;
+  }
+
+  public int read() throws IOException {
+    return (src == null || !src.hasRemaining()) ? -1 : src.get() & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (src == null || !src.hasRemaining()) {
+      return -1;
+    }
+
+    len = Math.min(len, src.remaining());
+    src.get(b, off, len);
+    return len;
+  }
+
+  public int available() throws IOException {
+    return src == null ? 0 : src.remaining();
+  }
+
+  public void close() throws IOException {
+    if (src != null) {
+      src = null;
+      release();
+    }
+  }
+
+  /**
+   * Called once when the stream is closed. Stores that reuse their buffers
+   * must not do it before this method has been called.
+   */
+  protected void release() {
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.meshcms.util.Path;
+import org.meshcms.util.Utils;
+
+/**
+ * Finds the page that has probably replaced a page that no longer exists.
+ * The chosen page is the one whose path has the longest common ending with
+ * the requested path (extensions of pages are not considered). If more pages
+ * have the same ending, the first one in the site map wins.
+ *
+ * <p>The paths of the pages are stored in a tree of their elements, last
+ * element first, so a lookup only follows the elements of the requested
+ * path. Recent results are kept in a small cache.</p>
+ *
+ * @see SiteMap#getRedirMatch
+ */
+public class RedirectMatcher {
+  /**
+   * Maximum number of results kept in the cache.
+   */
+  public static final int CACHE_SIZE = 1024;
+
+  private Node root;
+  private Map cache;
+  private CacheMetrics metrics;
+
+  /**
+   * Creates a matcher for the given pages.
+   *
+   * @param pages the pages of the site map, in the order of the site map
+   * @param metrics the metrics to be updated at each lookup, or null
+   */
+  public RedirectMatcher(List pages, CacheMetrics metrics) {
+    this.metrics = metrics;
+    root = new Node();
+    Iterator iter = pages.iterator();
+
+    while (iter.hasNext()) {
+      Path path = ((PageInfo) iter.next()).getPath();
+      String[] elements = removePageExtension(path).getElements();
+      Node node = root;
+
+      for (int i = elements.length - 1; i >= 0; i--) {
+        Node child = (Node) node.children.get(elements[i]);
+
+        if (child == null) {
+          child = new Node();
+          node.children.put(elements[i], child);
+        }
+
+        if (child.page == null) {
+          child.page = path;
+        }
+
+        node = child;
+      }
+    }
+
+    cache = new LinkedHashMap(16, 0.75F, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+  }
+
+  /**
+   * Returns the path of the page that best matches the given path, or null
+   * if no page path ends like the given one.
+   */
+  public Path match(Path path) {
+    Path result;
+    boolean cached;
+
+    synchronized (cache) {
+      cached = cache.containsKey(path);
+      result = (Path) cache.get(path);
+    }
+
+    if (!cached) {
+      String[] elements = removePageExtension(path).getElements();
+      Node node = root;
+
+      for (int i = elements.length - 1; i >= 0; i--) {
+        node = (Node) node.children.get(elements[i]);
+
+        if (node == null) {
+          break;
+        }
+
+        result = node.page;
+      }
+
+      synchronized (cache) {
+        cache.put(path, result);
+      }
+    }
+
+    if (metrics != null) {
+      metrics.recordRedirectLookup(result != null, cached);
+    }
+
+    return result;
+  }
+
+  private static Path removePageExtension(Path path) {
+    String name = path.getLastElement();
+
+    if (FileTypes.isPage(name)) {
+      path = path.getParent().add(Utils.removeExtension(name));
+    }
+
+    return path;
+  }
+
+  private static class Node {
+    private Map children = new HashMap(4);
+    private Path page;
+  }
+}
@@ -0,0 +1,685 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.meshcms.util.Path;
+import org.meshcms.util.Utils;
+
+/**
+ * Stores cached pages on disk in a few large segment files, instead of two
+ * files for each page. Pages are appended to the current segment and an
+ * in-memory index keeps their position, so a lookup never touches the file
+ * system. Segments are memory-mapped, and pages are read directly from the
+ * mapping.
+ *
+ * <p>Each record contains a checksum: when the store is opened, segments are
+ * scanned to rebuild the index and the scan of a segment stops at the first
+ * incomplete or corrupted record. Removals are not recorded, since pages
+ * recovered after a restart are older than any {@link PageInfo} and can only
+ * be served as stale pages.</p>
+ *
+ * <p>Segments that contain mostly outdated records are compacted in
+ * background by copying their live records to the current segment. When the
+ * budget is exhausted, the oldest segment is deleted.</p>
+ *
+ * <p>Only one open store can use a directory: a store must be closed before
+ * another one is created for the same directory.</p>
+ */
+public class SegmentPageStore {
+  /**
+   * Default size of a segment file.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * Utils.MBYTE;
+
+  /**
+   * Fraction of outdated records that triggers the compaction of a segment.
+   */
+  public static final float COMPACTION_THRESHOLD = 0.5F;
+
+  private static final int MAGIC = 0x4D435347;
+  private static final int HEADER_SIZE = 24;
+  private static final String PREFIX = "segment-";
+  private static final String SUFFIX = ".dat";
+
+  private File dir;
+  private long maxBytes;
+  private int segmentSize;
+  private List segments;
+  private Segment current;
+  private Map entries;
+  private int nextId;
+  private ThreadPoolExecutor compactor;
+  private boolean compactionScheduled;
+  private boolean closed;
+
+  private long recoveredCount;
+  private long corruptedCount;
+  private long compactionCount;
+  private long evictionCount;
+  private long rejectionCount;
+
+  /**
+   * Creates a store in the given directory, using segments of
+   * {@link #DEFAULT_SEGMENT_SIZE} bytes. {@link #recover} must be called
+   * before using the store.
+   */
+  public SegmentPageStore(File dir, long maxBytes) {
+    this(dir, maxBytes, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public SegmentPageStore(File dir, long maxBytes, int segmentSize) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.segmentSize = segmentSize;
+    segments = new ArrayList();
+    entries = new HashMap();
+    compactor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Segment compactor for " +
+            SegmentPageStore.this.dir);
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Opens the existing segments and rebuilds the index.
+   */
+  public synchronized void recover() throws IOException {
+    dir.mkdirs();
+    File[] files = dir.listFiles();
+
+    if (files == null) {
+      throw new IOException("Can't read " + dir);
+    }
+
+    Arrays.sort(files);
+
+    for (int i = 0; i < files.length; i++) {
+      String name = files[i].getName();
+
+      if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+        int id = Utils.parseInt(name.substring(PREFIX.length(),
+            name.length() - SUFFIX.length()), -1);
+
+        if (id >= 0) {
+          Segment segment = new Segment(files[i], map(files[i]));
+          scan(segment);
+          segments.add(segment);
+          nextId = Math.max(nextId, id + 1);
+        }
+      }
+    }
+
+    if (!segments.isEmpty()) {
+      current = (Segment) segments.get(segments.size() - 1);
+    }
+
+    evict(null);
+  }
+
+  /**
+   * Reads all valid records of a segment.
+   */
+  private void scan(Segment segment) {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int pos = 0;
+
+    while (pos + HEADER_SIZE + 4 <= buffer.capacity()) {
+      if (buffer.getInt(pos) != MAGIC) {
+        break;
+      }
+
+      int length = buffer.getInt(pos + 4);
+
+      if (length < HEADER_SIZE + 4 || length > buffer.capacity() - pos) {
+        corruptedCount++;
+        break;
+      }
+
+      Entry entry;
+
+      try {
+        entry = readEntry(segment, pos, length);
+      } catch (RuntimeException ex) {
+        entry = null; // malformed header
+      }
+
+      if (entry == null) {
+        corruptedCount++;
+        break;
+      }
+
+      Entry old = (Entry) entries.put(entry.key, entry);
+
+      if (old != null) {
+        old.segment.liveBytes -= old.length;
+      } else {
+        recoveredCount++;
+      }
+
+      segment.liveBytes += length;
+      pos += length;
+    }
+
+    segment.top = pos;
+  }
+
+  /**
+   * Reads and verifies a record.
+   *
+   * @return the entry of the record, or null if the checksum is wrong
+   */
+  private static Entry readEntry(Segment segment, int pos, int length) {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.limit(pos + length - 4).position(pos + 8);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.duplicate());
+
+    if ((int) crc.getValue() != segment.buffer.getInt(pos + length - 4)) {
+      return null;
+    }
+
+    long created = buffer.getLong();
+    int gzipLength = buffer.getInt();
+    int identityLength = buffer.getInt();
+    String path = readString(buffer);
+    String variant = readString(buffer);
+    String eTag = readString(buffer);
+
+    if (buffer.remaining() != gzipLength + identityLength) {
+      return null;
+    }
+
+    return new Entry(new CacheKey(new Path(path), variant), segment, pos,
+        length, buffer.position(), gzipLength, identityLength, eTag, created);
+  }
+
+  /**
+   * Stores a page. Pages larger than a segment are not stored.
+   *
+   * @return true if the page has been stored
+   */
+  public synchronized boolean put(CacheKey key, CachedPage page) {
+    if (closed) {
+      return false;
+    }
+
+    byte[] path = getBytes(key.getPath().toString());
+    byte[] variant = getBytes(key.getVariant());
+    byte[] eTag = getBytes(page.getETag());
+    int gzipLength = page.getBuffer(true).size();
+    int identityLength = page.getBuffer(false).size();
+    int length = HEADER_SIZE + 6 + path.length + variant.length +
+        eTag.length + gzipLength + identityLength + 4;
+
+    if (length > segmentSize) {
+      rejectionCount++;
+      return false;
+    }
+
+    Segment segment;
+
+    try {
+      segment = allocate(length, null);
+    } catch (IOException ex) {
+      rejectionCount++;
+      return false;
+    }
+
+    int pos = segment.top;
+    ByteBuffer dst = segment.buffer.duplicate();
+    dst.position(pos);
+    dst.putInt(MAGIC);
+    dst.putInt(length);
+    dst.putLong(page.getCreated());
+    dst.putInt(gzipLength);
+    dst.putInt(identityLength);
+    writeString(dst, path);
+    writeString(dst, variant);
+    writeString(dst, eTag);
+    int offset = dst.position();
+    page.getBuffer(true).writeTo(dst);
+    page.getBuffer(false).writeTo(dst);
+    ByteBuffer check = segment.buffer.duplicate();
+    check.limit(dst.position()).position(pos + 8);
+    CRC32 crc = new CRC32();
+    crc.update(check);
+    dst.putInt((int) crc.getValue());
+
+    segment.top += length;
+    segment.liveBytes += length;
+    remove(key);
+    entries.put(key, new Entry(key, segment, pos, length, offset, gzipLength,
+        identityLength, page.getETag(), page.getCreated()));
+    return true;
+  }
+
+  /**
+   * Removes a page from the store. Its space will be reclaimed when the
+   * segment is compacted or deleted.
+   */
+  public synchronized void remove(CacheKey key) {
+    if (closed) {
+      return;
+    }
+
+    Entry entry = (Entry) entries.remove(key);
+
+    if (entry != null) {
+      entry.segment.liveBytes -= entry.length;
+      scheduleCompaction(entry.segment);
+    }
+  }
+
+  /**
+   * Removes all pages whose path is not contained in the given set.
+   */
+  public synchronized void retainPaths(Set paths) {
+    Iterator iter = new ArrayList(entries.keySet()).iterator();
+
+    while (iter.hasNext()) {
+      CacheKey key = (CacheKey) iter.next();
+
+      if (!paths.contains(key.getPath())) {
+        remove(key);
+      }
+    }
+  }
+
+  public synchronized boolean contains(CacheKey key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Returns the time the stored page has been rendered, or -1 if the page is
+   * not available.
+   *
+   * @see CachedPage#getCreated
+   */
+  public synchronized long getCreated(CacheKey key) {
+    Entry entry = (Entry) entries.get(key);
+    return entry == null ? -1L : entry.created;
+  }
+
+  /**
+   * Returns a stream that reads the stored page directly from the mapped
+   * segment, or null if the page is not available. Records are never
+   * overwritten, so the stream remains valid even if the segment is compacted
+   * or deleted in the meantime.
+   *
+   * @param gzip true to read the compressed version of the page
+   */
+  public synchronized PageInputStream openStream(CacheKey key, boolean gzip) {
+    Entry entry = (Entry) entries.get(key);
+
+    if (entry == null) {
+      return null;
+    }
+
+    ByteBuffer src = entry.segment.buffer.duplicate();
+
+    if (gzip) {
+      src.limit(entry.offset + entry.gzipLength);
+      src.position(entry.offset);
+    } else {
+      src.limit(entry.offset + entry.gzipLength + entry.identityLength);
+      src.position(entry.offset + entry.gzipLength);
+    }
+
+    return new PageInputStream(src, entry.eTag, entry.created);
+  }
+
+  /**
+   * Removes all pages and deletes all segments.
+   */
+  public synchronized void clear() {
+    if (closed) {
+      return; // the segments might be used by another store
+    }
+
+    entries.clear();
+
+    while (!segments.isEmpty()) {
+      delete((Segment) segments.remove(0));
+    }
+
+    current = null;
+  }
+
+  /**
+   * Returns a segment with at least <code>length</code> free bytes at its
+   * end, creating a new segment if needed.
+   *
+   * @param exclude a segment that must not be evicted, or null
+   */
+  private Segment allocate(int length, Segment exclude) throws IOException {
+    if (current != null && current.buffer.capacity() - current.top >= length) {
+      return current;
+    }
+
+    if (current != null) {
+      current.buffer.force(); // the segment is complete
+    }
+
+    File file = new File(dir, PREFIX + Utils.addDigits(nextId, '0', 8) +
+        SUFFIX);
+    dir.mkdirs();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try {
+      raf.setLength(segmentSize);
+    } finally {
+      raf.close();
+    }
+
+    current = new Segment(file, map(file));
+    nextId++;
+    segments.add(current);
+    evict(exclude);
+    return current;
+  }
+
+  /**
+   * Deletes the oldest segments until the budget is respected.
+   */
+  private void evict(Segment exclude) {
+    long maxSegments = Math.max(maxBytes / segmentSize, 2L);
+
+    for (int i = 0; segments.size() > maxSegments && i < segments.size(); ) {
+      Segment segment = (Segment) segments.get(i);
+
+      if (segment == current || segment == exclude) {
+        i++;
+        continue;
+      }
+
+      Iterator iter = entries.values().iterator();
+
+      while (iter.hasNext()) {
+        if (((Entry) iter.next()).segment == segment) {
+          iter.remove();
+          evictionCount++;
+        }
+      }
+
+      segments.remove(i);
+      delete(segment);
+    }
+  }
+
+  private void scheduleCompaction(Segment segment) {
+    if (!compactionScheduled && segment != current && segment.top > 0 &&
+        segment.liveBytes < segment.top * (1.0F - COMPACTION_THRESHOLD)) {
+      compactionScheduled = true;
+      compactor.execute(new Runnable() {
+        public void run() {
+          compact();
+        }
+      });
+    }
+  }
+
+  /**
+   * Compacts the segments with too many outdated records, by copying their
+   * live records to the current segment and deleting them.
+   */
+  private synchronized void compact() {
+    compactionScheduled = false;
+
+    if (closed) {
+      return;
+    }
+
+    Iterator iter = new ArrayList(segments).iterator();
+
+    while (iter.hasNext()) {
+      Segment segment = (Segment) iter.next();
+
+      if (segment == current || !segments.contains(segment) ||
+          segment.liveBytes >= segment.top * (1.0F - COMPACTION_THRESHOLD)) {
+        continue;
+      }
+
+      List live = new ArrayList();
+      Iterator entryIter = entries.values().iterator();
+
+      while (entryIter.hasNext()) {
+        Entry entry = (Entry) entryIter.next();
+
+        if (entry.segment == segment) {
+          live.add(entry);
+        }
+      }
+
+      try {
+        for (int i = 0; i < live.size(); i++) {
+          Entry entry = (Entry) live.get(i);
+          Segment target = allocate(entry.length, segment);
+          ByteBuffer src = segment.buffer.duplicate();
+          src.limit(entry.start + entry.length).position(entry.start);
+          ByteBuffer dst = target.buffer.duplicate();
+          dst.position(target.top);
+          dst.put(src);
+
+          entries.put(entry.key, new Entry(entry.key, target, target.top,
+              entry.length, target.top + entry.offset - entry.start,
+              entry.gzipLength, entry.identityLength, entry.eTag,
+              entry.created));
+          target.top += entry.length;
+          target.liveBytes += entry.length;
+        }
+      } catch (IOException ex) {
+        return; // try again at the next removal
+      }
+
+      segments.remove(segment);
+      delete(segment);
+      compactionCount++;
+    }
+  }
+
+  /**
+   * Closes the store: the compactor is stopped and pages are no longer
+   * stored, removed or found. The segment files are kept, so another store
+   * can recover them. Streams already opened remain valid.
+   */
+  public synchronized void close() {
+    closed = true;
+    compactor.shutdownNow();
+    entries.clear();
+    segments.clear();
+    current = null;
+  }
+
+  /**
+   * Returns the number of stored pages.
+   */
+  public synchronized int getPageCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the total size of the live records.
+   */
+  public synchronized long getUsedBytes() {
+    long used = 0L;
+
+    for (int i = 0; i < segments.size(); i++) {
+      used += ((Segment) segments.get(i)).liveBytes;
+    }
+
+    return used;
+  }
+
+  /**
+   * Returns the disk space taken by the segments.
+   */
+  public synchronized long getAllocatedBytes() {
+    return segments.size() * (long) segmentSize;
+  }
+
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Sets the budget of this store. Segments in excess are deleted when the
+   * next segment is created.
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the number of pages found when the store has been opened.
+   */
+  public synchronized long getRecoveredCount() {
+    return recoveredCount;
+  }
+
+  /**
+   * Returns the number of segments whose scan has been stopped by an
+   * incomplete or corrupted record.
+   */
+  public synchronized long getCorruptedCount() {
+    return corruptedCount;
+  }
+
+  public synchronized long getCompactionCount() {
+    return compactionCount;
+  }
+
+  /**
+   * Returns the number of pages removed to make room for other pages.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getRejectionCount() {
+    return rejectionCount;
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try {
+      // the mapping remains valid after the file has been closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+          raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void delete(Segment segment) {
+    // mappings still in use keep the data available
+    if (!segment.file.delete()) {
+      segment.file.deleteOnExit();
+    }
+  }
+
+  private static byte[] getBytes(String s) {
+    try {
+      return Utils.noNull(s).getBytes("UTF-8");
+    } catch (java.io.UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex); // UTF-8 is always available
+    }
+  }
+
+  private static void writeString(ByteBuffer dst, byte[] b) {
+    dst.putShort((short) b.length);
+    dst.put(b);
+  }
+
+  private static String readString(ByteBuffer src) {
+    byte[] b = new byte[src.getShort() & 0xFFFF];
+    src.get(b);
+
+    try {
+      return new String(b, "UTF-8");
+    } catch (java.io.UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static class Segment {
+    File file;
+    MappedByteBuffer buffer;
+    int top;
+    long liveBytes;
+
+    Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  private static class Entry {
+    CacheKey key;
+    Segment segment;
+    int start;
+    int length;
+    int offset;
+    int gzipLength;
+    int identityLength;
+    String eTag;
+    long created;
+
+    Entry(CacheKey key, Segment segment, int start, int length, int offset,
+        int gzipLength, int identityLength, String eTag, long created) {
+      this.key = key;
+      this.segment = segment;
+      this.start = start;
+      this.length = length;
+      this.offset = offset;
+      this.gzipLength = gzipLength;
+      this.identityLength = identityLength;
+      this.eTag = eTag;
+      this.created = created;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces concurrent renderings of the same page. The first request that
+ * misses the cache becomes the leader of a flight and renders the page; other
+ * requests for the same page join the flight and wait for its result instead
+ * of rendering the page again.
+ */
+public class SingleFlight {
+  private Map flights;
+  private long coalescedCount;
+  private long timeoutCount;
+
+  public SingleFlight() {
+    flights = new ConcurrentHashMap();
+  }
+
+  /**
+   * Joins the flight for the given key, starting a new one if needed. The
+   * caller is the leader of the returned flight if {@link Flight#isLeader}
+   * returns true, and must call {@link #complete} when done.
+   */
+  public Flight join(Object key) {
+    Flight flight = new Flight(key);
+    Flight current = (Flight) flights.putIfAbsent(key, flight);
+
+    if (current == null) {
+      return flight;
+    }
+
+    synchronized (this) {
+      coalescedCount++;
+    }
+
+    return current;
+  }
+
+  /**
+   * Ends a flight and wakes up the requests waiting for it.
+   *
+   * @param page the rendered page, or null if it can't be shared
+   */
+  public void complete(Flight flight, CachedPage page) {
+    flights.remove(flight.key, flight);
+    flight.complete(page);
+  }
+
+  /**
+   * Waits for the result of a flight led by another request.
+   *
+   * @param timeout the maximum time to wait, in milliseconds
+   *
+   * @return the rendered page, or null if the page can't be shared or the
+   * time has expired
+   */
+  public CachedPage await(Flight flight, long timeout) {
+    CachedPage page = flight.await(timeout);
+
+    if (page == null && !flight.isDone()) {
+      synchronized (this) {
+        timeoutCount++;
+      }
+    }
+
+    return page;
+  }
+
+  /**
+   * Returns the number of pages being rendered now.
+   */
+  public int getFlightCount() {
+    return flights.size();
+  }
+
+  /**
+   * Returns the number of requests that have waited for another request
+   * instead of rendering the page.
+   */
+  public synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Returns the number of requests that have stopped waiting since the page
+   * was taking too long to render.
+   */
+  public synchronized long getTimeoutCount() {
+    return timeoutCount;
+  }
+
+  /**
+   * The rendering of a page.
+   */
+  public static class Flight {
+    private Object key;
+    private Thread leader;
+    private boolean done;
+    private CachedPage page;
+
+    Flight(Object key) {
+      this.key = key;
+      leader = Thread.currentThread();
+    }
+
+    /**
+     * Returns true if the current thread is rendering the page.
+     */
+    public boolean isLeader() {
+      return leader == Thread.currentThread();
+    }
+
+    synchronized boolean isDone() {
+      return done;
+    }
+
+    synchronized void complete(CachedPage page) {
+      this.page = page;
+      done = true;
+      notifyAll();
+    }
+
+    synchronized CachedPage await(long timeout) {
+      long deadline = System.currentTimeMillis() + timeout;
+
+      try {
+        while (!done) {
+          long delay = deadline - System.currentTimeMillis();
+
+          if (delay <= 0L) {
+            break;
+          }
+
+          wait(delay);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+
+      return page;
+    }
+  }
+}
@@ -26,6 +26,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -36,10 +37,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.meshcms.util.DirectoryParser;
+import org.meshcms.util.HTMLPageScanner;
 import org.meshcms.util.Path;
 import org.meshcms.util.Utils;
 
@@ -67,25 +70,55 @@ public class SiteMap extends DirectoryParser {
   
   public static final Pattern KEYWORDS_REGEX =
       Pattern.compile("[^\\s,](?:[^,]+[^\\s,])?");
+  
+  /**
+   * Maximum number of threads used to parse the websites.
+   */
+  public static final int MAX_PARSER_THREADS = 16;
+  
+  private static ForkJoinPool parserPool;
 
   private WebSite webSite;
   private int excerptLength;
   private SortedMap pagesMap;
   private SiteMap oldSiteMap;
   private long lastModified;
-  private Map currentWelcomes;
+  private long lastScan;
+  private Path[] changedPaths;
+  private boolean restored;
+  private SortedMap currentWelcomes;
+  private Map welcomeDirs;
   private List pagesList;
+  private Map pagePositions;
+  private int[] subtreeEnds;
+  private Map childrenMap;
   
   private SortedMap themesMap;
   private SortedMap modulesMap;
   private List langList;
-  private Map pageCache;
+  private PageCache pageCache;
+  private OffHeapPageStore offHeapStore;
+  private SegmentPageStore segmentStore;
+  private SingleFlight renderFlights;
+  private String structureSignature;
+  private String contentsSignature;
   
-  private Map redirCache;
-  private Path[] redirPaths;
+  private volatile RedirectMatcher redirMatcher;
   
   private boolean obsolete;
   
+  /**
+   * Creates a site map that will be built from the given changes to the
+   * current one. Only the changed files and directories are parsed again.
+   *
+   * @param changedPaths the paths of the files and directories that have been
+   * created, modified or deleted
+   */
+  public SiteMap(WebSite webSite, Path[] changedPaths) {
+    this(webSite);
+    this.changedPaths = changedPaths;
+  }
+  
   /**
    * Creates a new instance of SiteMap
    */
@@ -95,17 +128,174 @@ public class SiteMap extends DirectoryParser {
     setSorted(true);
     setProcessStartDir(true);
     setInitialDir(webSite.getRootFile());
+    
+    // the pool is shared by all websites, so the main website sets its size
+    WebSite mainWebSite = (webSite instanceof VirtualWebSite) ?
+        ((VirtualWebSite) webSite).getMainWebSite() : webSite;
+    int parserThreads = mainWebSite.getConfiguration().getParserThreads();
+    
+    if (parserThreads > 1) {
+      setPool(getParserPool(parserThreads));
+    }
+    
     setDaemon(true);
     setName("Site map parser for \"" + webSite.getTypeDescription() + '"');
 
     excerptLength = webSite.getConfiguration().getExcerptLength();
+    renderFlights = new SingleFlight();
     int cacheType = webSite.getConfiguration().getCacheType();
     
-    if (cacheType == Configuration.IN_MEMORY_CACHE) {
-      pageCache = new HashMap();
-    } else if (cacheType == Configuration.MIXED_CACHE) {
-      pageCache = new WeakHashMap();
+    if (cacheType == Configuration.IN_MEMORY_CACHE ||
+        cacheType == Configuration.MIXED_CACHE) {
+      long maxBytes = webSite.getConfiguration().getMemoryCacheSizeBytes();
+      SiteMap current = webSite.getSiteMap();
+      
+      /* the cache of the current site map is kept up to date, so it can be
+         shared: pages that have changed are removed in postProcess() */
+      if (current != null && !current.isObsolete() &&
+          current.pageCache != null &&
+          current.pageCache.getMaxBytes() == maxBytes) {
+        pageCache = current.pageCache;
+      } else {
+        pageCache = new PageCache(maxBytes);
+      }
+    } else if (cacheType == Configuration.OFF_HEAP_CACHE) {
+      offHeapStore = webSite.getOffHeapPageStore();
+    } else if (cacheType == Configuration.SEGMENT_CACHE) {
+      segmentStore = webSite.getSegmentPageStore();
+    }
+  }
+  
+  /**
+   * Parses the site, or applies the changes to the current site map if this
+   * site map has been created with a list of changed paths. Site maps of the
+   * same website are never built at the same time.
+   */
+  public void process() {
+    synchronized (webSite.getSiteMapLock()) {
+      SiteMap current = webSite.getSiteMap();
+      
+      if (changedPaths == null || current == null || current.isObsolete()) {
+        changedPaths = null;
+        super.process();
+      } else {
+        processChanges(current);
+      }
+    }
+  }
+  
+  /**
+   * Publishes a site map read from a snapshot, without reading the pages.
+   * A full parse should follow to find the pages changed in the meantime.
+   *
+   * @see SiteMapSnapshot
+   */
+  void restore(SortedMap pagesMap, SortedMap currentWelcomes, long lastScan) {
+    synchronized (webSite.getSiteMapLock()) {
+      this.pagesMap = pagesMap;
+      this.currentWelcomes = new ConcurrentSkipListMap(currentWelcomes);
+      this.lastScan = lastScan;
+      restored = true;
+      postProcess();
+    }
+  }
+  
+  /**
+   * Returns the paths of the folders that have a welcome file, mapped to the
+   * paths of their welcome files.
+   */
+  SortedMap getCurrentWelcomes() {
+    return currentWelcomes;
+  }
+  
+  /**
+   * Copies the current site map and parses again only the changed pages and
+   * the directories where pages have been created or deleted. A new or
+   * deleted welcome file changes its whole directory.
+   */
+  private void processChanges(SiteMap current) {
+    oldSiteMap = current;
+    pagesMap = new TreeMap(current.pagesMap);
+    currentWelcomes = new ConcurrentSkipListMap(current.currentWelcomes);
+    lastScan = current.lastScan;
+    List dirs = new ArrayList();
+    List files = new ArrayList();
+    
+    for (int i = 0; i < changedPaths.length; i++) {
+      Path path = changedPaths[i];
+      
+      if (path.isRelative() || webSite.isSystem(path)) {
+        continue;
+      }
+      
+      String name = path.getLastElement();
+      
+      if (currentWelcomes.containsKey(path) ||
+          webSite.getFile(path).isDirectory()) {
+        addDirectory(dirs, path);
+      } else if (Utils.searchString(webSite.getWelcomeFileNames(), name,
+          false) >= 0) {
+        addDirectory(dirs, path.getParent());
+      } else if (FileTypes.isPage(name)) {
+        files.add(path);
+      }
+    }
+    
+    for (int i = 0; i < dirs.size(); i++) {
+      Path dirPath = (Path) dirs.get(i);
+      pagesMap.subMap(dirPath, dirPath.successor()).clear();
+      currentWelcomes.subMap(dirPath, dirPath.successor()).clear();
+      File dir = webSite.getFile(dirPath);
+      
+      // directories are parsed only if their parent is in the site map
+      if (dir.isDirectory() && (dirPath.isRoot() ||
+          currentWelcomes.containsKey(dirPath.getParent()))) {
+        parse(dir, dirPath);
+      }
+    }
+    
+    for (int i = 0; i < files.size(); i++) {
+      Path path = (Path) files.get(i);
+      
+      if (!isContainedIn(path, dirs)) {
+        File file = webSite.getFile(path);
+        pagesMap.remove(path);
+        
+        if (file.isFile()) {
+          processFile(file, path);
+        }
+      }
     }
+    
+    postProcess();
+  }
+  
+  /**
+   * Adds a directory to the list, unless it is contained in another one.
+   * Directories contained in the new one are removed.
+   */
+  private static void addDirectory(List dirs, Path dirPath) {
+    if (isContainedIn(dirPath, dirs)) {
+      return;
+    }
+    
+    for (Iterator iter = dirs.iterator(); iter.hasNext(); ) {
+      if (((Path) iter.next()).isContainedIn(dirPath)) {
+        iter.remove();
+      }
+    }
+    
+    dirs.add(dirPath);
+  }
+  
+  private static boolean isContainedIn(Path path, List dirs) {
+    for (int i = 0; i < dirs.size(); i++) {
+      if (path.isContainedIn((Path) dirs.get(i))) {
+        return true;
+      }
+    }
+    
+    return false;
   }
   
   protected boolean preProcess() {
@@ -116,7 +306,7 @@ public class SiteMap extends DirectoryParser {
     }
     
     pagesMap = new TreeMap();
-    currentWelcomes = new TreeMap();
+    currentWelcomes = new ConcurrentSkipListMap();
     return true;
   }
   
@@ -148,72 +338,57 @@ public class SiteMap extends DirectoryParser {
   }
   
   protected void processFile(File file, Path path) {
-    if (!FileTypes.isPage(path.getLastElement())) {
-      return;
-    }
-    
-    Path dirPath = path.getParent();
-    Path welcome = (Path) currentWelcomes.get(dirPath);
-    
-    if (welcome == null) {
-      return;
-    }
-    
-    Path parentPath = dirPath.getParent();
+    processFile(file, path, parseFile(file, path));
+  }
+  
+  /**
+   * Reads the page if it has changed since the previous site map has been
+   * built. Called concurrently when the site is parsed in parallel: only the
+   * welcome files and the previous site map are used.
+   */
+  protected Object parseFile(File file, Path path) {
+    Path menuPath = getMenuPath(path);
     
-    if (!parentPath.isRelative() && currentWelcomes.get(parentPath) == null) {
-      return;
+    if (menuPath == null) {
+      return null;
     }
     
-    path = welcome.equals(path) ? dirPath : path;
-    PageInfo pageInfo = null;
+    PageInfo pageInfo = (oldSiteMap == null) ? null :
+        oldSiteMap.getPageInfo(menuPath);
+    long lastModified = file.lastModified();
     
-    if (oldSiteMap != null) {
-      pageInfo = oldSiteMap.getPageInfo(path);
+    if (pageInfo != null && pageInfo.getLastModified() == lastModified) {
+      return null;
     }
     
-    if (pageInfo == null) {
-      pageInfo = new PageInfo(webSite, path);
-    }
+    ParsedPage parsed = new ParsedPage();
+    parsed.lastModified = lastModified;
+    Reader reader = null;
     
-    if (pageInfo.getLastModified() != file.lastModified()) {
-      HTMLPageParser fpp = new HTMLPageParser();
-      Reader reader = null;
+    try {
+      String title;
+      String keywords;
+      HTMLPageScanner scanner = new HTMLPageScanner(file, excerptLength);
       
-      try {
+      if (scanner.scan()) {
+        title = scanner.getTitle();
+        keywords = scanner.getKeywords();
+        parsed.excerpt = scanner.getExcerpt();
+      } else {
+        // the page is not simple enough for the scanner
+        HTMLPageParser fpp = new HTMLPageParser();
         reader = new InputStreamReader(new FileInputStream(file),
             Utils.SYSTEM_CHARSET);
         Page page = fpp.parse(Utils.readAllChars(reader));
         reader.close();
-        String title = page.getTitle();
-        
-        if (Utils.isNullOrWhitespace(title)) {
-          title = Utils.beautify(Utils.removeExtension(path), true);
-        }
-        
-        pageInfo.setTitle(title);
-        pageInfo.setLastModified(file.lastModified());
+        title = page.getTitle();
+        keywords = page.getProperty("meta.keywords");
         
-        String keywords = page.getProperty("meta.keywords");
-        
-        if (!Utils.isNullOrEmpty(keywords)) {
-          Matcher matcher = KEYWORDS_REGEX.matcher(keywords);
-          List list = new ArrayList();
-          
-          while (matcher.find()) {
-            list.add(matcher.group());
-          }
-          
-          if (list.size() > 0) {
-            pageInfo.setKeywords((String[]) list.toArray(new String[list.size()]));
-          }
-        }
-
         if (excerptLength > 0) {
-          pageInfo.setExcerpt(Utils.limitedLength(Utils.stripHTMLTags
-              (page.getBody()), excerptLength));
+          parsed.excerpt = Utils.limitedLength(Utils.stripHTMLTags
+              (page.getBody()), excerptLength);
         } else {
-          pageInfo.setExcerpt("");
+          parsed.excerpt = "";
         }
         
         /*
@@ -226,33 +401,128 @@ public class SiteMap extends DirectoryParser {
           }
         }
          */
-      } catch (Exception ex) {
-        pageInfo.setTitle(Utils.beautify(path.getLastElement(), true));
-        pageInfo.setLastModified(0L);
-      } finally {
-        if (reader != null) {
-          try {
-            reader.close();
-          } catch (IOException ex) {
-            webSite.log("Can't close file " + file, ex);
-          }
+      }
+      
+      if (Utils.isNullOrWhitespace(title)) {
+        title = Utils.beautify(Utils.removeExtension(menuPath), true);
+      }
+      
+      parsed.title = title;
+      
+      if (!Utils.isNullOrEmpty(keywords)) {
+        Matcher matcher = KEYWORDS_REGEX.matcher(keywords);
+        List list = new ArrayList();
+        
+        while (matcher.find()) {
+          list.add(matcher.group());
+        }
+        
+        if (list.size() > 0) {
+          parsed.keywords = (String[]) list.toArray(new String[list.size()]);
+        }
+      }
+    } catch (Exception ex) {
+      parsed.title = Utils.beautify(menuPath.getLastElement(), true);
+      parsed.lastModified = 0L;
+      parsed.failed = true;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException ex) {
+          webSite.log("Can't close file " + file, ex);
         }
       }
     }
     
+    return parsed;
+  }
+  
+  /**
+   * Adds the page to the site map, updating its info with the result of
+   * {@link #parseFile}.
+   */
+  protected void processFile(File file, Path path, Object result) {
+    path = getMenuPath(path);
+    
+    if (path == null) {
+      return;
+    }
+    
+    PageInfo pageInfo = null;
+    
+    if (oldSiteMap != null) {
+      pageInfo = oldSiteMap.getPageInfo(path);
+    }
+    
+    if (pageInfo == null) {
+      pageInfo = new PageInfo(webSite, path);
+    }
+    
+    ParsedPage parsed = (ParsedPage) result;
+    
+    // null if the page has not changed
+    if (parsed != null) {
+      pageInfo.setTitle(parsed.title);
+      pageInfo.setLastModified(parsed.lastModified);
+      
+      if (!parsed.failed) {
+        if (parsed.keywords != null) {
+          pageInfo.setKeywords(parsed.keywords);
+        }
+        
+        pageInfo.setExcerpt(parsed.excerpt);
+      }
+    }
+    
     pagesMap.put(path, pageInfo);
   }
   
+  /**
+   * Returns the path of the page in the site map, or null if the file is not
+   * a page included in the site map.
+   */
+  private Path getMenuPath(Path path) {
+    if (!FileTypes.isPage(path.getLastElement())) {
+      return null;
+    }
+    
+    Path dirPath = path.getParent();
+    Path welcome = (Path) currentWelcomes.get(dirPath);
+    
+    if (welcome == null) {
+      return null;
+    }
+    
+    Path parentPath = dirPath.getParent();
+    
+    if (!parentPath.isRelative() && currentWelcomes.get(parentPath) == null) {
+      return null;
+    }
+    
+    return welcome.equals(path) ? dirPath : path;
+  }
+  
   protected void postProcess() {
     pagesMap = Collections.unmodifiableSortedMap(pagesMap);
     oldSiteMap = null;
     
+    // needed by getPathInMenu, also called while sorting
+    welcomeDirs = new HashMap();
+    Iterator iter = currentWelcomes.entrySet().iterator();
+    
+    while (iter.hasNext()) {
+      Map.Entry entry = (Map.Entry) iter.next();
+      welcomeDirs.put(entry.getValue(), entry.getKey());
+    }
+    
     pagesList = new ArrayList(pagesMap.values());
     Collections.sort(pagesList, new PageInfoComparator(this, webSite.getSiteInfo()));
     pagesList = Collections.unmodifiableList(pagesList);
+    buildIndexes();
     
     langList = new ArrayList();
-    Iterator iter = getPagesInDirectory(Path.ROOT, false).iterator();
+    iter = getPagesInDirectory(Path.ROOT, false).iterator();
     
     while (iter.hasNext()) {
       Path path = ((PageInfo) iter.next()).getPath();
@@ -267,8 +537,201 @@ public class SiteMap extends DirectoryParser {
     }
     
     langList = Collections.unmodifiableList(langList);
+    SiteMap previous = webSite.getSiteMap();
+    structureSignature = getSignature(false);
+    contentsSignature = getSignature(true);
+    
+    if (changedPaths != null) {
+      if (structureSignature.equals(previous.structureSignature) &&
+          contentsSignature.equals(previous.contentsSignature) &&
+          currentWelcomes.equals(previous.currentWelcomes)) {
+        /* the site map is unchanged, but a theme, a module or an included
+           file might have been modified */
+        previous.invalidateOutdated();
+        return;
+      }
+    } else if (!restored) {
+      lastScan = System.currentTimeMillis();
+    }
+    
+    invalidateCache(previous);
     setLastModified();
     webSite.setSiteMap(this);
+    webSite.getCacheWarmer().warm(this);
+    
+    if (!restored && webSite.getSiteMapSnapshot() != null) {
+      webSite.getSiteMapSnapshot().saveLater(this);
+    }
+  }
+  
+  /**
+   * Returns the pool of threads shared by all websites to parse their files.
+   * If the number of threads has been changed, a new pool is created: the
+   * parsers that are using the previous one complete their work anyway.
+   */
+  private static synchronized ForkJoinPool getParserPool(int parserThreads) {
+    if (parserPool == null || parserPool.getParallelism() != parserThreads) {
+      if (parserPool != null) {
+        parserPool.shutdown();
+      }
+      
+      parserPool = new ForkJoinPool(parserThreads);
+    }
+    
+    return parserPool;
+  }
+  
+  /**
+   * Stops the threads used to parse the websites. Called when the
+   * application is stopped.
+   */
+  public static synchronized void shutdownParserPool() {
+    if (parserPool != null) {
+      parserPool.shutdownNow();
+      parserPool = null;
+    }
+  }
+  
+  /**
+   * Indexes the sorted list of pages: the position of each page, the end of
+   * the pages contained in it and the children of each folder.
+   */
+  private void buildIndexes() {
+    int size = pagesList.size();
+    pagePositions = new HashMap(size * 2);
+    subtreeEnds = new int[size];
+    childrenMap = new HashMap();
+    int[] stack = new int[size];
+    int top = -1;
+    
+    for (int i = 0; i < size; i++) {
+      PageInfo pageInfo = (PageInfo) pagesList.get(i);
+      Path path = pageInfo.getPath();
+      int level = pageInfo.getLevel();
+      pagePositions.put(path, new Integer(i));
+      
+      // the pages on the stack have no more pages inside them
+      while (top >= 0 &&
+          ((PageInfo) pagesList.get(stack[top])).getLevel() >= level) {
+        subtreeEnds[stack[top--]] = i;
+      }
+      
+      stack[++top] = i;
+      
+      if (!path.isRoot()) {
+        List children = (List) childrenMap.get(path.getParent());
+        
+        if (children == null) {
+          children = new ArrayList();
+          childrenMap.put(path.getParent(), children);
+        }
+        
+        children.add(pageInfo);
+      }
+    }
+    
+    while (top >= 0) {
+      subtreeEnds[stack[top--]] = size;
+    }
+  }
+  
+  /**
+   * Removes from the cache the pages whose dependencies have changed since
+   * the previous site map was built, and the pages that no longer exist.
+   */
+  private void invalidateCache(SiteMap previous) {
+    if (offHeapStore != null && (previous == null ||
+        previous.offHeapStore != offHeapStore || previous.isObsolete())) {
+      // the store has not been kept up to date by the previous site map
+      offHeapStore.clear();
+    }
+    
+    if (segmentStore != null && (previous == null ||
+        previous.segmentStore != segmentStore || previous.isObsolete())) {
+      /* segments survive restarts: pages recovered from them are stale, but
+         pages that no longer exist must be removed */
+      segmentStore.retainPaths(pagesMap.keySet());
+    }
+    
+    invalidateOutdated(previous == null ||
+        !structureSignature.equals(previous.structureSignature),
+        previous == null ||
+        !contentsSignature.equals(previous.contentsSignature),
+        changedPaths == null);
+    
+    if (previous != null) {
+      Iterator iter = previous.pagesMap.entrySet().iterator();
+      
+      while (iter.hasNext()) {
+        Map.Entry entry = (Map.Entry) iter.next();
+        Path path = (Path) entry.getKey();
+        
+        if (!pagesMap.containsKey(path)) {
+          removeFromCache(path, (PageInfo) entry.getValue());
+        }
+      }
+    }
+  }
+  
+  /**
+   * Removes from the cache the pages whose files have been modified, like
+   * themes and modules, while the site map is unchanged.
+   */
+  void invalidateOutdated() {
+    invalidateOutdated(false, false, false);
+  }
+  
+  /**
+   * Removes from the cache the pages whose dependencies are no longer valid.
+   *
+   * @param structureChanged true if the structure of the site has changed
+   * @param contentsChanged true if the contents of any page have changed
+   * @param rescanned true if the whole site has been parsed again
+   */
+  private void invalidateOutdated(boolean structureChanged,
+      boolean contentsChanged, boolean rescanned) {
+    long now = System.currentTimeMillis();
+    
+    // stale pages are kept if they can still be served
+    boolean keepStale = webSite.getConfiguration().getMaxStaleAge() > 0;
+    
+    for (int i = 0; i < pagesList.size(); i++) {
+      PageInfo pageInfo = (PageInfo) pagesList.get(i);
+      
+      if (!pageInfo.isCacheValid(structureChanged, contentsChanged,
+          rescanned)) {
+        pageInfo.invalidateCache(now);
+        
+        if (!keepStale) {
+          removeFromCache(pageInfo.getPath());
+        }
+      }
+    }
+  }
+  
+  /**
+   * Computes a hash of the structure of the site (paths, titles and order of
+   * the pages) or of the contents of the pages (paths and dates).
+   */
+  private String getSignature(boolean contents) {
+    StringBuffer sb = new StringBuffer();
+    
+    for (int i = 0; i < pagesList.size(); i++) {
+      PageInfo pageInfo = (PageInfo) pagesList.get(i);
+      sb.append(pageInfo.getPath()).append('\n');
+      
+      if (contents) {
+        sb.append(pageInfo.getLastModified()).append('\n');
+      } else {
+        sb.append(pageInfo.getTitle()).append('\n');
+      }
+    }
+    
+    try {
+      return CachedPage.computeETag(sb.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException ex) {
+      return sb.toString(); // UTF-8 is always available
+    }
   }
   
   /**
@@ -291,7 +754,12 @@ public class SiteMap extends DirectoryParser {
    * folder; in this case the folder path is returned.
    */
   public Path getPathInMenu(Path path) {
-    return currentWelcomes.containsValue(path) ? path.getParent() : path;
+    if (welcomeDirs == null) { // still being built
+      return currentWelcomes.containsValue(path) ? path.getParent() : path;
+    }
+    
+    Path dirPath = (Path) welcomeDirs.get(path);
+    return (dirPath == null) ? path : dirPath;
   }
   
   /**
@@ -316,7 +784,8 @@ public class SiteMap extends DirectoryParser {
    * Checks if the given path is the welcome file for its directory.
    */
   public boolean isCurrentWelcome(Path path) {
-    return currentWelcomes.containsValue(path);
+    return (welcomeDirs == null) ? currentWelcomes.containsValue(path) :
+        welcomeDirs.containsKey(path);
   }
   
   /**
@@ -333,6 +802,14 @@ public class SiteMap extends DirectoryParser {
     return lastModified;
   }
   
+  /**
+   * Returns the time the whole site has been parsed for the last time. Site
+   * maps built from a list of changes keep the time of the previous one.
+   */
+  public long getLastScan() {
+    return lastScan;
+  }
+  
   /**
    * Returns the code needed to create a menu or a tree with the scripts
    * created by <a href="http://www.softcomplex.com/">SoftComplex</a>.
@@ -467,26 +944,7 @@ public class SiteMap extends DirectoryParser {
    * given one.
    */
   public boolean hasChildrenPages(Path path) {
-    if (!webSite.isDirectory(path)) {
-      return false;
-    }
-    
-    int n = path.getElementCount() + 1;
-    SortedMap map = getPagesMap(path);
-    
-    if (map != null) {
-      Iterator iter = map.keySet().iterator();
-      
-      while (iter.hasNext()) {
-        Path p = (Path) iter.next();
-        
-        if (p.getElementCount() == n) {
-          return true;
-        }
-      }
-    }
-    
-    return false;
+    return webSite.isDirectory(path) && childrenMap.containsKey(path);
   }
   
   /**
@@ -497,9 +955,8 @@ public class SiteMap extends DirectoryParser {
    */
   public List getPagesInDirectory(Path path, boolean includeDir) {
     PageInfo rootPage = getPageInfo(webSite.getDirectory(path));
-    int idx = pagesList.indexOf(rootPage);
     
-    if (idx < 0) {
+    if (rootPage == null) {
       return null;
     }
     
@@ -509,15 +966,10 @@ public class SiteMap extends DirectoryParser {
       list.add(rootPage);
     }
     
-    for (int i = idx + 1; i < pagesList.size(); i++) {
-      PageInfo pi = (PageInfo) pagesList.get(i);
-      int n = pi.getLevel() - rootPage.getLevel();
-      
-      if (n <= 0) {
-        break;
-      } else if (n == 1) {
-        list.add(pi);
-      }
+    List children = (List) childrenMap.get(rootPage.getPath());
+    
+    if (children != null) {
+      list.addAll(children);
     }
     
     return list;
@@ -544,22 +996,14 @@ public class SiteMap extends DirectoryParser {
       return pagesList;
     }
     
-    PageInfo rootPage = getPageInfo(root);
-    int idx = pagesList.indexOf(rootPage);
+    Integer idx = (Integer) pagePositions.get(getPathInMenu(root));
     
-    if (idx < 0) {
+    if (idx == null) {
       return new ArrayList();
     }
     
-    int rootLevel = rootPage.getLevel();
-    
-    for (int i = idx + 1; i < pagesList.size(); i++) {
-      if (((PageInfo) pagesList.get(i)).getLevel() <= rootLevel) {
-        return pagesList.subList(idx, i);
-      }
-    }
-    
-    return pagesList.subList(idx, pagesList.size());
+    int i = idx.intValue();
+    return pagesList.subList(i, subtreeEnds[i]);
   }
 
   /**
@@ -609,33 +1053,142 @@ public class SiteMap extends DirectoryParser {
   /**
    * Caches a page.
    */
-  public void cache(Path path, byte[] b) {
+  public void cache(CacheKey key, CachedPage page) {
+    if (webSite.isClosed()) {
+      return; // the website has been removed from memory
+    }
+    
+    webSite.getCacheMetrics().recordStore();
+    
     if (pageCache != null) {
-      pageCache.put(new Path(path), b);
+      pageCache.put(key, page);
+    } else if (offHeapStore != null) {
+      offHeapStore.put(key, page);
+    } else if (segmentStore != null) {
+      segmentStore.put(key, page);
     }
   }
   
   /**
-   * Removes a page from the cache.
+   * Removes a page from the cache, together with all its variants.
    */
   public void removeFromCache(Path path) {
+    removeFromCache(path, getPageInfo(path));
+  }
+  
+  private void removeFromCache(Path path, PageInfo pageInfo) {
+    removeFromCache(new CacheKey(path));
+    
+    if (pageInfo != null) {
+      String[] variants = pageInfo.removeCacheVariants();
+      
+      for (int i = 0; i < variants.length; i++) {
+        removeFromCache(new CacheKey(path, variants[i]));
+      }
+    }
+  }
+  
+  private void removeFromCache(CacheKey key) {
     if (pageCache != null) {
-      pageCache.remove(path);
+      pageCache.remove(key);
+    } else if (offHeapStore != null) {
+      offHeapStore.remove(key);
+    } else if (segmentStore != null) {
+      segmentStore.remove(key);
     }
   }
   
+  /**
+   * Returns a stream to read a page from the off-heap store or from the
+   * segment files, or null if the page is not available. The stream must be
+   * closed after use.
+   *
+   * @param gzip true to read the compressed version of the page
+   */
+  public PageInputStream openCached(CacheKey key, boolean gzip) {
+    PageInputStream in = null;
+    
+    if (offHeapStore != null) {
+      in = offHeapStore.openStream(key, gzip);
+      webSite.getCacheMetrics().recordMemoryLookup(in != null);
+    } else if (segmentStore != null) {
+      in = segmentStore.openStream(key, gzip);
+      webSite.getCacheMetrics().recordDiskLookup(in != null);
+    }
+    
+    return in;
+  }
+  
   /**
    * Gets a page from the cache.
    */
-  public byte[] getCached(Path path) {
-    return pageCache == null ? null : (byte[]) pageCache.get(path);
+  public CachedPage getCached(CacheKey key) {
+    if (pageCache == null) {
+      return null;
+    }
+    
+    CachedPage page = pageCache.get(key);
+    webSite.getCacheMetrics().recordMemoryLookup(page != null);
+    return page;
   }
   
   /**
    * Check if a page is available in the cache.
    */
   public boolean isCached(Path path) {
-    return pageCache == null ? false : pageCache.containsKey(path);
+    CacheKey key = new CacheKey(path);
+    long created = -1L;
+    
+    if (pageCache != null) {
+      CachedPage page = pageCache.peek(key);
+      
+      if (page != null) {
+        created = page.getCreated();
+      }
+    } else if (offHeapStore != null) {
+      created = offHeapStore.getCreated(key);
+    } else if (segmentStore != null) {
+      created = segmentStore.getCreated(key);
+    }
+    
+    if (created < 0L) {
+      return false;
+    }
+    
+    // stale pages are not considered
+    PageInfo pageInfo = getPageInfo(path);
+    return pageInfo == null || created >= pageInfo.getCacheValidSince();
+  }
+  
+  /**
+   * Returns the in-memory page cache, or null if pages are not cached in
+   * memory.
+   */
+  public PageCache getPageCache() {
+    return pageCache;
+  }
+  
+  /**
+   * Returns the off-heap page store, or null if pages are not cached off-heap.
+   */
+  public OffHeapPageStore getOffHeapStore() {
+    return offHeapStore;
+  }
+  
+  /**
+   * Returns the segment files page store, or null if pages are not cached in
+   * segment files.
+   */
+  public SegmentPageStore getSegmentStore() {
+    return segmentStore;
+  }
+  
+  /**
+   * Returns the object used to coalesce concurrent renderings of the same
+   * page.
+   */
+  public SingleFlight getRenderFlights() {
+    return renderFlights;
   }
   
   public SortedMap getThemesMap() {
@@ -696,54 +1249,30 @@ public class SiteMap extends DirectoryParser {
   }
   
   public Path getRedirMatch(Path requestedPath) {
-    if (redirCache == null) {
-      redirCache = new HashMap();
-      List list = getPagesList();
-      redirPaths = new Path[list.size()];
-      Iterator iter = list.iterator();
-      
-      for (int i = 0; iter.hasNext(); i++) {
-        redirPaths[i] = ((PageInfo) iter.next()).getPath();
-      }
-    }
+    RedirectMatcher matcher = redirMatcher;
     
-    Path result = null;
-    int best = 0;
+    if (matcher == null) {
+      matcher = new RedirectMatcher(getPagesList(), webSite.getCacheMetrics());
+      redirMatcher = matcher;
+    }
     
     if (Utils.searchString(WebUtils.DEFAULT_WELCOME_FILES,
         requestedPath.getLastElement(), false) >= 0) {
       requestedPath = requestedPath.getPartial(requestedPath.getElementCount() - 1);
     }
     
-    if (redirCache.containsKey(requestedPath)) {
-      result = (Path) redirCache.get(requestedPath);
-    } else {
-      Path match = removePageExtension(requestedPath);
-      
-      for (int i = 0; i < redirPaths.length; i++) {
-        String[] commonPart = Utils.commonPart(match.getElements(),
-            removePageExtension(redirPaths[i]).getElements(), true);
-        
-        if (commonPart != null && commonPart.length > best) {
-          result = redirPaths[i];
-          best = commonPart.length;
-        }
-      }
-      
-      redirCache.put(requestedPath, result);
-    }
-    
-    return result;
+    return matcher.match(requestedPath);
   }
   
-  private Path removePageExtension(Path path) {
-    String name = path.getLastElement();
-    
-    if (FileTypes.isPage(name)) {
-      path = path.getParent().add(Utils.removeExtension(name));
-    }
-    
-    return path;
+  /**
+   * The contents of a page read by {@link #parseFile}.
+   */
+  private static class ParsedPage {
+    private String title;
+    private String[] keywords;
+    private String excerpt;
+    private long lastModified;
+    private boolean failed;
   }
   
   public static class CodeLocalePair {
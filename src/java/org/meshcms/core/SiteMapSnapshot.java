@@ -0,0 +1,478 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.meshcms.util.Path;
+
+/**
+ * Stores the site map of a website in a compressed binary file, so it can be
+ * used as soon as the website is started again. The file contains the welcome
+ * files and, for each page, its path, title, keywords, excerpt, date and hit
+ * counts. Pages are checked again by a full parse after the site map has been
+ * read, so a snapshot that is not up to date is not a problem.
+ *
+ * <p>The site map is written in background each time a new one is built,
+ * and when the application is stopped.</p>
+ *
+ * <p>Hits counted between two snapshots are written to a {@link HitJournal}
+ * every {@link #FLUSH_INTERVAL} milliseconds, as a single batch for all the
+ * pages hit in the meantime, and are added again when the snapshot is read.
+ * If the application is not stopped properly, only the hits of the last
+ * interval are lost. Each snapshot has a new generation and starts a new
+ * journal, and a snapshot is written when the journal becomes too long.</p>
+ */
+public class SiteMapSnapshot {
+  /**
+   * Time between two writes of the hit journal, in milliseconds.
+   */
+  public static final long FLUSH_INTERVAL = 10000L;
+  
+  /**
+   * Length of the hit journal that causes a new snapshot to be written.
+   */
+  public static final long MAX_JOURNAL_LENGTH = 1024L * 1024L;
+  
+  private static final int MAGIC = 0x4D534D53; // MSMS
+  private static final int VERSION = 3;
+  
+  private static final Set snapshots = new HashSet();
+  
+  private WebSite webSite;
+  private File file;
+  private AtomicReference pending;
+  private ThreadPoolExecutor writer;
+  private HitJournal journal;
+  private long generation;
+  private Queue dirtyPages;
+  private ScheduledFuture flushTask;
+  
+  public SiteMapSnapshot(final WebSite webSite, File file) {
+    this.webSite = webSite;
+    this.file = file;
+    pending = new AtomicReference();
+    journal = new HitJournal(new File(file.getParentFile(),
+        WebSite.HIT_JOURNAL_FILE));
+    dirtyPages = new ConcurrentLinkedQueue();
+    writer = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue(1), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Site map writer for \"" +
+            webSite.getTypeDescription() + '"');
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    }, new ThreadPoolExecutor.DiscardPolicy());
+    flushTask = BackgroundScheduler.getInstance().schedule(this,
+        new Runnable() {
+      public void run() {
+        flushHits();
+      }
+    }, FLUSH_INTERVAL);
+    
+    synchronized (snapshots) {
+      snapshots.add(this);
+    }
+  }
+  
+  /**
+   * Returns the file that contains the snapshot.
+   */
+  public File getFile() {
+    return file;
+  }
+  
+  /**
+   * Reads the snapshot and publishes its site map. Returns false if there is
+   * no usable snapshot: in this case the site must be parsed.
+   */
+  public boolean load() {
+    if (!file.isFile()) {
+      return false;
+    }
+    
+    DataInputStream in = null;
+    
+    try {
+      in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+          new FileInputStream(file))));
+      
+      if (in.readInt() != MAGIC) {
+        return false;
+      }
+      
+      if (in.readInt() != VERSION ||
+          in.readInt() != webSite.getConfiguration().getExcerptLength()) {
+        return false; // pages would have to be read again anyway
+      }
+      
+      long lastScan = in.readLong();
+      long statsZero = in.readLong();
+      int statsLength = in.readInt();
+      long statsDay = in.readLong();
+      long fileGeneration = in.readLong();
+      
+      // hit counts are kept only if they can still be indexed
+      boolean keepStats = statsLength == webSite.getStatsLength();
+      
+      SortedMap welcomes = new TreeMap();
+      
+      for (int i = in.readInt(); i > 0; i--) {
+        welcomes.put(readPath(in), readPath(in));
+      }
+      
+      SortedMap pages = new TreeMap();
+      
+      for (int i = in.readInt(); i > 0; i--) {
+        PageInfo pageInfo = new PageInfo(webSite, readPath(in));
+        pageInfo.setTitle(readString(in));
+        pageInfo.setLastModified(in.readLong());
+        int n = in.readInt();
+        
+        if (n >= 0) {
+          String[] keywords = new String[n];
+          
+          for (int j = 0; j < n; j++) {
+            keywords[j] = readString(in);
+          }
+          
+          pageInfo.setKeywords(keywords);
+        }
+        
+        pageInfo.setExcerpt(readString(in));
+        int[] stats = new int[in.readInt()];
+        
+        for (int j = 0; j < stats.length; j++) {
+          stats[j] = in.readInt();
+        }
+        
+        if (keepStats) {
+          pageInfo.restoreStats(stats, statsDay);
+        }
+        
+        pages.put(pageInfo.getPath(), pageInfo);
+      }
+      
+      // reads the GZIP trailer to check the whole file
+      if (in.read() != -1) {
+        throw new IOException("Unexpected data at the end of " + file);
+      }
+      
+      if (keepStats) {
+        webSite.setStatsZero(statsZero);
+      }
+      
+      synchronized (this) {
+        generation = fileGeneration;
+        
+        if (keepStats) {
+          replayJournal(pages);
+        }
+      }
+      
+      new SiteMap(webSite).restore(pages, welcomes, lastScan);
+      return true;
+    } catch (IOException ex) {
+      webSite.log("Can't read the site map from " + file, ex);
+    } catch (RuntimeException ex) {
+      webSite.log("Can't read the site map from " + file, ex);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ex) {}
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Adds the hits found in the journal to the pages read from the snapshot.
+   * If the journal can't be read, hits will be written by a new snapshot.
+   */
+  private void replayJournal(Map pages) {
+    try {
+      int count = journal.replay(generation, pages);
+      
+      if (count > 0) {
+        webSite.log(count + " hit records read from " + journal.getFile());
+      }
+    } catch (IOException ex) {
+      webSite.log("Can't read the hits from " + journal.getFile(), ex);
+    }
+  }
+  
+  /**
+   * Queues a page whose hits must be written to the journal. Called by
+   * {@link PageInfo#addHit}.
+   */
+  void markDirty(PageInfo pageInfo) {
+    dirtyPages.add(pageInfo);
+  }
+  
+  /**
+   * Writes the hits counted since the last write to the journal. If the
+   * journal can't be used or is too long, a new snapshot is written instead.
+   */
+  synchronized void flushHits() {
+    boolean open = journal.isOpen();
+    
+    try {
+      PageInfo pageInfo;
+      
+      while ((pageInfo = (PageInfo) dirtyPages.poll()) != null) {
+        pageInfo.writeHits(open ? journal : null);
+      }
+      
+      if (open) {
+        journal.commit();
+      }
+    } catch (IOException ex) {
+      webSite.log("Can't write the hits to " + journal.getFile(), ex);
+      open = false;
+    }
+    
+    if (!open || journal.getLength() > MAX_JOURNAL_LENGTH) {
+      SiteMap siteMap = webSite.getSiteMap();
+      
+      if (siteMap != null) {
+        try {
+          save(siteMap);
+        } catch (IOException ex) {
+          webSite.log("Can't write the site map to " + file, ex);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Writes the site map in background. If the writer is busy, only the last
+   * site map will be written.
+   */
+  public void saveLater(SiteMap siteMap) {
+    if (pending.getAndSet(siteMap) == null) {
+      writer.execute(new Runnable() {
+        public void run() {
+          SiteMap siteMap = (SiteMap) pending.getAndSet(null);
+          
+          if (siteMap != null) {
+            try {
+              save(siteMap);
+            } catch (IOException ex) {
+              webSite.log("Can't write the site map to " + file, ex);
+            }
+          }
+        }
+      });
+    }
+  }
+  
+  /**
+   * Writes the site map. The file is replaced only when the new one is
+   * complete, then the hit journal is started again, since the snapshot
+   * contains all the hits.
+   */
+  public synchronized void save(SiteMap siteMap) throws IOException {
+    /* the time makes the generation unique even if the files have been
+       removed or restored from a backup */
+    long newGeneration = Math.max(System.currentTimeMillis(), generation + 1L);
+    File tempFile = new File(file.getParentFile(),
+        WebSite.TEMP_PREFIX + file.getName());
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(new FileOutputStream(tempFile))));
+    
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(webSite.getConfiguration().getExcerptLength());
+      out.writeLong(siteMap.getLastScan());
+      out.writeLong(webSite.getStatsZero());
+      out.writeInt(webSite.getStatsLength());
+      long statsDay = webSite.getStatsDay();
+      out.writeLong(statsDay);
+      out.writeLong(newGeneration);
+      
+      Map welcomes = siteMap.getCurrentWelcomes();
+      out.writeInt(welcomes.size());
+      Iterator iter = welcomes.entrySet().iterator();
+      
+      while (iter.hasNext()) {
+        Map.Entry entry = (Map.Entry) iter.next();
+        writeString(out, entry.getKey().toString());
+        writeString(out, entry.getValue().toString());
+      }
+      
+      List pages = siteMap.getPagesList();
+      out.writeInt(pages.size());
+      
+      for (int i = 0; i < pages.size(); i++) {
+        PageInfo pageInfo = (PageInfo) pages.get(i);
+        writeString(out, pageInfo.getPath().toString());
+        writeString(out, pageInfo.getTitle());
+        out.writeLong(pageInfo.getLastModified());
+        String[] keywords = pageInfo.getKeywords();
+        
+        if (keywords == null) {
+          out.writeInt(-1);
+        } else {
+          out.writeInt(keywords.length);
+          
+          for (int j = 0; j < keywords.length; j++) {
+            writeString(out, keywords[j]);
+          }
+        }
+        
+        writeString(out, pageInfo.getExcerpt());
+        int[] stats = pageInfo.copyStats(statsDay);
+        out.writeInt(stats.length);
+        
+        for (int j = 0; j < stats.length; j++) {
+          out.writeInt(stats[j]);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    
+    Files.move(tempFile.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    generation = newGeneration;
+    journal.reset(generation);
+  }
+  
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] b = s.getBytes("UTF-8");
+      out.writeInt(b.length);
+      out.write(b);
+    }
+  }
+  
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    
+    if (length < 0) {
+      return null;
+    }
+    
+    byte[] b = new byte[length];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+  
+  private static Path readPath(DataInputStream in) throws IOException {
+    String s = readString(in);
+    
+    if (s == null) {
+      throw new EOFException("Missing path");
+    }
+    
+    return new Path(s);
+  }
+  
+  /**
+   * Writes the current site map and stops the writer. Called when the website
+   * is removed from memory.
+   */
+  public void close() {
+    synchronized (snapshots) {
+      snapshots.remove(this);
+    }
+
+    cancelFlush();
+
+    SiteMap siteMap = webSite.getSiteMap();
+
+    if (siteMap != null) {
+      try {
+        save(siteMap);
+      } catch (IOException ex) {
+        webSite.log("Can't write the site map to " + file, ex);
+      }
+    }
+
+    writer.shutdown();
+  }
+
+  private void cancelFlush() {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+    }
+  }
+
+  /**
+   * Writes the current site maps of all websites. Called when the application
+   * is stopped, so hit counts are not lost.
+   */
+  public static void saveAll() {
+    synchronized (snapshots) {
+      Iterator iter = snapshots.iterator();
+      
+      while (iter.hasNext()) {
+        SiteMapSnapshot snapshot = (SiteMapSnapshot) iter.next();
+        snapshot.cancelFlush();
+        SiteMap siteMap = snapshot.webSite.getSiteMap();
+        
+        if (siteMap != null) {
+          try {
+            snapshot.save(siteMap);
+          } catch (IOException ex) {
+            snapshot.webSite.log("Can't write the site map to " +
+                snapshot.file, ex);
+          }
+        }
+        
+        snapshot.writer.shutdown();
+      }
+    }
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.meshcms.util.Path;
+
+/**
+ * Keeps the site maps of the websites up to date by watching their files. A
+ * single thread and a single watch service are shared by all websites that
+ * enable this feature in their configuration. Changes are collected until the
+ * files are quiet for a moment, then they are applied to the current site map
+ * with {@link WebSite#updateSiteMap(Path[])}. Changes to themes and modules
+ * don't affect the site map, but the cached pages that depend on them are
+ * invalidated. If the file system can't notify changes, files are not
+ * watched: the whole site is still parsed at the configured update interval.
+ */
+public final class SiteMapWatcher extends Thread {
+  /**
+   * Time to wait for other changes after one has been notified, in
+   * milliseconds.
+   */
+  public static final long QUIET_TIME = 500L;
+  
+  /**
+   * Maximum time changes are delayed while files keep changing, in
+   * milliseconds.
+   */
+  public static final long MAX_DELAY = 5000L;
+  
+  private static final WatchEvent.Kind[] EVENT_KINDS = {
+    StandardWatchEventKinds.ENTRY_CREATE,
+    StandardWatchEventKinds.ENTRY_DELETE,
+    StandardWatchEventKinds.ENTRY_MODIFY
+  };
+  
+  private static SiteMapWatcher instance;
+  
+  private WatchService watchService;
+  private Map registrations;
+  private Set webSites;
+  
+  private SiteMapWatcher(WatchService watchService) {
+    this.watchService = watchService;
+    registrations = new HashMap();
+    webSites = new HashSet();
+    setDaemon(true);
+    setName("Site map watcher");
+  }
+  
+  /**
+   * Starts watching the files of the given website. The shared thread is
+   * started when the first website is watched.
+   *
+   * @return false if the files can't be watched
+   */
+  public static boolean watch(WebSite webSite) {
+    SiteMapWatcher watcher;
+    
+    synchronized (SiteMapWatcher.class) {
+      if (instance == null) {
+        try {
+          instance = new SiteMapWatcher(FileSystems.getDefault().
+              newWatchService());
+        } catch (Exception ex) {
+          webSite.log("Can't watch files, the site map will be updated at " +
+              "the configured interval", ex);
+          return false;
+        }
+        
+        instance.start();
+      }
+      
+      watcher = instance;
+    }
+    
+    return watcher.add(webSite);
+  }
+  
+  /**
+   * Stops watching the files of the given website. Called when the website is
+   * closed, or when watching is disabled in its configuration.
+   */
+  public static void unwatch(WebSite webSite) {
+    SiteMapWatcher watcher;
+    
+    synchronized (SiteMapWatcher.class) {
+      watcher = instance;
+    }
+    
+    if (watcher != null) {
+      watcher.remove(webSite);
+    }
+  }
+  
+  /**
+   * Stops the shared thread. Called when the application is stopped.
+   */
+  public static void shutdown() {
+    SiteMapWatcher watcher;
+    
+    synchronized (SiteMapWatcher.class) {
+      watcher = instance;
+      instance = null;
+    }
+    
+    if (watcher != null) {
+      watcher.interrupt();
+      
+      try {
+        watcher.watchService.close();
+      } catch (IOException ex) {}
+    }
+  }
+  
+  public void run() {
+    while (!isInterrupted()) {
+      try {
+        WatchKey key = watchService.take();
+        long deadline = System.currentTimeMillis() + MAX_DELAY;
+        Map changes = new HashMap();
+        Set overflows = new HashSet();
+        Set dependencyChanges = new HashSet();
+        
+        while (key != null) {
+          collectEvents(key, changes, overflows, dependencyChanges);
+          long wait = Math.min(QUIET_TIME,
+              deadline - System.currentTimeMillis());
+          key = wait > 0L ?
+              watchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+        }
+        
+        applyChanges(changes, overflows, dependencyChanges);
+      } catch (InterruptedException ex) {
+        break;
+      } catch (ClosedWatchServiceException ex) {
+        break;
+      }
+    }
+  }
+  
+  /**
+   * Collects the events of a key for all the websites that watch its
+   * directory.
+   */
+  private void collectEvents(WatchKey key, Map changes, Set overflows,
+      Set dependencyChanges) {
+    List regs;
+    
+    synchronized (this) {
+      regs = (List) registrations.get(key);
+      regs = (regs == null) ? new ArrayList() : new ArrayList(regs);
+    }
+    
+    List events = key.pollEvents();
+    
+    for (int i = 0; i < regs.size(); i++) {
+      Registration reg = (Registration) regs.get(i);
+      WebSite webSite = reg.webSite;
+      Iterator iter = events.iterator();
+      
+      while (iter.hasNext()) {
+        WatchEvent event = (WatchEvent) iter.next();
+        
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          overflows.add(webSite);
+          continue;
+        }
+        
+        Path path = reg.dirPath.add(event.context().toString());
+        
+        if (!reg.dependency && !isWatched(webSite, path)) {
+          continue;
+        }
+        
+        if (reg.dependency) {
+          dependencyChanges.add(webSite);
+        } else {
+          Set paths = (Set) changes.get(webSite);
+          
+          if (paths == null) {
+            paths = new TreeSet();
+            changes.put(webSite, paths);
+          }
+          
+          paths.add(path);
+        }
+        
+        File file = webSite.getFile(path);
+        
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+            file.isDirectory()) {
+          try {
+            register(webSite, file, path, reg.dependency);
+          } catch (IOException ex) {
+            webSite.log("Can't watch " + path, ex);
+            overflows.add(webSite);
+          }
+        }
+      }
+    }
+    
+    if (!key.reset()) {
+      synchronized (this) {
+        registrations.remove(key); // the directory has been deleted
+      }
+    }
+  }
+  
+  /**
+   * Applies the collected changes to the websites that are still watched.
+   */
+  private void applyChanges(Map changes, Set overflows,
+      Set dependencyChanges) {
+    Set all = new HashSet(changes.keySet());
+    all.addAll(overflows);
+    all.addAll(dependencyChanges);
+    Iterator iter = all.iterator();
+    
+    while (iter.hasNext()) {
+      WebSite webSite = (WebSite) iter.next();
+      
+      synchronized (this) {
+        if (!webSites.contains(webSite)) {
+          continue;
+        }
+      }
+      
+      try {
+        if (overflows.contains(webSite)) {
+          // too many changes: the file system has not notified them all
+          webSite.updateSiteMap(true);
+        } else if (changes.containsKey(webSite)) {
+          // dependencies of cached pages are checked by the update too
+          Set paths = (Set) changes.get(webSite);
+          webSite.updateSiteMap((Path[]) paths.toArray(new Path[paths.size()]));
+        } else {
+          webSite.getSiteMap().invalidateOutdated();
+        }
+      } catch (Exception ex) {
+        webSite.log("Can't update the site map", ex);
+      }
+    }
+  }
+  
+  private synchronized boolean add(WebSite webSite) {
+    if (webSites.contains(webSite)) {
+      return true;
+    }
+    
+    if (webSite.isClosed()) {
+      return false;
+    }
+    
+    webSites.add(webSite);
+    
+    try {
+      register(webSite, webSite.getRootFile(), Path.ROOT, false);
+      
+      if (webSite.getCMSPath() != null) {
+        registerDependency(webSite, webSite.getCustomThemesPath());
+        registerDependency(webSite, webSite.getCustomModulesPath());
+        registerDependency(webSite, webSite.getAdminThemesPath());
+        registerDependency(webSite, webSite.getAdminModulesPath());
+      }
+    } catch (IOException ex) {
+      webSite.log("Can't watch files, the site map will be updated at " +
+          "the configured interval", ex);
+      remove(webSite);
+      return false;
+    }
+    
+    return true;
+  }
+  
+  private synchronized void remove(WebSite webSite) {
+    if (!webSites.remove(webSite)) {
+      return;
+    }
+    
+    Iterator iter = registrations.entrySet().iterator();
+    
+    while (iter.hasNext()) {
+      Map.Entry entry = (Map.Entry) iter.next();
+      List regs = (List) entry.getValue();
+      
+      for (int i = regs.size() - 1; i >= 0; i--) {
+        if (((Registration) regs.get(i)).webSite == webSite) {
+          regs.remove(i);
+        }
+      }
+      
+      // the key is shared by all websites that watch the same directory
+      if (regs.isEmpty()) {
+        ((WatchKey) entry.getKey()).cancel();
+        iter.remove();
+      }
+    }
+  }
+  
+  private void registerDependency(WebSite webSite, Path dirPath)
+      throws IOException {
+    File dir = webSite.getFile(dirPath);
+    
+    if (dir.isDirectory()) {
+      register(webSite, dir, dirPath, true);
+    }
+  }
+  
+  /**
+   * Registers a directory and its subdirectories.
+   *
+   * @param dependency true if changes to the files don't affect the site map,
+   * but only the pages that depend on them
+   */
+  private synchronized void register(WebSite webSite, File dir, Path dirPath,
+      boolean dependency) throws IOException {
+    if (!webSites.contains(webSite) ||
+        !(dependency || isWatched(webSite, dirPath))) {
+      return;
+    }
+    
+    WatchKey key = dir.toPath().register(watchService, EVENT_KINDS);
+    List regs = (List) registrations.get(key);
+    
+    if (regs == null) {
+      regs = new ArrayList(1);
+      registrations.put(key, regs);
+    }
+    
+    for (int i = 0; i < regs.size(); i++) {
+      Registration reg = (Registration) regs.get(i);
+      
+      if (reg.webSite == webSite && reg.dirPath.equals(dirPath)) {
+        return; // already registered, subdirectories too
+      }
+    }
+    
+    regs.add(new Registration(webSite, dirPath, dependency));
+    File[] list = dir.listFiles();
+    
+    if (list != null) {
+      for (int i = 0; i < list.length; i++) {
+        if (list[i].isDirectory()) {
+          register(webSite, list[i], dirPath.add(list[i].getName()),
+              dependency);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Files of the CMS are not part of the site map and cached pages are
+   * written there: they are watched only as dependencies of cached pages.
+   */
+  private static boolean isWatched(WebSite webSite, Path path) {
+    Path cmsPath = webSite.getCMSPath();
+    return !webSite.isSystem(path) &&
+        (cmsPath == null || !path.isContainedIn(cmsPath));
+  }
+  
+  private static class Registration {
+    private WebSite webSite;
+    private Path dirPath;
+    private boolean dependency;
+    
+    private Registration(WebSite webSite, Path dirPath, boolean dependency) {
+      this.webSite = webSite;
+      this.dirPath = dirPath;
+      this.dependency = dependency;
+    }
+  }
+}
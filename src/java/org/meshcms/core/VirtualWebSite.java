@@ -20,12 +20,17 @@
 package org.meshcms.core;
 
 import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import org.meshcms.util.Path;
 
 public class VirtualWebSite extends WebSite {
   private MainWebSite mainWebSite;
+  private volatile long lastAccess;
+  private CountDownLatch ready = new CountDownLatch(1);
+  private volatile boolean failed;
 
   protected static VirtualWebSite create(MainWebSite mainWebSite, Path rootPath,
       Path cmsPath) {
@@ -34,10 +39,76 @@ public class VirtualWebSite extends WebSite {
     return virtualWebSite;
   }
 
+  /**
+   * Initializes the website. It becomes ready when this method returns. If
+   * the initialization fails, the website is marked as
+   * {@link #isFailed failed} before waiting threads are released.
+   */
   protected void init(MainWebSite mainWebSite, Path rootPath, Path cmsPath) {
     this.mainWebSite = mainWebSite;
-    init(mainWebSite.getServletContext(), mainWebSite.getWelcomeFileNames(),
-        mainWebSite.getFile(rootPath), rootPath, cmsPath);
+    boolean done = false;
+
+    try {
+      init(mainWebSite.getServletContext(), mainWebSite.getWelcomeFileNames(),
+          mainWebSite.getFile(rootPath), rootPath, cmsPath);
+      done = true;
+    } finally {
+      if (!done) {
+        failed = true;
+      }
+
+      ready.countDown();
+    }
+  }
+
+  /**
+   * Marks the website as failed without initializing it, releasing the
+   * threads that wait for it.
+   */
+  void setFailed() {
+    failed = true;
+    ready.countDown();
+  }
+
+  /**
+   * Returns true if the initialization of the website has finished, even if
+   * it has failed.
+   */
+  public boolean isReady() {
+    return ready.getCount() == 0L;
+  }
+
+  /**
+   * Returns true if the initialization of the website has failed. A failed
+   * website must not be used to serve requests.
+   */
+  public boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * Waits for the website to be ready, for at most the given time.
+   *
+   * @return true if the website is ready
+   */
+  public boolean awaitReady(long millis) {
+    try {
+      return ready.await(millis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return isReady();
+    }
+  }
+
+  /**
+   * Waits for the website to be ready, however long it takes.
+   */
+  public void awaitReady() {
+    try {
+      ready.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   public WebSite getWebSite(ServletRequest request) {
@@ -83,6 +154,17 @@ public class VirtualWebSite extends WebSite {
     return mainWebSite;
   }
 
+  /**
+   * Returns the last time this website has been requested.
+   */
+  long getLastAccess() {
+    return lastAccess;
+  }
+
+  void touch() {
+    lastAccess = System.currentTimeMillis();
+  }
+
   /* public String getLink(Path path) {
     return siteMap.getServedPath(path).getAsLink();
   } */
@@ -74,16 +74,46 @@ public class WebSite {
 
   public static final String ADMIN_ID_FILE = "meshcms_admin_id";
 
+  /**
+   * Name of the file in the private path that contains the last site map.
+   */
+  public static final String SITE_MAP_FILE = "sitemap.bin";
+
+  /**
+   * Name of the file in the private path that contains the hits counted
+   * since the last site map was written.
+   */
+  public static final String HIT_JOURNAL_FILE = "hits.journal";
+
+  /**
+   * Name of the folder in the private path that contains the segment files
+   * of the page cache.
+   */
+  public static final String SEGMENTS_DIR = "pagecache";
+
+  /**
+   * Estimated number of bytes used by a page of the site map, not counting
+   * its daily hit counts.
+   */
+  public static final int PAGE_INFO_SIZE = 512;
+
   protected ServletContext sc;
   protected String[] welcomeFiles;
 
   protected File rootFile;
   protected long lastAdminThemeBlock;
-  protected long statsZero;
+  protected volatile long statsZero;
   protected int statsLength;
   protected Configuration configuration;
   protected SiteInfo siteInfo;
   protected SiteMap siteMap;
+  protected OffHeapPageStore offHeapPageStore;
+  protected SegmentPageStore segmentPageStore;
+  protected CacheWarmer cacheWarmer;
+  protected CacheMetrics cacheMetrics;
+  protected SiteMapSnapshot siteMapSnapshot;
+  private final Object siteMapLock = new Object();
+  private volatile boolean closed;
   protected Path rootPath;
 
   protected Path cmsPath;
@@ -144,7 +174,39 @@ public class WebSite {
 
       readConfig();
       statsLength = configuration.getStatsLength();
-      updateSiteMap(true);
+      statsZero = System.currentTimeMillis();
+      siteMapSnapshot = new SiteMapSnapshot(this,
+          getFile(privatePath.add(SITE_MAP_FILE)));
+
+      if (siteMapSnapshot.load()) {
+        // the site can be served while pages are checked in background
+        BackgroundScheduler.getInstance().submit(this, new Runnable() {
+          public void run() {
+            if (!closed) {
+              new SiteMap(WebSite.this).process();
+            }
+          }
+        }, false);
+      } else {
+        updateSiteMap(true);
+      }
+
+      updateFileWatching();
+    }
+  }
+
+  /**
+   * Starts or stops watching the files of this website, as set in the
+   * configuration. Files are not watched by default, since the whole site is
+   * parsed at the configured update interval anyway.
+   *
+   * @see SiteMapWatcher
+   */
+  public void updateFileWatching() {
+    if (configuration != null && configuration.isWatchFiles() && !closed) {
+      SiteMapWatcher.watch(this);
+    } else {
+      SiteMapWatcher.unwatch(this);
     }
   }
 
@@ -161,8 +223,9 @@ public class WebSite {
    * Creates another instance of <code>SiteMap</code>. If <code>force</code>
    * is true, a new site map is always created and the method
    * returns after the new site map is completed. If it is false, a new site map
-   * is created only if the current one is too old. In this case, the site map
-   * is created asynchronously and the method returns immediately. The
+   * is created only if the whole site has not been parsed for too long. In this
+   * case, the site map is created asynchronously by the
+   * {@link BackgroundScheduler} and the method returns immediately. The
    * repository will be cleaned too.
    *
    * @param force it to force the SiteMap creation.
@@ -170,15 +233,137 @@ public class WebSite {
   public void updateSiteMap(boolean force) {
     if (force) {
       new SiteMap(this).process();
-    } else if (System.currentTimeMillis() - siteMap.getLastModified() >
-               configuration.getUpdateIntervalMillis()) {
-    	new SiteMap(this).start();
-      new DirectoryCleaner(getFile(repositoryPath),
-          configuration.getBackupLifeMillis()).start();
-      new DirectoryCleaner(getFile(generatedFilesPath),
-          configuration.getBackupLifeMillis()).start();
-      new DirectoryCleaner(getFile(moduleDataPath)).start();
+    } else if (isSiteMapExpired() &&
+        !BackgroundScheduler.getInstance().isPending(this)) {
+      BackgroundScheduler.getInstance().submit(this, new Runnable() {
+        public void run() {
+          // another site map might have been built in the meantime
+          if (!closed && isSiteMapExpired()) {
+            new SiteMap(WebSite.this).process();
+            new DirectoryCleaner(getFile(repositoryPath),
+                configuration.getBackupLifeMillis()).process();
+            new DirectoryCleaner(getFile(generatedFilesPath),
+                configuration.getBackupLifeMillis()).process();
+            new DirectoryCleaner(getFile(moduleDataPath)).process();
+          }
+        }
+      }, true);
+    }
+  }
+
+  /**
+   * Returns true if the whole site has not been parsed for longer than the
+   * update interval.
+   */
+  private boolean isSiteMapExpired() {
+    return System.currentTimeMillis() - siteMap.getLastScan() >
+        configuration.getUpdateIntervalMillis();
+  }
+
+  /**
+   * Updates the site map after the files at the given paths have been
+   * created, modified or deleted. Only those files and directories are parsed
+   * again. The method returns after the new site map is completed.
+   *
+   * @see SiteMapWatcher
+   */
+  public void updateSiteMap(Path[] changedPaths) {
+    new SiteMap(this, changedPaths).process();
+  }
+
+  /**
+   * Releases the resources of this website: files are no longer watched, the
+   * site map is written to be read when the website is created again and its
+   * metrics are unregistered. The website should not be used after this
+   * call.
+   */
+  void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    SiteMapWatcher.unwatch(this);
+
+    if (siteMapSnapshot != null) {
+      siteMapSnapshot.close();
+    }
+
+    synchronized (this) {
+      offHeapPageStore = null; // buffers are freed when collected
+
+      /* the segments can be opened again by a new instance, so running
+         rebuilds and requests must no longer write to them */
+      if (segmentPageStore != null) {
+        segmentPageStore.close();
+        segmentPageStore = null;
+      }
+
+      if (cacheMetrics != null) {
+        cacheMetrics.unregister();
+      }
+    }
+  }
+
+  /**
+   * Returns true if the website has been closed.
+   */
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Returns an estimate of the memory used by the site map and the page
+   * caches of this website, in bytes.
+   */
+  long getMemoryFootprint() {
+    SiteMap siteMap = this.siteMap;
+    long bytes = 0L;
+
+    if (siteMap != null) {
+      bytes += siteMap.getPagesList().size() *
+          (PAGE_INFO_SIZE + 64L * statsLength); // 64 bytes per daily count
+
+      if (siteMap.getPageCache() != null) {
+        bytes += siteMap.getPageCache().getUsedBytes();
+      }
+    }
+
+    synchronized (this) {
+      if (offHeapPageStore != null) {
+        bytes += offHeapPageStore.getAllocatedBytes();
+      }
     }
+
+    return bytes;
+  }
+
+  /**
+   * Returns the object that stores the site map to be read at the next
+   * start, or null if this website has no CMS.
+   */
+  SiteMapSnapshot getSiteMapSnapshot() {
+    return siteMapSnapshot;
+  }
+
+  /**
+   * Returns the time used as a reference to number the days of the daily
+   * hit counts.
+   */
+  long getStatsZero() {
+    return statsZero;
+  }
+
+  void setStatsZero(long statsZero) {
+    this.statsZero = statsZero;
+  }
+
+  /**
+   * Returns the object used to build one site map at a time.
+   */
+  Object getSiteMapLock() {
+    return siteMapLock;
   }
 
   void setSiteMap(SiteMap siteMap) {
@@ -197,6 +382,75 @@ public class WebSite {
     return siteMap;
   }
 
+  /**
+   * Returns the off-heap page store of this website. The store is shared by
+   * consecutive site maps and is created again if the configured cache size
+   * changes.
+   */
+  synchronized OffHeapPageStore getOffHeapPageStore() {
+    long maxBytes = configuration.getMemoryCacheSizeBytes();
+
+    if (offHeapPageStore == null ||
+        offHeapPageStore.getMaxBytes() != maxBytes) {
+      offHeapPageStore = new OffHeapPageStore(maxBytes);
+    }
+
+    return offHeapPageStore;
+  }
+
+  /**
+   * Returns the segment files page store of this website, opening it the
+   * first time. The store is shared by consecutive site maps. Returns null
+   * if the website has been closed.
+   */
+  synchronized SegmentPageStore getSegmentPageStore() {
+    if (closed) {
+      return null;
+    }
+
+    long maxBytes = configuration.getDiskCacheSizeBytes();
+
+    if (segmentPageStore == null) {
+      segmentPageStore = new SegmentPageStore(getFile(privatePath.add(
+          SEGMENTS_DIR)), maxBytes);
+
+      try {
+        segmentPageStore.recover();
+      } catch (IOException ex) {
+        log("Can't open the page cache in " + SEGMENTS_DIR, ex);
+      }
+    } else {
+      segmentPageStore.setMaxBytes(maxBytes);
+    }
+
+    return segmentPageStore;
+  }
+
+  /**
+   * Returns the object that renders the most visited pages in background
+   * after the site map has been rebuilt.
+   */
+  public synchronized CacheWarmer getCacheWarmer() {
+    if (cacheWarmer == null) {
+      cacheWarmer = new CacheWarmer(this);
+    }
+
+    return cacheWarmer;
+  }
+
+  /**
+   * Returns the statistics of the page cache of this website. They are
+   * registered as an MBean when first requested.
+   */
+  public synchronized CacheMetrics getCacheMetrics() {
+    if (cacheMetrics == null) {
+      cacheMetrics = new CacheMetrics(this);
+      cacheMetrics.register();
+    }
+
+    return cacheMetrics;
+  }
+
   /**
    * Returns the current configuration of the web application.
    */
@@ -223,20 +477,24 @@ public class WebSite {
     return siteInfo;
   }
 
+  /**
+   * Returns the number of the current day, counted from the time used as a
+   * reference for the daily hit counts. It never decreases, unless the clock
+   * is set back.
+   */
+  public long getStatsDay() {
+    return Math.max((System.currentTimeMillis() - statsZero) /
+        Configuration.LENGTH_OF_DAY, 0L);
+  }
+
   /**
    * Returns the index of the current day in the array of stats included in any
-   * PageInfo instance.
+   * PageInfo instance. The array is used as a ring: the count of a day
+   * replaces the count of the day that was <code>getStatsLength()</code> days
+   * before.
    */
   public int getStatsIndex() {
-    long now = System.currentTimeMillis();
-    long days = (now - statsZero) / Configuration.LENGTH_OF_DAY;
-
-    if (days >= statsLength) {
-      statsZero = now;
-      return 0;
-    } else {
-      return (int) days;
-    }
+    return (int) (getStatsDay() % statsLength);
   }
 
   /**
@@ -456,6 +456,45 @@ public final class WebUtils {
     return request.getAttribute(HitFilter.BLOCK_CACHE_ATTRIBUTE) != null;
   }
   
+  /**
+   * Records that the current page depends on the given file, so a cached copy
+   * of the page is removed from the cache when the file is modified.
+   */
+  public static void addCacheDependency(HttpServletRequest request, File file) {
+    CacheDependencies deps = getCacheDependencies(request);
+    
+    if (deps != null) {
+      deps.addFile(file);
+    }
+  }
+  
+  /**
+   * Records that the current page depends on the site map. Menus depend on
+   * the structure of the site, while lists of pages with their dates depend
+   * on the contents of the pages too.
+   *
+   * @param level one of {@link CacheDependencies#SITE_STRUCTURE},
+   * {@link CacheDependencies#SITE_CONTENTS} and
+   * {@link CacheDependencies#SITE_HITS}
+   */
+  public static void setSiteMapDependency(HttpServletRequest request,
+      int level) {
+    CacheDependencies deps = getCacheDependencies(request);
+    
+    if (deps != null) {
+      deps.setSiteMapDependency(level);
+    }
+  }
+  
+  /**
+   * Returns the dependencies of the current page, or null if they are not
+   * being recorded.
+   */
+  public static CacheDependencies getCacheDependencies(HttpServletRequest request) {
+    return (CacheDependencies)
+        request.getAttribute(HitFilter.CACHE_DEPENDENCIES_ATTRIBUTE);
+  }
+  
   /**
    * Tries to locate a Locale stored in the Page scope or in the Request scope.
    * If none is found, returns the Locale of the request, or at least the
@@ -641,11 +680,26 @@ public final class WebUtils {
     }
   }
   
+  /**
+   * Updates the last modification time of the current page. The file is also
+   * added to the dependencies of the page.
+   */
   public static void updateLastModifiedTime(HttpServletRequest request, File file) {
-    updateLastModifiedTime(request, file.lastModified());
+    addCacheDependency(request, file);
+    setLastModifiedTime(request, file.lastModified());
   }
   
+  /**
+   * Updates the last modification time of the current page. This method is
+   * called with the dates of other pages, so the page is considered dependent
+   * on the contents of the site.
+   */
   public static void updateLastModifiedTime(HttpServletRequest request, long time) {
+    setSiteMapDependency(request, CacheDependencies.SITE_CONTENTS);
+    setLastModifiedTime(request, time);
+  }
+  
+  private static void setLastModifiedTime(HttpServletRequest request, long time) {
     if (time > getLastModifiedTime(request)) {
       request.setAttribute(HitFilter.LAST_MODIFIED_ATTRIBUTE, new Long(time));
     }
@@ -682,22 +736,168 @@ public final class WebUtils {
   }
   
   public static File getCacheFile(WebSite webSite, SiteMap siteMap, Path pagePath) {
+    return getCacheFile(webSite, siteMap, pagePath, "");
+  }
+  
+  /**
+   * Returns the cache file of a variant of a page, or null if it is not
+   * available or not valid.
+   *
+   * @param variantId the value of {@link CacheKey#getVariantId}
+   */
+  public static File getCacheFile(WebSite webSite, SiteMap siteMap,
+      Path pagePath, String variantId) {
     if (siteMap == null) {
       siteMap = webSite.getSiteMap();
     }
     
+    PageInfo pageInfo = siteMap.getPageInfo(pagePath);
+    long validSince = (pageInfo == null) ? siteMap.getLastModified() :
+        pageInfo.getCacheValidSince();
     pagePath = siteMap.getServedPath(pagePath);
-    File cacheFile = webSite.getRepositoryFile(pagePath, HitFilter.CACHE_FILE_NAME);
+    File cacheFile = webSite.getRepositoryFile(pagePath,
+        getCacheFileName(variantId, true));
     
     // a cached page too small is suspicious
-    if (cacheFile.exists() && cacheFile.length() > 256 &&
-        cacheFile.lastModified() > siteMap.getLastModified()) {
-      return cacheFile;
+    boolean found = cacheFile.exists() && cacheFile.length() > 256 &&
+        cacheFile.lastModified() > validSince;
+    webSite.getCacheMetrics().recordDiskLookup(found);
+    return found ? cacheFile : null;
+  }
+  
+  /**
+   * Returns the cache file of a page that has been invalidated, if it can
+   * still be served. Returns null if there is no cache file or if the page has
+   * been invalidated more than {@link Configuration#getMaxStaleAge} seconds
+   * ago.
+   */
+  public static File getStaleCacheFile(WebSite webSite, SiteMap siteMap,
+      Path pagePath) {
+    return getStaleCacheFile(webSite, siteMap, pagePath, "");
+  }
+  
+  public static File getStaleCacheFile(WebSite webSite, SiteMap siteMap,
+      Path pagePath, String variantId) {
+    if (siteMap == null) {
+      siteMap = webSite.getSiteMap();
+    }
+    
+    PageInfo pageInfo = siteMap.getPageInfo(pagePath);
+    long maxStaleAge = webSite.getConfiguration().getMaxStaleAgeMillis();
+    
+    if (pageInfo == null || maxStaleAge <= 0L ||
+        System.currentTimeMillis() - pageInfo.getCacheValidSince() > maxStaleAge) {
+      return null;
+    }
+    
+    File cacheFile = webSite.getRepositoryFile(siteMap.getServedPath(pagePath),
+        getCacheFileName(variantId, true));
+    return (cacheFile.exists() && cacheFile.length() > 256) ? cacheFile : null;
+  }
+  
+  /**
+   * Returns the uncompressed copy of the file returned by
+   * {@link #getCacheFile}, or null if it is not available.
+   */
+  public static File getIdentityCacheFile(WebSite webSite, SiteMap siteMap,
+      Path pagePath) {
+    return getIdentityCacheFile(webSite, siteMap, pagePath, "");
+  }
+  
+  public static File getIdentityCacheFile(WebSite webSite, SiteMap siteMap,
+      Path pagePath, String variantId) {
+    if (siteMap == null) {
+      siteMap = webSite.getSiteMap();
+    }
+    
+    pagePath = siteMap.getServedPath(pagePath);
+    File identityFile = webSite.getRepositoryFile(pagePath,
+        getCacheFileName(variantId, false));
+    File cacheFile = new File(identityFile.getParentFile(),
+        getCacheFileName(variantId, true));
+    
+    // both files are written together, the compressed one last
+    if (identityFile.exists() &&
+        identityFile.lastModified() <= cacheFile.lastModified() + 1000L) {
+      return identityFile;
     }
     
     return null;
   }
   
+  /**
+   * Returns the name of a cache file in the repository.
+   *
+   * @param variantId the value of {@link CacheKey#getVariantId}
+   * @param gzip true for the compressed copy of the page
+   */
+  public static String getCacheFileName(String variantId, boolean gzip) {
+    if (Utils.isNullOrEmpty(variantId)) {
+      return gzip ? HitFilter.CACHE_FILE_NAME : HitFilter.IDENTITY_CACHE_FILE_NAME;
+    }
+    
+    return "_cache_" + variantId + (gzip ? ".gz" : ".html");
+  }
+  
+  /**
+   * Checks if the client accepts GZIP compressed responses. The
+   * Accept-Encoding header is parsed according to RFC 2616: every parameter
+   * of a coding is read to find its quality value, so <code>gzip;q=0</code>
+   * is a refusal and <code>*</code> matches GZIP too. GZIP is used whenever
+   * it is acceptable, unless the identity encoding is explicitly preferred.
+   */
+  public static boolean isGzipAccepted(HttpServletRequest request) {
+    String ae = request.getHeader("Accept-Encoding");
+    
+    if (ae == null) {
+      return false;
+    }
+    
+    float gzipQ = -1.0F;
+    float identityQ = -1.0F;
+    float anyQ = -1.0F;
+    StringTokenizer st = new StringTokenizer(ae, ",");
+    
+    while (st.hasMoreTokens()) {
+      StringTokenizer params = new StringTokenizer(st.nextToken(), ";");
+      
+      if (!params.hasMoreTokens()) {
+        continue;
+      }
+      
+      String coding = params.nextToken().trim().toLowerCase();
+      float q = 1.0F;
+      
+      while (params.hasMoreTokens()) {
+        String param = params.nextToken();
+        int eq = param.indexOf('=');
+        
+        if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase("q")) {
+          try {
+            q = Float.parseFloat(param.substring(eq + 1).trim());
+          } catch (NumberFormatException ex) {
+            q = 0.0F;
+          }
+        }
+      }
+      
+      if (coding.equals("gzip") || coding.equals("x-gzip")) {
+        gzipQ = Math.max(gzipQ, q);
+      } else if (coding.equals("identity")) {
+        identityQ = q;
+      } else if (coding.equals("*")) {
+        anyQ = q;
+      }
+    }
+    
+    if (gzipQ < 0.0F) {
+      gzipQ = anyQ;
+    }
+    
+    // the identity encoding is always acceptable, but preferred only if asked
+    return gzipQ > 0.0F && gzipQ >= identityQ;
+  }
+  
   public static boolean isCached(WebSite webSite, SiteMap siteMap, Path pagePath) {
     if (siteMap == null) {
       siteMap = webSite.getSiteMap();
@@ -706,7 +906,9 @@ public final class WebUtils {
     int cacheType = webSite.getConfiguration().getCacheType();
     pagePath = siteMap.getServedPath(pagePath);
     
-    if (cacheType == Configuration.IN_MEMORY_CACHE) {
+    if (cacheType == Configuration.IN_MEMORY_CACHE ||
+        cacheType == Configuration.OFF_HEAP_CACHE ||
+        cacheType == Configuration.SEGMENT_CACHE) {
       return siteMap.isCached(pagePath);
     } else if (cacheType == Configuration.ON_DISK_CACHE ||
         cacheType == Configuration.MIXED_CACHE) {
@@ -725,16 +927,22 @@ public final class WebUtils {
     pagePath = siteMap.getServedPath(pagePath);
     
     if (cacheType == Configuration.IN_MEMORY_CACHE ||
-        cacheType == Configuration.MIXED_CACHE) {
+        cacheType == Configuration.MIXED_CACHE ||
+        cacheType == Configuration.OFF_HEAP_CACHE ||
+        cacheType == Configuration.SEGMENT_CACHE) {
       siteMap.removeFromCache(pagePath);
     }
     
     if (cacheType == Configuration.ON_DISK_CACHE ||
         cacheType == Configuration.MIXED_CACHE) {
-      File cacheFile = getCacheFile(webSite, siteMap, pagePath);
+      // the variants of the page are cached in the same directory
+      File[] files = webSite.getRepositoryFile(pagePath,
+          HitFilter.CACHE_FILE_NAME).getParentFile().listFiles();
       
-      if (cacheFile != null && cacheFile.exists()) {
-        Utils.forceDelete(cacheFile);
+      for (int i = 0; files != null && i < files.length; i++) {
+        if (files[i].getName().startsWith("_cache")) {
+          Utils.forceDelete(files[i]);
+        }
       }
     }
   }
@@ -34,6 +34,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.PageContext;
 import javax.servlet.jsp.tagext.TagSupport;
+import org.meshcms.core.CacheDependencies;
 import org.meshcms.core.HitFilter;
 import org.meshcms.core.ModuleDescriptor;
 import org.meshcms.core.PageAssembler;
@@ -154,6 +155,14 @@ public abstract class AbstractTag extends TagSupport implements RequestConstants
     return OutputConverter.getWriter(pageContext.getOut());
   }
   
+  /**
+   * Records that the current page shows the structure of the site, so it is
+   * removed from the cache when pages are added, removed or renamed.
+   */
+  void setSiteStructureDependency() {
+    WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_STRUCTURE);
+  }
+  
   ModuleDescriptor getModuleDescriptor(String location, String name) {
     ModuleDescriptor md;
     
@@ -48,6 +48,7 @@ public final class AlibMenu extends AbstractTag {
   private String allowHiding = "true";
 
   public void writeTag() throws IOException {
+    setSiteStructureDependency();
     Writer outWriter = getOut();
     boolean horizontal = orientation != null && orientation.equals(HORIZONTAL);
 
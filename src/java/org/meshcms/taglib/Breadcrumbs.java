@@ -65,6 +65,7 @@ public final class Breadcrumbs extends AbstractTag {
   }
 
   public void writeTag() throws IOException {
+    setSiteStructureDependency();
     PageInfo[] breadcrumbs = webSite.getSiteMap().getBreadcrumbs(pagePath);
     String[] outs;
 
@@ -30,6 +30,7 @@ public class Feed extends AbstractTag {
   private int maxItems = 10;
 
   public void writeTag() throws IOException {
+    setSiteStructureDependency();
     String rootPath = Utils.noNull(root,
         webSite.getSiteMap().getPathInMenu(pagePath).toString());
 
@@ -31,6 +31,7 @@ public class IfIndexed extends AbstractTag {
   }
   
   public int getStartTagReturnValue() {
+    setSiteStructureDependency();
     return webSite.getSiteMap().getPageInfo(pagePath) == null ?
       SKIP_BODY : EVAL_BODY_INCLUDE;
   }
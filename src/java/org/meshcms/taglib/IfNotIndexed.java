@@ -31,6 +31,7 @@ public class IfNotIndexed extends AbstractTag {
   }
   
   public int getStartTagReturnValue() {
+    setSiteStructureDependency();
     return webSite.getSiteMap().getPageInfo(pagePath) == null ?
       EVAL_BODY_INCLUDE : SKIP_BODY;
   }
@@ -51,6 +51,7 @@ public class LangMenu extends AbstractTag {
   }
   
   public void writeTag() throws IOException, JspException {
+    setSiteStructureDependency();
     SiteMap siteMap = webSite.getSiteMap();
     
     boolean notTranslatable =
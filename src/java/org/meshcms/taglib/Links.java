@@ -62,6 +62,7 @@ public final class Links extends AbstractTag {
   }
   
   public void writeTag() throws IOException {
+    setSiteStructureDependency();
     Path rootPath = (path == null) ? pagePath : new Path(path);
     List list = webSite.getSiteMap().getPagesInDirectory(rootPath,
         Utils.isTrue(welcome));
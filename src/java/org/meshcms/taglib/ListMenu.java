@@ -61,6 +61,7 @@ public final class ListMenu extends AbstractTag {
   boolean itemsIntermediateLevels;
   
   public void writeTag() throws IOException {
+    setSiteStructureDependency();
     if (items == null) {
       itemsAll = itemsIntermediateLevels = false;
       itemsOnPath = itemsFirstLevel = itemsLastLevel = itemsChildren = true;
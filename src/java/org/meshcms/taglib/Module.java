@@ -95,6 +95,15 @@ public final class Module extends AbstractTag {
         request.setAttribute(moduleCode, md);
 
         Path jspPath = modulePath.add(SiteMap.MODULE_INCLUDE_FILE);
+        
+        /* the module must be parsed again if its code changes or if files are
+           added to or removed from its directory */
+        WebUtils.addCacheDependency(request, webSite.getFile(jspPath));
+        Path argDirPath = md.getModuleArgumentDirectoryPath(webSite, true);
+        
+        if (argDirPath != null) {
+          WebUtils.addCacheDependency(request, webSite.getFile(argDirPath));
+        }
 
         if (WebUtils.verifyJSP(webSite, jspPath)) {
           try {
@@ -54,6 +54,7 @@ public final class SimpleMenu extends AbstractTag {
   }
 
   public void writeTag() throws IOException {
+    setSiteStructureDependency();
     SiteMap siteMap = webSite.getSiteMap();
     SiteInfo siteInfo = webSite.getSiteInfo();
     Path rootPath = (path == null) ? siteInfo.getThemeRoot(pagePath) : new Path(path);
@@ -40,6 +40,7 @@ public final class TigraMenu extends AbstractTag {
   private boolean allowHiding = false;
 
   public void writeTag() throws IOException {
+    setSiteStructureDependency();
     Path rootPath = (path == null) ?
         webSite.getSiteInfo().getThemeRoot(pagePath) : new Path(path);
     Path script = WebUtils.getThemeFolderPath(request, pageDirPath);
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream that stores data in fixed size chunks taken from a shared
+ * pool, instead of a single array that is copied each time it grows.
+ *
+ * <p>Once closed, the buffer can't be modified any more: it can be read any
+ * number of times, also by different threads, without copying its chunks.
+ * The last chunk is trimmed to the size of the data when the buffer is
+ * closed. If the data is discarded, {@link #recycle} returns the chunks to the
+ * pool.</p>
+ */
+public final class ChunkedBuffer extends OutputStream {
+  /**
+   * Size of the chunks.
+   */
+  public static final int CHUNK_SIZE = 16384;
+
+  /**
+   * Maximum number of idle chunks kept in the pool.
+   */
+  public static final int POOL_SIZE = 64;
+
+  private static final List pool = new ArrayList();
+
+  private byte[][] chunks;
+  private int count;
+  private int pos;
+  private int size;
+  private boolean closed;
+
+  /**
+   * Creates an empty buffer.
+   */
+  public ChunkedBuffer() {
+    chunks = new byte[4][];
+  }
+
+  private ChunkedBuffer(byte[][] chunks, int size) {
+    this.chunks = chunks;
+    this.count = chunks.length;
+    this.size = size;
+    closed = true;
+  }
+
+  /**
+   * Returns a closed buffer that contains the given array. The array is not
+   * copied, so it must not be modified after this call.
+   */
+  public static ChunkedBuffer wrap(byte[] b) {
+    return new ChunkedBuffer(b.length == 0 ? new byte[0][] : new byte[][] {b},
+        b.length);
+  }
+
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Buffer closed");
+    }
+
+    while (len > 0) {
+      if (count == 0 || pos == CHUNK_SIZE) {
+        if (count == chunks.length) {
+          byte[][] newChunks = new byte[count * 2][];
+          System.arraycopy(chunks, 0, newChunks, 0, count);
+          chunks = newChunks;
+        }
+
+        chunks[count++] = acquire();
+        pos = 0;
+      }
+
+      int n = Math.min(len, CHUNK_SIZE - pos);
+      System.arraycopy(b, off, chunks[count - 1], pos, n);
+      pos += n;
+      size += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Closes the buffer, so it can be read.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    if (count > 0 && pos < CHUNK_SIZE) {
+      byte[] last = new byte[pos];
+      System.arraycopy(chunks[count - 1], 0, last, 0, pos);
+      release(chunks[count - 1]);
+      chunks[count - 1] = last;
+    }
+
+    if (chunks.length != count) {
+      byte[][] newChunks = new byte[count][];
+      System.arraycopy(chunks, 0, newChunks, 0, count);
+      chunks = newChunks;
+    }
+
+    closed = true;
+  }
+
+  /**
+   * Returns the number of bytes written to the buffer.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writes the whole content of the buffer to the given stream.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    checkClosed();
+
+    for (int i = 0; i < count; i++) {
+      out.write(chunks[i]);
+    }
+  }
+
+  /**
+   * Puts the whole content of the buffer in the given byte buffer.
+   */
+  public void writeTo(ByteBuffer dst) {
+    checkClosed();
+
+    for (int i = 0; i < count; i++) {
+      dst.put(chunks[i]);
+    }
+  }
+
+  /**
+   * Updates the digest with the content of the buffer.
+   */
+  public void update(MessageDigest digest) {
+    checkClosed();
+
+    for (int i = 0; i < count; i++) {
+      digest.update(chunks[i]);
+    }
+  }
+
+  /**
+   * Returns the content of the buffer as an array. If the content is stored in
+   * a single chunk, that chunk is returned without copying it, so the returned
+   * array must not be modified.
+   */
+  public byte[] toByteArray() {
+    checkClosed();
+
+    if (count == 1) {
+      return chunks[0];
+    }
+
+    byte[] b = new byte[size];
+    int off = 0;
+
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(chunks[i], 0, b, off, chunks[i].length);
+      off += chunks[i].length;
+    }
+
+    return b;
+  }
+
+  /**
+   * Returns a new stream to read the content of the buffer.
+   */
+  public ChunkInputStream getInputStream() {
+    checkClosed();
+    return new ChunkInputStream(chunks, count, size);
+  }
+
+  /**
+   * Returns the chunks to the pool. The buffer must not be used any more, and
+   * nobody else must be reading it.
+   */
+  public void recycle() {
+    for (int i = 0; i < count; i++) {
+      release(chunks[i]);
+      chunks[i] = null;
+    }
+
+    count = 0;
+    size = 0;
+    closed = true;
+  }
+
+  /**
+   * Returns the number of idle chunks in the pool.
+   */
+  public static int getPooledCount() {
+    synchronized (pool) {
+      return pool.size();
+    }
+  }
+
+  private void checkClosed() {
+    if (!closed) {
+      throw new IllegalStateException("Buffer not closed");
+    }
+  }
+
+  private static byte[] acquire() {
+    synchronized (pool) {
+      if (!pool.isEmpty()) {
+        return (byte[]) pool.remove(pool.size() - 1);
+      }
+    }
+
+    return new byte[CHUNK_SIZE];
+  }
+
+  private static void release(byte[] chunk) {
+    if (chunk != null && chunk.length == CHUNK_SIZE) {
+      synchronized (pool) {
+        if (pool.size() < POOL_SIZE) {
+          pool.add(chunk);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the content of a closed buffer.
+   */
+  public static final class ChunkInputStream extends InputStream {
+    private byte[][] chunks;
+    private int count;
+    private int index;
+    private int pos;
+    private int remaining;
+
+    ChunkInputStream(byte[][] chunks, int count, int size) {
+      this.chunks = chunks;
+      this.count = count;
+      remaining = size;
+    }
+
+    public int read() {
+      if (remaining == 0) {
+        return -1;
+      }
+
+      nextChunk();
+      remaining--;
+      return chunks[index][pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+
+      if (remaining == 0) {
+        return -1;
+      }
+
+      int total = 0;
+
+      while (len > 0 && remaining > 0) {
+        nextChunk();
+        int n = Math.min(len, chunks[index].length - pos);
+        System.arraycopy(chunks[index], pos, b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+        remaining -= n;
+        total += n;
+      }
+
+      return total;
+    }
+
+    public int available() {
+      return remaining;
+    }
+
+    /**
+     * Writes the rest of the content to the given stream, without copying it
+     * to an intermediate buffer.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+      while (remaining > 0) {
+        nextChunk();
+        int n = chunks[index].length - pos;
+        out.write(chunks[index], pos, n);
+        pos += n;
+        remaining -= n;
+      }
+    }
+
+    private void nextChunk() {
+      while (pos == chunks[index].length && index < count - 1) {
+        index++;
+        pos = 0;
+      }
+    }
+  }
+}
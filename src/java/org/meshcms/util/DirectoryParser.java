@@ -1,8 +1,12 @@
 package org.meshcms.util;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Base class to perform operations on the contents of a directory.
@@ -23,6 +27,11 @@ import java.util.Comparator;
  * call <code>setRecursive(true)</code> before processing if you want it to
  * process directory contents too.</p>
  *
+ * <p>If a pool of threads is set, directories are listed in parallel and <code>parseFile</code> is called concurrently for
+ * the files found. <code>processFile</code> and
+ * <code>postProcessDirectory</code> are called later, in the thread that has
+ * started the processing and in the same order as a sequential parse.</p>
+ *
  * @author Luciano Vernaschi
  */
 public class DirectoryParser extends Thread {
@@ -32,6 +41,7 @@ public class DirectoryParser extends Thread {
   protected boolean processStartDir = false;
 
   private Comparator comparator;
+  private ForkJoinPool pool;
 
   /**
    * If true, directories will be processed recursively (default false).
@@ -99,6 +109,28 @@ public class DirectoryParser extends Thread {
     return comparator != null;
   }
 
+  /**
+   * Sets the pool of threads used to parse the directory (default none). If
+   * set, <code>preProcessDirectory</code> and <code>parseFile</code> must be
+   * thread safe. The pool can be shared with other parsers, since it is not
+   * shut down at the end of the processing.
+   *
+   * @see #parseFile
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Returns the pool of threads used to parse the directory, or null if the
+   * directory is parsed by the current thread only.
+   *
+   * @see #setPool
+   */
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+
   /**
    * Sets the directory to be processed. An istance of <code>File</code> is
    * created and {@link #setInitialDir(File)} is called.
@@ -141,13 +173,58 @@ public class DirectoryParser extends Thread {
     }
 
     if (preProcess()) {
-      parse(initialDir, Path.ROOT);
+      if (pool != null && initialDir.isDirectory()) {
+        parseInParallel(initialDir, Path.ROOT);
+      } else {
+        parse(initialDir, Path.ROOT);
+      }
     }
 
     postProcess();
   }
 
-  private void parse(File file, Path path) {
+  /**
+   * Parses a directory with the pool of threads, then calls
+   * <code>processFile</code> and <code>postProcessDirectory</code> in order.
+   */
+  private void parseInParallel(File dir, Path path) {
+    DirectoryTask task = new DirectoryTask(dir, path);
+    pool.invoke(task);
+    merge(task);
+  }
+
+  /**
+   * Calls <code>processFile</code> with the results of
+   * <code>parseFile</code>, and <code>postProcessDirectory</code>, in the
+   * order of a sequential parse.
+   */
+  private void merge(DirectoryTask task) {
+    if (task.entries != null) {
+      for (int i = 0; i < task.entries.size(); i++) {
+        Object entry = task.entries.get(i);
+
+        if (entry instanceof DirectoryTask) {
+          merge((DirectoryTask) entry);
+        } else {
+          ParsedFile parsed = (ParsedFile) entry;
+          processFile(parsed.file, parsed.path, parsed.result);
+        }
+      }
+    }
+
+    if (mustProcessDir(task.path)) {
+      postProcessDirectory(task.dir, task.path);
+    }
+  }
+
+  /**
+   * Processes a file or a directory (recursively, if requested). Subclasses
+   * can call this method to process again a part of the initial directory.
+   *
+   * @param file the file or directory to be processed
+   * @param path the path of the file (relative to the base directory)
+   */
+  protected void parse(File file, Path path) {
     if (file.isDirectory()) {
       if (recursive || path.getElementCount() == 0) {
         boolean ok = true;
@@ -218,4 +295,125 @@ public class DirectoryParser extends Thread {
    */
   protected void processFile(File file, Path path) {
   }
+
+  /**
+   * This method is called for any file found while parsing the base directory
+   * in parallel. It can do the work that does not depend on other files, and
+   * can be called by many threads at the same time. The returned object is
+   * then passed to {@link #processFile(File, Path, Object)}.
+   *
+   * <p>The base implementation does nothing and returns null.</p>
+   *
+   * @param file the file to be processed
+   * @param path the path of the file (relative to the base directory)
+   */
+  protected Object parseFile(File file, Path path) {
+    return null;
+  }
+
+  /**
+   * This method is called for any file found while parsing the base
+   * directory in parallel, with the result of {@link #parseFile}. Files are
+   * passed one at a time, in the same order of a sequential parse.
+   *
+   * <p>The base implementation calls {@link #processFile(File, Path)}.</p>
+   */
+  protected void processFile(File file, Path path, Object result) {
+    processFile(file, path);
+  }
+
+  private static class ParsedFile {
+    private File file;
+    private Path path;
+    private Object result;
+
+    ParsedFile(File file, Path path) {
+      this.file = file;
+      this.path = path;
+    }
+  }
+
+  /**
+   * Parses the files of a part of a directory, splitting the work until it
+   * is small enough.
+   */
+  private class FilesTask extends RecursiveAction {
+    private static final int THRESHOLD = 8;
+
+    private List files;
+    private int from;
+    private int to;
+
+    FilesTask(List files, int from, int to) {
+      this.files = files;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from <= THRESHOLD) {
+        for (int i = from; i < to; i++) {
+          ParsedFile parsed = (ParsedFile) files.get(i);
+          parsed.result = parseFile(parsed.file, parsed.path);
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new FilesTask(files, from, middle),
+            new FilesTask(files, middle, to));
+      }
+    }
+  }
+
+  /**
+   * Parses a directory: subdirectories are parsed by other tasks. The entries
+   * of the directory are kept in order to be merged later.
+   */
+  private class DirectoryTask extends RecursiveAction {
+    private File dir;
+    private Path path;
+    private List entries;
+
+    DirectoryTask(File dir, Path path) {
+      this.dir = dir;
+      this.path = path;
+    }
+
+    protected void compute() {
+      if ((!recursive && path.getElementCount() != 0) ||
+          (mustProcessDir(path) && !preProcessDirectory(dir, path))) {
+        return;
+      }
+
+      File[] list = dir.listFiles();
+
+      if (list == null) {
+        return;
+      }
+
+      if (comparator != null) {
+        Arrays.sort(list, comparator);
+      }
+
+      entries = new ArrayList(list.length);
+      List tasks = new ArrayList();
+      List files = new ArrayList();
+
+      for (int i = 0; i < list.length; i++) {
+        Path subPath = path.add(list[i].getName());
+
+        if (list[i].isDirectory()) {
+          DirectoryTask task = new DirectoryTask(list[i], subPath);
+          entries.add(task);
+          tasks.add(task);
+        } else if (list[i].isFile()) {
+          ParsedFile parsed = new ParsedFile(list[i], subPath);
+          entries.add(parsed);
+          files.add(parsed);
+        }
+      }
+
+      tasks.add(new FilesTask(files, 0, files.size()));
+      invokeAll(tasks);
+    }
+  }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data in GZIP format. Unlike
+ * <code>java.util.zip.GZIPOutputStream</code>, this class reuses its
+ * <code>Deflater</code> instances, so compressing many small documents does
+ * not allocate (and later finalize) a native deflater each time.
+ */
+public final class GZIPEncoder {
+  /**
+   * Maximum number of idle deflaters kept for each compression level.
+   */
+  public static final int POOL_SIZE = 8;
+
+  private static final byte[] HEADER = {
+    (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  private static final List[] pools = new List[10];
+
+  static {
+    for (int i = 0; i < pools.length; i++) {
+      pools[i] = new ArrayList();
+    }
+  }
+
+  private GZIPEncoder() {
+  }
+
+  /**
+   * Compresses the given bytes.
+   *
+   * @param b the data to compress
+   * @param level the compression level (1 to 9)
+   *
+   * @return the compressed data, in GZIP format
+   */
+  public static byte[] compress(byte[] b, int level) {
+    return compress(b, 0, b.length, level);
+  }
+
+  /**
+   * Compresses a part of the given array.
+   *
+   * @param b the data to compress
+   * @param off the start offset in the data
+   * @param len the number of bytes to compress
+   * @param level the compression level (1 to 9)
+   *
+   * @return the compressed data, in GZIP format
+   */
+  public static byte[] compress(byte[] b, int off, int len, int level) {
+    level = Utils.constrain(Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION, level);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 4 + 64);
+    baos.write(HEADER, 0, HEADER.length);
+    Deflater deflater = acquire(level);
+
+    try {
+      deflater.setInput(b, off, len);
+      deflater.finish();
+      byte[] buf = new byte[Utils.BUFFER_SIZE * 4];
+
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        baos.write(buf, 0, n);
+      }
+    } finally {
+      release(level, deflater);
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(b, off, len);
+    writeInt(baos, (int) crc.getValue());
+    writeInt(baos, len);
+    return baos.toByteArray();
+  }
+
+  /**
+   * Returns a stream that compresses the data written to it as soon as it is
+   * written, and writes it in GZIP format to the given stream. The deflater is
+   * returned to the pool when the stream is closed, so it must always be
+   * closed.
+   *
+   * @param out the stream that receives the compressed data
+   * @param level the compression level (1 to 9)
+   */
+  public static OutputStream createOutputStream(OutputStream out, int level)
+      throws IOException {
+    return new EncoderStream(out, Utils.constrain(Deflater.BEST_SPEED,
+        Deflater.BEST_COMPRESSION, level));
+  }
+
+  /**
+   * Returns the number of idle deflaters in the pools.
+   */
+  public static int getPooledCount() {
+    int count = 0;
+
+    for (int i = 0; i < pools.length; i++) {
+      synchronized (pools[i]) {
+        count += pools[i].size();
+      }
+    }
+
+    return count;
+  }
+
+  private static Deflater acquire(int level) {
+    List pool = pools[level];
+
+    synchronized (pool) {
+      if (!pool.isEmpty()) {
+        return (Deflater) pool.remove(pool.size() - 1);
+      }
+    }
+
+    return new Deflater(level, true);
+  }
+
+  private static void release(int level, Deflater deflater) {
+    deflater.reset();
+    List pool = pools[level];
+
+    synchronized (pool) {
+      if (pool.size() < POOL_SIZE) {
+        pool.add(deflater);
+        return;
+      }
+    }
+
+    deflater.end();
+  }
+
+  private static void writeInt(ByteArrayOutputStream baos, int i) {
+    baos.write(i & 0xff);
+    baos.write((i >> 8) & 0xff);
+    baos.write((i >> 16) & 0xff);
+    baos.write((i >> 24) & 0xff);
+  }
+
+  private static void writeInt(OutputStream out, int i) throws IOException {
+    out.write(new byte[] {
+      (byte) i, (byte) (i >> 8), (byte) (i >> 16), (byte) (i >> 24)
+    });
+  }
+
+  /**
+   * Compresses data incrementally with a pooled deflater.
+   */
+  private static final class EncoderStream extends OutputStream {
+    private OutputStream out;
+    private int level;
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] buf;
+    private int length;
+
+    EncoderStream(OutputStream out, int level) throws IOException {
+      this.out = out;
+      this.level = level;
+      crc = new CRC32();
+      buf = new byte[Utils.BUFFER_SIZE * 4];
+      out.write(HEADER);
+      deflater = acquire(level);
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (deflater == null) {
+        throw new IOException("Stream closed");
+      }
+
+      if (len == 0) {
+        return;
+      }
+
+      crc.update(b, off, len);
+      length += len;
+      deflater.setInput(b, off, len);
+
+      // the deflater must not keep a reference to the array of the caller
+      while (!deflater.needsInput()) {
+        deflate();
+      }
+    }
+
+    public void close() throws IOException {
+      if (deflater == null) {
+        return;
+      }
+
+      try {
+        deflater.finish();
+
+        while (!deflater.finished()) {
+          deflate();
+        }
+
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, length);
+      } finally {
+        release(level, deflater);
+        deflater = null;
+      }
+
+      out.close();
+    }
+
+    private void deflate() throws IOException {
+      int n = deflater.deflate(buf);
+
+      if (n > 0) {
+        out.write(buf, 0, n);
+      }
+    }
+  }
+}
@@ -0,0 +1,636 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads the title, the keywords and an excerpt of an HTML page without
+ * loading and parsing the whole file. The page is read through a small
+ * buffer and reading stops as soon as the required data is known: at the
+ * <code>&lt;body&gt;</code> tag when no excerpt is needed, or when the text
+ * of the body is longer than the excerpt.
+ *
+ * <p>The results are the same returned by the SiteMesh
+ * <code>HTMLPageParser</code> (the title and the <code>meta.keywords</code>
+ * property, the excerpt as computed from the body with
+ * {@link Utils#stripHTMLTags} and {@link Utils#limitedLength}). The scanner
+ * only understands well formed pages: when it finds something that the
+ * SiteMesh parser would handle in a special way (an unclosed tag, a
+ * <code>&lt;</code> that does not start a tag, a <code>&lt;title&gt;</code>
+ * in the body and so on), {@link #scan} returns false and the page must be
+ * parsed as usual. Tags found after the end of the head (or after the text
+ * needed for the excerpt) are not read: a page that declares its keywords
+ * there gets different results. The whole body is read only if the head has
+ * no title.</p>
+ *
+ * <p>The charset is detected from the byte order mark, if any. Other pages
+ * are read with {@link Utils#SYSTEM_CHARSET}, like they are when served.</p>
+ */
+public class HTMLPageScanner {
+  private static final int BUFFER_SIZE = 4096;
+
+  private File file;
+  private int excerptLength;
+  private Reader reader;
+  private char[] buf;
+  private int pos;
+  private int limit;
+  private boolean inHead;
+  private boolean inBody;
+  private StringBuffer body;
+  private int captureFrom;
+  private int nextCheck;
+  private StringBuffer sb;
+  private String tagName;
+  private boolean emptyTag;
+  private String nameAttr;
+  private String contentAttr;
+  private boolean contentFound;
+  private String title;
+  private String keywords;
+  private boolean keywordsFound;
+  private String excerpt;
+  private String charset;
+
+  /**
+   * @param file the page to be read
+   * @param excerptLength the length of the excerpt, or 0 if it is not needed
+   */
+  public HTMLPageScanner(File file, int excerptLength) {
+    this.file = file;
+    this.excerptLength = excerptLength;
+  }
+
+  /**
+   * Reads the page.
+   *
+   * @return true if the data has been read, false if the page must be parsed
+   * by the SiteMesh parser to get the same results
+   */
+  public boolean scan() throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+
+    try {
+      reader = openReader(fis.getChannel());
+      buf = new char[BUFFER_SIZE];
+      sb = new StringBuffer();
+      return scanTags();
+    } finally {
+      reader = null;
+      buf = null;
+      body = null;
+      sb = null;
+      fis.close();
+    }
+  }
+
+  /**
+   * Returns the content of the first <code>title</code> element, or an empty
+   * string if there is no title.
+   */
+  public String getTitle() {
+    return title == null ? "" : title;
+  }
+
+  /**
+   * Returns the content of the last meta tag named <code>keywords</code>, or
+   * null if there is no such tag or it has no content.
+   */
+  public String getKeywords() {
+    return keywords;
+  }
+
+  /**
+   * Returns true if the page contains a meta tag named
+   * <code>keywords</code>.
+   */
+  public boolean hasKeywords() {
+    return keywordsFound;
+  }
+
+  /**
+   * Returns the excerpt of the body, or an empty string if no excerpt has
+   * been requested.
+   */
+  public String getExcerpt() {
+    return excerpt;
+  }
+
+  /**
+   * Returns the charset used to read the page.
+   */
+  public String getCharset() {
+    return charset;
+  }
+
+  private Reader openReader(FileChannel channel) throws IOException {
+    ByteBuffer bom = ByteBuffer.allocate(3);
+
+    while (bom.hasRemaining() && channel.read(bom) != -1);
+
+    int n = bom.position();
+    int b0 = n > 0 ? bom.get(0) & 0xFF : -1;
+    int b1 = n > 1 ? bom.get(1) & 0xFF : -1;
+    int b2 = n > 2 ? bom.get(2) & 0xFF : -1;
+    charset = Utils.SYSTEM_CHARSET;
+    int skip = 0;
+
+    if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+      charset = "UTF-8";
+      skip = 3;
+    } else if (b0 == 0xFE && b1 == 0xFF) {
+      charset = "UTF-16BE";
+      skip = 2;
+    } else if (b0 == 0xFF && b1 == 0xFE) {
+      charset = "UTF-16LE";
+      skip = 2;
+    }
+
+    // a UTF-8 BOM is kept if the page would be read as UTF-8 anyway, since
+    // the SiteMesh parser sees it too
+    if (skip == 3 && Charset.forName(Utils.SYSTEM_CHARSET).name().equals
+        (charset)) {
+      skip = 0;
+    }
+
+    channel.position(skip);
+    CharsetDecoder decoder = Charset.forName(charset).newDecoder();
+    decoder.onMalformedInput(CodingErrorAction.REPLACE);
+    decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    return Channels.newReader(channel, decoder, BUFFER_SIZE);
+  }
+
+  private boolean scanTags() throws IOException {
+    int c;
+
+    while ((c = next()) != -1) {
+      if (c != '<') {
+        continue;
+      }
+
+      int mark = inBody ? bodyLength() - 1 : 0;
+      c = next();
+
+      if (c == '!') {
+        if (!skipDeclaration()) {
+          return false;
+        }
+      } else if (c == '?') {
+        if (inBody || !skipTo(">", false)) {
+          return false;
+        }
+      } else if (c == '/') {
+        if (!readName() || !skipSpaces() || next() != '>') {
+          return false;
+        }
+
+        if (!inBody && tagName.equals("head")) {
+          // SiteMesh fails if the head has not been opened
+          if (!inHead) {
+            return false;
+          }
+
+          inHead = false;
+        }
+
+        if (inBody) {
+          if (tagName.equals("body")) {
+            flush();
+            body.setLength(mark);
+            excerpt = excerptLength <= 0 ? "" : Utils.limitedLength(
+                Utils.stripHTMLTags(body.toString()), excerptLength);
+            return true;
+          }
+
+          if (isSpecialInBody(tagName)) {
+            return false;
+          }
+        }
+      } else if (isLetter(c)) {
+        unread();
+
+        if (!readName() || !readAttributes(!inBody &&
+            tagName.equals("meta"))) {
+          return false;
+        }
+
+        if (!processTag()) {
+          return false;
+        }
+      } else {
+        return false;
+      }
+
+      if (excerpt != null || (inBody && checkExcerpt())) {
+        return true;
+      }
+    }
+
+    // no body or no end of the body
+    return false;
+  }
+
+  /**
+   * Handles the tag just read.
+   *
+   * @return false if the page must be parsed by SiteMesh
+   */
+  private boolean processTag() throws IOException {
+    if (tagName.equals("script")) {
+      return !emptyTag && skipTo("</script", true) && skipSpaces() &&
+          next() == '>';
+    }
+
+    if (tagName.equals("xmp") || tagName.equals("plaintext") ||
+        tagName.equals("listing") || tagName.equals("frameset")) {
+      return false;
+    }
+
+    if (inBody) {
+      return !isSpecialInBody(tagName);
+    }
+
+    if (tagName.equals("title")) {
+      if (title == null) {
+        if (emptyTag) {
+          return false;
+        }
+
+        sb.setLength(0);
+        int c;
+
+        while ((c = next()) != '<') {
+          if (c == -1) {
+            return false;
+          }
+
+          sb.append((char) c);
+        }
+
+        String s = sb.toString();
+
+        if (next() != '/' || !readName() || !tagName.equals("title") ||
+            !skipSpaces() || next() != '>') {
+          return false;
+        }
+
+        title = s;
+      }
+    } else if (tagName.equals("meta")) {
+      if ("keywords".equals(nameAttr)) {
+        keywords = contentAttr;
+        keywordsFound = true;
+      }
+    } else if (tagName.equals("head")) {
+      inHead = true;
+    } else if (tagName.equals("body")) {
+      // SiteMesh returns an empty body if the head has not been closed
+      if (emptyTag || inHead) {
+        return false;
+      }
+
+      if (excerptLength <= 0 && title != null) {
+        excerpt = "";
+      } else {
+        inBody = true;
+        body = new StringBuffer();
+        captureFrom = pos;
+
+        // without a title, SiteMesh would take one found anywhere in the body
+        nextCheck = (title == null) ? Integer.MAX_VALUE : excerptLength;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns true for the tags that SiteMesh removes from the body or handles
+   * in a special way.
+   */
+  private static boolean isSpecialInBody(String name) {
+    return name.equals("title") || name.equals("meta") ||
+        name.equals("content") || name.equals("parameter") ||
+        name.equals("html") || name.equals("head") || name.equals("body");
+  }
+
+  /**
+   * Computes the excerpt if the body read so far is enough. The text of the
+   * body is not affected by the rest of the page, since a tag has just been
+   * closed (a tag removed by {@link Utils#stripHTMLTags} always ends at the
+   * first <code>&gt;</code> after its first two characters).
+   *
+   * @return true if the excerpt has been computed
+   */
+  private boolean checkExcerpt() {
+    int len = bodyLength();
+
+    if (len < nextCheck) {
+      return false;
+    }
+
+    nextCheck = len * 2;
+    flush();
+
+    if (len < 3 || body.charAt(len - 2) == '<' ||
+        (body.charAt(len - 3) == '<' && body.charAt(len - 2) == '/')) {
+      return false;
+    }
+
+    String text = Utils.stripHTMLTags(body.toString());
+
+    if (text.length() <= excerptLength) {
+      return false;
+    }
+
+    excerpt = Utils.limitedLength(text, excerptLength);
+    return true;
+  }
+
+  /**
+   * Skips a comment, a CDATA section or (in the head) a declaration. The
+   * <code>&lt;!</code> has already been read.
+   */
+  private boolean skipDeclaration() throws IOException {
+    int c = next();
+
+    if (c == '-') {
+      // SiteMesh does not accept an empty comment like <!---->
+      return next() == '-' && next() != -1 && skipTo("-->", false);
+    }
+
+    if (c == '[') {
+      return matches("CDATA[") && skipTo("]]>", false);
+    }
+
+    return !inBody && isLetter(c) && skipTo(">", false);
+  }
+
+  /**
+   * Reads a tag name, that must be followed by a space, a <code>/</code> or
+   * a <code>&gt;</code>. The name is stored in lower case.
+   */
+  private boolean readName() throws IOException {
+    sb.setLength(0);
+    int c;
+
+    while (isLetter(c = next()) || (c >= '0' && c <= '9') || c == ':' ||
+        c == '_' || c == '-' || c == '.') {
+      sb.append((char) c);
+    }
+
+    unread(c);
+    tagName = sb.toString().toLowerCase();
+    return sb.length() > 0 && (isSpace(c) || c == '/' || c == '>');
+  }
+
+  /**
+   * Reads the attributes of a tag up to the closing <code>&gt;</code>.
+   *
+   * @param store if true, the values of the <code>name</code> and
+   * <code>content</code> attributes are kept
+   */
+  private boolean readAttributes(boolean store) throws IOException {
+    emptyTag = false;
+    nameAttr = null;
+    contentAttr = null;
+    contentFound = false;
+    boolean nameFound = false;
+
+    while (true) {
+      if (!skipSpaces()) {
+        return false;
+      }
+
+      int c = next();
+
+      if (c == '>') {
+        return true;
+      }
+
+      if (c == '/') {
+        emptyTag = true;
+        return next() == '>';
+      }
+
+      sb.setLength(0);
+
+      while (c != -1 && c != '=' && c != '>' && !isSpace(c)) {
+        if (c == '<' || c == '/' || c == '"' || c == '\'') {
+          return false;
+        }
+
+        sb.append((char) c);
+        c = next();
+      }
+
+      if (c == -1 || sb.length() == 0) {
+        return false;
+      }
+
+      String name = sb.toString();
+      String value = null;
+      unread(c);
+
+      if (!skipSpaces()) {
+        return false;
+      }
+
+      c = next();
+
+      if (c == '=') {
+        if (!skipSpaces()) {
+          return false;
+        }
+
+        sb.setLength(0);
+        c = next();
+
+        if (c == '"' || c == '\'') {
+          int quote = c;
+
+          while ((c = next()) != quote) {
+            if (c == -1 || c == '<') {
+              return false;
+            }
+
+            sb.append((char) c);
+          }
+        } else {
+          while (c != -1 && c != '>' && !isSpace(c)) {
+            if (c == '<' || c == '"' || c == '\'' || c == '=') {
+              return false;
+            }
+
+            sb.append((char) c);
+            c = next();
+          }
+
+          if (c == -1) {
+            return false;
+          }
+
+          unread(c);
+        }
+
+        value = sb.toString();
+      } else {
+        unread(c);
+      }
+
+      if (store) {
+        if (!nameFound && name.equalsIgnoreCase("name")) {
+          nameAttr = value;
+          nameFound = true;
+        } else if (!contentFound && name.equalsIgnoreCase("content")) {
+          contentAttr = value;
+          contentFound = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the given string.
+   *
+   * @return false if the next characters are different
+   */
+  private boolean matches(String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      if (next() != s.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Skips spaces.
+   *
+   * @return false if the end of the file has been reached
+   */
+  private boolean skipSpaces() throws IOException {
+    int c;
+
+    while (isSpace(c = next()));
+
+    unread(c);
+    return c != -1;
+  }
+
+  /**
+   * Skips characters up to and including the given string.
+   *
+   * @param s the string to be found. Must be all lower case if ignoreCase is
+   * true
+   * @return false if the end of the file has been reached
+   */
+  private boolean skipTo(String s, boolean ignoreCase) throws IOException {
+    int n = s.length();
+    int matched = 0;
+    int c;
+
+    while (matched < n) {
+      if ((c = next()) == -1) {
+        return false;
+      }
+
+      if (ignoreCase) {
+        c = Character.toLowerCase((char) c);
+      }
+
+      if (c == s.charAt(matched)) {
+        matched++;
+      } else {
+        // enough for the strings used here, where only the first character
+        // can be repeated ("-->", "]]>")
+        matched = (c == s.charAt(0)) ?
+            ((matched > 0 && s.charAt(matched - 1) == c) ? matched : 1) : 0;
+      }
+    }
+
+    return true;
+  }
+
+  private int next() throws IOException {
+    if (pos == limit) {
+      flush();
+      int n;
+
+      do {
+        n = reader.read(buf, 0, buf.length);
+      } while (n == 0);
+
+      if (n == -1) {
+        pos = limit = 0;
+        captureFrom = 0;
+        return -1;
+      }
+
+      pos = captureFrom = 0;
+      limit = n;
+    }
+
+    return buf[pos++];
+  }
+
+  private void unread() {
+    pos--;
+  }
+
+  private void unread(int c) {
+    if (c != -1) {
+      pos--;
+    }
+  }
+
+  /**
+   * Returns the number of characters of the body read so far.
+   */
+  private int bodyLength() {
+    return body.length() + pos - captureFrom;
+  }
+
+  private void flush() {
+    if (body != null) {
+      body.append(buf, captureFrom, pos - captureFrom);
+      captureFrom = pos;
+    }
+  }
+
+  private static boolean isLetter(int c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isSpace(int c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+}
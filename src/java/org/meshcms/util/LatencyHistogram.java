@@ -0,0 +1,161 @@
+/*
+ * Copyright 2004-2009 Luciano Vernaschi
+ *
+ * This file is part of MeshCMS.
+ *
+ * MeshCMS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MeshCMS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.meshcms.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in a fixed set of buckets. Recording a duration does not
+ * lock, so it can be done at each request.
+ */
+public final class LatencyHistogram {
+  /**
+   * Default upper bounds of the buckets, measured in milliseconds. The last
+   * bucket has no upper bound.
+   */
+  public static final long[] DEFAULT_BOUNDS = {
+    5L, 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L
+  };
+
+  private long[] bounds;
+  private AtomicLongArray counts;
+  private AtomicLong count;
+  private AtomicLong total;
+  private AtomicLong max;
+
+  public LatencyHistogram() {
+    this(DEFAULT_BOUNDS);
+  }
+
+  /**
+   * Creates a histogram with the given upper bounds, in ascending order.
+   */
+  public LatencyHistogram(long[] bounds) {
+    this.bounds = (long[]) bounds.clone();
+    counts = new AtomicLongArray(bounds.length + 1);
+    count = new AtomicLong();
+    total = new AtomicLong();
+    max = new AtomicLong();
+  }
+
+  /**
+   * Records a duration, measured in milliseconds.
+   */
+  public void record(long millis) {
+    int i = 0;
+
+    while (i < bounds.length && millis > bounds[i]) {
+      i++;
+    }
+
+    counts.incrementAndGet(i);
+    count.incrementAndGet();
+    total.addAndGet(millis);
+
+    for (long m = max.get(); millis > m; m = max.get()) {
+      if (max.compareAndSet(m, millis)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns the upper bounds of the buckets. The last bucket, which has no
+   * upper bound, is not included.
+   */
+  public long[] getBounds() {
+    return (long[]) bounds.clone();
+  }
+
+  /**
+   * Returns the number of durations in each bucket.
+   */
+  public long[] getCounts() {
+    long[] c = new long[counts.length()];
+
+    for (int i = 0; i < c.length; i++) {
+      c[i] = counts.get(i);
+    }
+
+    return c;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the average duration, or 0 if nothing has been recorded.
+   */
+  public long getMean() {
+    long n = count.get();
+    return n == 0L ? 0L : total.get() / n;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns the upper bound of the bucket that contains the given percentile,
+   * or the maximum duration if it is in the last bucket.
+   *
+   * @param percentile a value between 0 and 100
+   */
+  public long getPercentile(double percentile) {
+    long[] c = getCounts();
+    long n = 0L;
+
+    for (int i = 0; i < c.length; i++) {
+      n += c[i];
+    }
+
+    if (n == 0L) {
+      return 0L;
+    }
+
+    long rank = (long) Math.ceil(n * percentile / 100.0);
+    long seen = 0L;
+
+    for (int i = 0; i < bounds.length; i++) {
+      seen += c[i];
+
+      if (seen >= rank) {
+        return bounds[i];
+      }
+    }
+
+    return getMax();
+  }
+
+  /**
+   * Forgets all recorded durations.
+   */
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0L);
+    }
+
+    count.set(0L);
+    total.set(0L);
+    max.set(0L);
+  }
+}
@@ -486,7 +486,7 @@ public class Path implements Comparable, Serializable, Cloneable {
       }
     }
 
-    return p1;
+    return p1.getPartial(n);
   }
 
   /**
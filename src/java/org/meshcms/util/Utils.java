@@ -38,6 +38,9 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -96,9 +99,21 @@ public final class Utils {
    */
   public static final int GBYTE = MBYTE * KBYTE;
 
+  /**
+   * Size of the buffers used by {@link #transferFile}.
+   */
+  public static final int TRANSFER_BUFFER_SIZE = 64 * KBYTE;
+
+  /**
+   * Maximum number of idle buffers kept for {@link #transferFile}.
+   */
+  public static final int TRANSFER_POOL_SIZE = 16;
+
   public static final String SYSTEM_CHARSET;
   public static final boolean IS_MULTIBYTE_SYSTEM_CHARSET;
 
+  private static final List transferPool = new ArrayList();
+
   static {
     String s = System.getProperty("file.encoding", "ISO-8859-1");
     boolean multibyte = true;
@@ -530,6 +545,91 @@ public final class Utils {
     }
   }
 
+  /**
+   * Writes the remaining contents of a file channel to an
+   * <code>OutputStream</code>. If the stream is also a
+   * <code>WritableByteChannel</code>, <code>FileChannel.transferTo</code> is
+   * used, so the operating system can send the file without copying it to
+   * the JVM. Otherwise the file is read into a pooled direct buffer, that
+   * needs no temporary buffer of the JVM, and written to the stream in blocks
+   * of {@link #TRANSFER_BUFFER_SIZE} bytes. Neither the channel nor the
+   * stream is closed.
+   *
+   * @return the number of bytes written
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public static long transferFile(FileChannel channel, OutputStream out)
+      throws IOException {
+    long start = channel.position();
+    long position = start;
+
+    if (out instanceof WritableByteChannel) {
+      long size = channel.size();
+
+      while (position < size) {
+        long n = channel.transferTo(position, size - position,
+            (WritableByteChannel) out);
+
+        if (n <= 0L) {
+          break; // the file has been truncated
+        }
+
+        position += n;
+      }
+
+      channel.position(position);
+    } else {
+      TransferBuffer buffer = acquireTransferBuffer();
+
+      try {
+        ByteBuffer direct = buffer.direct;
+        direct.clear();
+
+        while (channel.read(direct) != -1) {
+          direct.flip();
+          int n = direct.remaining();
+          direct.get(buffer.array, 0, n);
+          out.write(buffer.array, 0, n);
+          position += n;
+          direct.clear();
+        }
+      } finally {
+        releaseTransferBuffer(buffer);
+      }
+    }
+
+    return position - start;
+  }
+
+  private static TransferBuffer acquireTransferBuffer() {
+    synchronized (transferPool) {
+      if (!transferPool.isEmpty()) {
+        return (TransferBuffer) transferPool.remove(transferPool.size() - 1);
+      }
+    }
+
+    return new TransferBuffer();
+  }
+
+  private static void releaseTransferBuffer(TransferBuffer buffer) {
+    synchronized (transferPool) {
+      if (transferPool.size() < TRANSFER_POOL_SIZE) {
+        transferPool.add(buffer);
+      }
+    }
+  }
+
+  /**
+   * A direct buffer used to read files and the array used to write its
+   * contents to streams.
+   */
+  private static final class TransferBuffer {
+    private final ByteBuffer direct =
+        ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+    private final byte[] array = new byte[TRANSFER_BUFFER_SIZE];
+  }
+
   /**
    * Copies the Reader to the Writer until there are no data left.
    *
@@ -0,0 +1,123 @@
+package org.meshcms.core;
+
+import junit.framework.*;
+import java.util.*;
+
+public class DomainRouterTest extends TestCase {
+  private static final String[] LABELS =
+      { "example", "com", "www", "shop", "EXAMPLE", "Com", "a", "org" };
+
+  public DomainRouterTest(String testName) {
+    super(testName);
+  }
+
+  protected void setUp() throws Exception {
+  }
+
+  protected void tearDown() throws Exception {
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(DomainRouterTest.class);
+
+    return suite;
+  }
+
+  /**
+   * Test of the get method with some known domains, of class
+   * org.meshcms.core.DomainRouter.
+   */
+  public void testGet() {
+    System.out.println("get");
+
+    Map domains = new HashMap();
+    domains.put("example.com", "exact");
+    domains.put("*.example.com", "wildcard");
+    domains.put("*.shop.example.com", "shop");
+    DomainRouter instance = new DomainRouter(domains);
+    assertEquals(3, instance.size());
+    assertEquals("exact", instance.get("example.com"));
+    assertEquals("exact", instance.get("Example.COM"));
+    assertEquals("wildcard", instance.get("www.example.com"));
+    assertEquals("wildcard", instance.get("WWW.Example.Com"));
+    assertEquals("shop", instance.get("a.shop.example.com"));
+    assertEquals("wildcard", instance.get("shop.example.com"));
+    assertNull(instance.get("example.org"));
+    assertNull(instance.get("badexample.com"));
+    assertNull(instance.get(""));
+  }
+
+  /**
+   * Compares the get method with a linear search of all domains, of class
+   * org.meshcms.core.DomainRouter.
+   */
+  public void testSameAsLinearSearch() {
+    System.out.println("sameAsLinearSearch");
+
+    Random random = new Random(42L);
+
+    for (int n = 0; n < 20; n++) {
+      Map domains = new HashMap();
+
+      for (int i = 0; i < 15; i++) {
+        String domain = randomHost(random).toLowerCase();
+
+        if (random.nextBoolean()) {
+          domain = DomainRouter.WILDCARD + domain;
+        }
+
+        domains.put(domain, "site" + i);
+      }
+
+      DomainRouter instance = new DomainRouter(domains);
+
+      for (int i = 0; i < 300; i++) {
+        String host = randomHost(random);
+        assertEquals(host, linearSearch(domains, host), instance.get(host));
+      }
+    }
+  }
+
+  private static String randomHost(Random random) {
+    StringBuffer sb = new StringBuffer();
+
+    for (int i = random.nextInt(4); i >= 0; i--) {
+      if (sb.length() > 0) {
+        sb.append('.');
+      }
+
+      sb.append(LABELS[random.nextInt(LABELS.length)]);
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Finds the domain by checking all of them: an exact match wins, otherwise
+   * the wildcard with the longest suffix.
+   */
+  private static Object linearSearch(Map domains, String host) {
+    Object result = null;
+    int best = -1;
+    Iterator iter = domains.entrySet().iterator();
+
+    while (iter.hasNext()) {
+      Map.Entry entry = (Map.Entry) iter.next();
+      String domain = (String) entry.getKey();
+
+      if (domain.startsWith(DomainRouter.WILDCARD)) {
+        String suffix = domain.substring(DomainRouter.WILDCARD.length() - 1);
+
+        if (host.length() > suffix.length() &&
+            host.toLowerCase().endsWith(suffix) && suffix.length() > best) {
+          result = entry.getValue();
+          best = suffix.length();
+        }
+      } else if (domain.equalsIgnoreCase(host)) {
+        return entry.getValue();
+      }
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,85 @@
+package org.meshcms.core;
+
+import junit.framework.*;
+import org.meshcms.util.Path;
+
+public class PageCacheTest extends TestCase {
+
+  public PageCacheTest(String testName) {
+    super(testName);
+  }
+
+  protected void setUp() throws Exception {
+  }
+
+  protected void tearDown() throws Exception {
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(PageCacheTest.class);
+
+    return suite;
+  }
+
+  /**
+   * Test of get and put methods, of class org.meshcms.core.PageCache.
+   */
+  public void testGetPut() {
+    System.out.println("getPut");
+
+    PageCache instance = new PageCache(100000L);
+    Path path = new Path("a/b.html");
+    assertNull(instance.get(path));
+    instance.put(path, page(1000));
+    assertEquals(1000, instance.get(new Path("a/b.html")).getLength());
+    assertEquals(1L, instance.getHitCount());
+    assertEquals(1L, instance.getMissCount());
+    instance.remove(path);
+    assertFalse(instance.contains(path));
+    assertEquals(0L, instance.getUsedBytes());
+  }
+
+  /**
+   * Test of the byte budget, of class org.meshcms.core.PageCache.
+   */
+  public void testBudget() {
+    System.out.println("budget");
+
+    PageCache instance = new PageCache(50000L);
+
+    for (int i = 0; i < 100; i++) {
+      instance.put(new Path("p" + i), page(1000));
+    }
+
+    assertTrue(instance.getUsedBytes() <= instance.getMaxBytes());
+    assertTrue(instance.getEvictionCount() > 0L);
+
+    instance.put(new Path("huge"), page(20000));
+    assertFalse(instance.contains(new Path("huge")));
+    assertEquals(1L, instance.getRejectionCount());
+  }
+
+  /**
+   * Test of the segmented eviction policy, of class
+   * org.meshcms.core.PageCache.
+   */
+  public void testFrequentPagesSurvive() {
+    System.out.println("frequentPagesSurvive");
+
+    PageCache instance = new PageCache(50000L);
+    Path hot = new Path("hot");
+    instance.put(hot, page(1000));
+    instance.get(hot);
+
+    for (int i = 0; i < 500; i++) {
+      instance.put(new Path("cold" + i), page(1000));
+    }
+
+    assertTrue(instance.contains(hot));
+    assertFalse(instance.contains(new Path("cold0")));
+  }
+
+  private static CachedPage page(int length) {
+    return new CachedPage(new byte[length / 2], new byte[length - length / 2]);
+  }
+}
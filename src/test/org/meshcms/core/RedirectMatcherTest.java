@@ -0,0 +1,132 @@
+package org.meshcms.core;
+
+import junit.framework.*;
+import java.util.*;
+import org.meshcms.util.*;
+
+public class RedirectMatcherTest extends TestCase {
+  private static final String[] ELEMENTS =
+      { "a", "b", "news", "widget.html", "index.html", "c.htm", "c" };
+
+  public RedirectMatcherTest(String testName) {
+    super(testName);
+  }
+
+  protected void setUp() throws Exception {
+  }
+
+  protected void tearDown() throws Exception {
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(RedirectMatcherTest.class);
+
+    return suite;
+  }
+
+  /**
+   * Test of the match method with some known pages, of class
+   * org.meshcms.core.RedirectMatcher.
+   */
+  public void testMatch() {
+    System.out.println("match");
+
+    List pages = pages(new String[] { "", "products/widget.html",
+        "old/products/widget.html", "news/2009/item.html", "docs/c" });
+    RedirectMatcher instance = new RedirectMatcher(pages, null);
+    assertEquals(new Path("products/widget.html"),
+        instance.match(new Path("widget.html")));
+    assertEquals(new Path("old/products/widget.html"),
+        instance.match(new Path("x/old/products/widget.htm")));
+    assertEquals(new Path("docs/c"), instance.match(new Path("c.html")));
+    assertNull(instance.match(new Path("missing.html")));
+    assertNull(instance.match(new Path("missing.html"))); // cached
+  }
+
+  /**
+   * Compares the match method with a linear search of all pages, of class
+   * org.meshcms.core.RedirectMatcher.
+   */
+  public void testSameAsLinearSearch() {
+    System.out.println("sameAsLinearSearch");
+
+    Random random = new Random(42L);
+
+    for (int n = 0; n < 20; n++) {
+      Set paths = new LinkedHashSet();
+      paths.add("");
+
+      for (int i = 0; i < 30; i++) {
+        paths.add(randomPath(random));
+      }
+
+      List pages = pages((String[]) paths.toArray(new String[paths.size()]));
+      RedirectMatcher instance = new RedirectMatcher(pages, null);
+
+      for (int i = 0; i < 200; i++) {
+        Path path = new Path(randomPath(random));
+        Path expected = linearSearch(pages, path);
+        assertEquals(expected, instance.match(path));
+        assertEquals(expected, instance.match(path));
+      }
+    }
+  }
+
+  private static String randomPath(Random random) {
+    StringBuffer sb = new StringBuffer();
+
+    for (int i = random.nextInt(4); i >= 0; i--) {
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+
+      sb.append(ELEMENTS[random.nextInt(ELEMENTS.length)]);
+    }
+
+    return sb.toString();
+  }
+
+  private static List pages(String[] paths) {
+    WebSite webSite = new WebSite();
+    List pages = new ArrayList();
+
+    for (int i = 0; i < paths.length; i++) {
+      pages.add(new PageInfo(webSite, new Path(paths[i])));
+    }
+
+    return pages;
+  }
+
+  /**
+   * The search used before the matcher: the page with the longest common
+   * ending wins, the first one in case of a tie.
+   */
+  private static Path linearSearch(List pages, Path path) {
+    Path result = null;
+    int best = 0;
+    String[] match = removePageExtension(path).getElements();
+
+    for (int i = 0; i < pages.size(); i++) {
+      Path pagePath = ((PageInfo) pages.get(i)).getPath();
+      String[] commonPart = Utils.commonPart(match,
+          removePageExtension(pagePath).getElements(), true);
+
+      if (commonPart != null && commonPart.length > best) {
+        result = pagePath;
+        best = commonPart.length;
+      }
+    }
+
+    return result;
+  }
+
+  private static Path removePageExtension(Path path) {
+    String name = path.getLastElement();
+
+    if (FileTypes.isPage(name)) {
+      path = path.getParent().add(Utils.removeExtension(name));
+    }
+
+    return path;
+  }
+}
@@ -0,0 +1,182 @@
+package org.meshcms.util;
+
+import com.opensymphony.module.sitemesh.Page;
+import com.opensymphony.module.sitemesh.parser.HTMLPageParser;
+import junit.framework.*;
+import java.io.*;
+import java.nio.charset.Charset;
+
+public class HTMLPageScannerTest extends TestCase {
+  private static final int[] EXCERPT_LENGTHS = { 0, 60, 400 };
+
+  private File file;
+
+  public HTMLPageScannerTest(String testName) {
+    super(testName);
+  }
+
+  protected void setUp() throws Exception {
+    file = File.createTempFile("scanner", ".html");
+  }
+
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(HTMLPageScannerTest.class);
+
+    return suite;
+  }
+
+  /**
+   * Test of a simple page, of class org.meshcms.util.HTMLPageScanner.
+   */
+  public void testSimplePage() throws IOException {
+    System.out.println("simplePage");
+
+    assertScanned("<html><head><title>A title</title>\n" +
+        "<meta name=\"keywords\" content=\"one, two,three\" />\n" +
+        "</head><body><h1>Heading</h1><p>Some <b>bold</b> text, " +
+        "repeated to be longer than the shortest excerpt. Some text, " +
+        "repeated to be longer than the shortest excerpt.</p></body></html>");
+  }
+
+  /**
+   * Test of a page without head, of class org.meshcms.util.HTMLPageScanner.
+   */
+  public void testMissingHead() throws IOException {
+    System.out.println("missingHead");
+
+    assertScanned("<html><title>No head</title><body><p>Body text " +
+        "without a head element.</p></body></html>");
+    assertScanned("<html><body><p>No title and no head.</p></body>" +
+        "</html>");
+  }
+
+  /**
+   * Test of comments, of class org.meshcms.util.HTMLPageScanner.
+   */
+  public void testComments() throws IOException {
+    System.out.println("comments");
+
+    assertScanned("<html><head><!-- <title>Hidden</title> -->" +
+        "<title>Visible</title></head><body><!-- a comment -->" +
+        "<p>Text <!-- inline --> after comments.</p></body></html>");
+  }
+
+  /**
+   * Test of uppercase tags, of class org.meshcms.util.HTMLPageScanner.
+   */
+  public void testUppercaseTags() throws IOException {
+    System.out.println("uppercaseTags");
+
+    assertScanned("<HTML><HEAD><TITLE>Upper Case</TITLE>" +
+        "<META NAME=\"KEYWORDS\" CONTENT=\"upper, case\">" +
+        "</HEAD><BODY><P>Uppercase <B>tags</B> everywhere.</P></BODY>" +
+        "</HTML>");
+  }
+
+  /**
+   * Test of the charset, of class org.meshcms.util.HTMLPageScanner.
+   */
+  public void testCharset() throws IOException {
+    System.out.println("charset");
+
+    String html = "<html><head><title>Caf\u00e9</title></head><body>" +
+        "<p>Cr\u00e8me br\u00fbl\u00e9e.</p></body></html>";
+    byte[] b = html.getBytes(Utils.SYSTEM_CHARSET);
+    write(b);
+    HTMLPageScanner scanner = new HTMLPageScanner(file, 60);
+    assertTrue(scanner.scan());
+    assertEquals(Utils.SYSTEM_CHARSET, scanner.getCharset());
+    assertEquals(parse(new String(b, Utils.SYSTEM_CHARSET), 60),
+        result(scanner));
+
+    // with a byte order mark, the page is read as UTF-8
+    b = html.getBytes("UTF-8");
+    byte[] withBom = new byte[b.length + 3];
+    withBom[0] = (byte) 0xEF;
+    withBom[1] = (byte) 0xBB;
+    withBom[2] = (byte) 0xBF;
+    System.arraycopy(b, 0, withBom, 3, b.length);
+    write(withBom);
+    scanner = new HTMLPageScanner(file, 60);
+    assertTrue(scanner.scan());
+    assertEquals("UTF-8", Charset.forName(scanner.getCharset()).name());
+
+    // the parser sees the mark when pages are read as UTF-8
+    String text = "UTF-8".equals(Charset.forName(Utils.SYSTEM_CHARSET).
+        name()) ? new String(withBom, "UTF-8") : html;
+    assertEquals(parse(text, 60), result(scanner));
+  }
+
+  /**
+   * Test of pages the scanner leaves to the parser, of class
+   * org.meshcms.util.HTMLPageScanner.
+   */
+  public void testFallback() throws IOException {
+    System.out.println("fallback");
+
+    assertSameAsParser("<html><head><title>Unclosed</title><meta " +
+        "name=\"keywords\" content=\"a\"</head><body><p>Text.</p></body>" +
+        "</html>");
+    assertSameAsParser("<html><head><title>1 < 2</title></head><body>" +
+        "<p>Less than.</p></body></html>");
+    assertSameAsParser("<html><head></head><body><title>Late</title>" +
+        "<p>Title in the body.</p></body></html>");
+  }
+
+  /**
+   * Checks that the page is scanned and that the results are the same of
+   * the parser.
+   */
+  private void assertScanned(String html) throws IOException {
+    for (int i = 0; i < EXCERPT_LENGTHS.length; i++) {
+      write(html.getBytes(Utils.SYSTEM_CHARSET));
+      HTMLPageScanner scanner = new HTMLPageScanner(file, EXCERPT_LENGTHS[i]);
+      assertTrue(scanner.scan());
+      assertEquals(parse(html, EXCERPT_LENGTHS[i]), result(scanner));
+    }
+  }
+
+  /**
+   * Checks that the results are the same of the parser if the scanner reads
+   * the page. Used only for pages that the scanner is documented to leave to
+   * the parser, since they are parsed anyway.
+   */
+  private void assertSameAsParser(String html) throws IOException {
+    for (int i = 0; i < EXCERPT_LENGTHS.length; i++) {
+      write(html.getBytes(Utils.SYSTEM_CHARSET));
+      HTMLPageScanner scanner = new HTMLPageScanner(file, EXCERPT_LENGTHS[i]);
+
+      if (scanner.scan()) {
+        assertEquals(parse(html, EXCERPT_LENGTHS[i]), result(scanner));
+      }
+    }
+  }
+
+  private void write(byte[] b) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+
+    try {
+      out.write(b);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String parse(String html, int excerptLength)
+      throws IOException {
+    Page page = new HTMLPageParser().parse(html.toCharArray());
+    String excerpt = excerptLength > 0 ? Utils.limitedLength(Utils.stripHTMLTags
+        (page.getBody()), excerptLength) : "";
+    return page.getTitle() + '|' + page.getProperty("meta.keywords") + '|' +
+        excerpt;
+  }
+
+  private static String result(HTMLPageScanner scanner) {
+    return scanner.getTitle() + '|' + scanner.getKeywords() + '|' +
+        scanner.getExcerpt();
+  }
+}
@@ -77,6 +77,8 @@ public class PathTest extends TestCase {
     assertEquals(instance, new Path("a/b"));
     instance = instance.getCommonPath(new Path("b/e"));
     assertEquals(instance, Path.ROOT);
+    instance = new Path("a/b/c").getCommonPath(new Path("a/b"));
+    assertEquals(instance, new Path("a/b"));
   }
   
   /**
@@ -0,0 +1,232 @@
+<%--
+ Copyright 2004-2009 Luciano Vernaschi
+ 
+ This file is part of MeshCMS.
+ 
+ MeshCMS is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ MeshCMS is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+ 
+ You should have received a copy of the GNU General Public License
+ along with MeshCMS.  If not, see <http://www.gnu.org/licenses/>.
+--%>
+
+<%@ page import="java.text.*" %>
+<%@ page import="java.util.*" %>
+<%@ page import="org.meshcms.core.*" %>
+<jsp:useBean id="webSite" scope="request" type="org.meshcms.core.WebSite" />
+<jsp:useBean id="userInfo" scope="session" class="org.meshcms.core.UserInfo" />
+
+<%
+  if (!userInfo.canDo(org.meshcms.core.UserInfo.CAN_BROWSE_FILES)) {
+    response.sendError(HttpServletResponse.SC_FORBIDDEN, "You don't have enough privileges");
+    return;
+  }
+%>
+
+<%@ taglib prefix="fmt" uri="standard-fmt-rt" %>
+<fmt:setLocale value="<%= userInfo.getPreferredLocaleCode() %>" scope="request" />
+<fmt:setBundle basename="org.meshcms.webui.Locales" scope="page" />
+
+<%
+  CacheMetrics metrics = webSite.getCacheMetrics();
+
+  if ("true".equals(request.getParameter("reset"))) {
+    metrics.reset();
+    response.sendRedirect("cachestats.jsp");
+    return;
+  }
+
+  Locale locale = WebUtils.getPageLocale(pageContext);
+  ResourceBundle bundle = WebUtils.getPageResourceBundle(pageContext);
+  NumberFormat numberFormat = NumberFormat.getIntegerInstance(locale);
+  NumberFormat percentFormat = NumberFormat.getPercentInstance(locale);
+  percentFormat.setMaximumFractionDigits(1);
+  long[] bounds = metrics.getRenderTimeBounds();
+  long[] missTimes = metrics.getMissRenderTimes();
+  long[] uncacheableTimes = metrics.getUncacheableRenderTimes();
+%>
+
+<html>
+<head>
+<%= webSite.getAdminMetaThemeTag() %>
+<title><fmt:message key="cacheStatsTitle" /></title>
+</head>
+
+<body>
+
+<fieldset class="meshcmseditor">
+  <legend><fmt:message key="cacheStatsRequests" /></legend>
+
+  <table class="meshcmseditor" cellspacing="0">
+    <tr>
+      <td><fmt:message key="cacheStatsRequestCount" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getRequestCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsHitRatio" /></td>
+      <td align="right"><%= percentFormat.format(metrics.getHitRatio()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsMemoryHits" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getMemoryHitCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsDiskHits" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getDiskHitCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsStaleHits" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getStaleHitCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsCoalesced" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getCoalescedCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsNotModified" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getNotModifiedCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsMisses" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getMissCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsUncacheable" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getUncacheableCount()) %></td>
+    </tr>
+  </table>
+</fieldset>
+
+<fieldset class="meshcmseditor">
+  <legend><fmt:message key="cacheStatsStorage" /></legend>
+
+  <table class="meshcmseditor" cellspacing="0">
+    <tr>
+      <td><fmt:message key="cacheStatsBytesFromMemory" /></td>
+      <td align="right"><%= WebUtils.formatFileLength(metrics.getBytesFromMemory(), locale, bundle) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsBytesFromDisk" /></td>
+      <td align="right"><%= WebUtils.formatFileLength(metrics.getBytesFromDisk(), locale, bundle) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsBytesRendered" /></td>
+      <td align="right"><%= WebUtils.formatFileLength(metrics.getBytesRendered(), locale, bundle) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsMemoryLookups" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getMemoryLookupHitCount()) %> /
+       <%= numberFormat.format(metrics.getMemoryLookupCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsDiskLookups" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getDiskLookupHitCount()) %> /
+       <%= numberFormat.format(metrics.getDiskLookupCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsStores" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getStoreCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsEvictions" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getEvictionCount()) %></td>
+    </tr>
+  </table>
+</fieldset>
+
+<fieldset class="meshcmseditor">
+  <legend><fmt:message key="cacheStatsMovedPages" /></legend>
+
+  <table class="meshcmseditor" cellspacing="0">
+    <tr>
+      <td><fmt:message key="cacheStatsRedirectLookups" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getRedirectLookupCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsRedirectMatches" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getRedirectMatchCount()) %>
+       (<%= percentFormat.format(metrics.getRedirectMatchRatio()) %>)</td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsRedirectCacheHits" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getRedirectCacheHitCount()) %></td>
+    </tr>
+  </table>
+</fieldset>
+
+<% if (webSite instanceof MainWebSite) { %>
+<fieldset class="meshcmseditor">
+  <legend><fmt:message key="cacheStatsSites" /></legend>
+
+  <table class="meshcmseditor" cellspacing="0">
+    <tr>
+      <td><fmt:message key="cacheStatsResidentSites" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getResidentSiteCount()) %> /
+       <%= numberFormat.format(((MainWebSite) webSite).getMultiSiteManager().getSiteCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsResidentSiteBytes" /></td>
+      <td align="right"><%= WebUtils.formatFileLength(metrics.getResidentSiteBytes(), locale, bundle) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsSiteLoads" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getSiteLoadCount()) %></td>
+    </tr>
+    <tr>
+      <td><fmt:message key="cacheStatsSiteEvictions" /></td>
+      <td align="right"><%= numberFormat.format(metrics.getSiteEvictionCount()) %></td>
+    </tr>
+  </table>
+</fieldset>
+<% } %>
+
+<fieldset class="meshcmseditor">
+  <legend><fmt:message key="cacheStatsRenderTimes" /></legend>
+
+  <table class="meshcmseditor" cellspacing="0">
+    <tr>
+      <th><fmt:message key="cacheStatsTime" /></th>
+      <th><fmt:message key="cacheStatsMisses" /></th>
+      <th><fmt:message key="cacheStatsUncacheable" /></th>
+    </tr>
+<%
+  for (int i = 0; i < missTimes.length; i++) {
+%>
+    <tr>
+      <td><%= i < bounds.length ? "&le; " + bounds[i] : "&gt; " +
+          bounds[bounds.length - 1] %> ms</td>
+      <td align="right"><%= numberFormat.format(missTimes[i]) %></td>
+      <td align="right"><%= numberFormat.format(uncacheableTimes[i]) %></td>
+    </tr>
+<%
+  }
+%>
+    <tr>
+      <th><fmt:message key="cacheStatsMeanTime" /></th>
+      <td align="right"><%= metrics.getMeanMissRenderTime() %> ms</td>
+      <td align="right"><%= metrics.getMeanUncacheableRenderTime() %> ms</td>
+    </tr>
+    <tr>
+      <th><fmt:message key="cacheStatsMaxTime" /></th>
+      <td align="right"><%= metrics.getMaxMissRenderTime() %> ms</td>
+      <td align="right"><%= metrics.getMaxUncacheableRenderTime() %> ms</td>
+    </tr>
+  </table>
+</fieldset>
+
+<div align="center">
+  <input type="button" value="<fmt:message key="cacheStatsReset" />"
+   onclick="location.replace('cachestats.jsp?reset=true');" />
+  <input type="button" value="<fmt:message key="genericBack" />"
+   onclick="location.replace('index.jsp');" />
+</div>
+
+</body>
+</html>
@@ -140,7 +140,7 @@ if (title.equals("") && fullPath.isRoot()) { %>
     String text = webSite.getHTMLTemplate(title);
 
     if (webSite.saveToFile(userInfo, text, path)) {
-      webSite.updateSiteMap(true);
+      webSite.updateSiteMap(new Path[] { path });
       %><script type="text/javascript">
       // <![CDATA[
         var page = "<%= cp + '/' + path + '?' + HitFilter.ACTION_NAME + '=' + HitFilter.ACTION_EDIT %>";
@@ -51,7 +51,7 @@ boolean deleted = webSite.delete(userInfo, path, false);
 
 if (deleted) {
   webSite.delete(userInfo, path.getParent(), false);
-  webSite.updateSiteMap(true);
+  webSite.updateSiteMap(new Path[] { path.getParent() });
   %><script type='text/javascript'>window.opener.location.reload(true);window.close();</script><%
 } else {
   %><fmt:message key="deletepageError" /><%
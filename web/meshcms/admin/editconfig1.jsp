@@ -211,9 +211,103 @@
         <%= cacheType == Configuration.ON_DISK_CACHE ? " selected='selected'" : "" %>><fmt:message key="configCacheDisk" /></option>
        <option value="<%= Configuration.MIXED_CACHE %>"
         <%= cacheType == Configuration.MIXED_CACHE ? " selected='selected'" : "" %>><fmt:message key="configCacheMixed" /></option>
+       <option value="<%= Configuration.OFF_HEAP_CACHE %>"
+        <%= cacheType == Configuration.OFF_HEAP_CACHE ? " selected='selected'" : "" %>><fmt:message key="configCacheOffHeap" /></option>
+       <option value="<%= Configuration.SEGMENT_CACHE %>"
+        <%= cacheType == Configuration.SEGMENT_CACHE ? " selected='selected'" : "" %>><fmt:message key="configCacheSegments" /></option>
       </select>
     </div>
 
+    <div class="meshcmsfieldlabel">
+      <label for="memoryCacheSize"><fmt:message key="configMemoryCacheSize" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="memoryCacheSize" name="memoryCacheSize"
+       style="width: 90%;" value="<%= configuration.getMemoryCacheSize() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="diskCacheSize"><fmt:message key="configDiskCacheSize" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="diskCacheSize" name="diskCacheSize"
+       style="width: 90%;" value="<%= configuration.getDiskCacheSize() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="compressionLevel"><fmt:message key="configCompressionLevel" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="compressionLevel" name="compressionLevel"
+       style="width: 90%;" value="<%= configuration.getCompressionLevel() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="guestMaxAge"><fmt:message key="configGuestMaxAge" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="guestMaxAge" name="guestMaxAge"
+       style="width: 90%;" value="<%= configuration.getGuestMaxAge() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="maxStaleAge"><fmt:message key="configMaxStaleAge" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="maxStaleAge" name="maxStaleAge"
+       style="width: 90%;" value="<%= configuration.getMaxStaleAge() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="cacheableParameters"><fmt:message key="configCacheableParameters" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="cacheableParameters" name="cacheableParameters"
+       style="width: 90%;" value="<%= Utils.noNull(Utils.generateList(configuration.getCacheableParameters(), ", ")) %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="ignoredParameters"><fmt:message key="configIgnoredParameters" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="ignoredParameters" name="ignoredParameters"
+       style="width: 90%;" value="<%= Utils.noNull(Utils.generateList(configuration.getIgnoredParameters(), ", ")) %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="warmUpPages"><fmt:message key="configWarmUpPages" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="warmUpPages" name="warmUpPages"
+       style="width: 90%;" value="<%= configuration.getWarmUpPages() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="warmUpThreads"><fmt:message key="configWarmUpThreads" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="warmUpThreads" name="warmUpThreads"
+       style="width: 90%;" value="<%= configuration.getWarmUpThreads() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="parserThreads"><fmt:message key="configParserThreads" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="parserThreads" name="parserThreads"
+       style="width: 90%;" value="<%= configuration.getParserThreads() %>" />
+    </div>
+
     <div class="meshcmsfieldlabel">
       <label for="tidy"><fmt:message key="configTidy" /></label>
     </div>
@@ -300,6 +394,24 @@
        value="true"<%= configuration.isPasswordProtected() ? " checked='checked'" : "" %> />
       <label for="passwordProtected"><fmt:message key="configPasswordProtected" /></label>
     </div>
+
+    <div class="meshcmscheckbox">
+      <input type="checkbox" id="conditionalGet" name="conditionalGet"
+       value="true"<%= configuration.isConditionalGet() ? " checked='checked'" : "" %> />
+      <label for="conditionalGet"><fmt:message key="configConditionalGet" /></label>
+    </div>
+
+    <div class="meshcmscheckbox">
+      <input type="checkbox" id="cacheByLanguage" name="cacheByLanguage"
+       value="true"<%= configuration.isCacheByLanguage() ? " checked='checked'" : "" %> />
+      <label for="cacheByLanguage"><fmt:message key="configCacheByLanguage" /></label>
+    </div>
+
+    <div class="meshcmscheckbox">
+      <input type="checkbox" id="watchFiles" name="watchFiles"
+       value="true"<%= configuration.isWatchFiles() ? " checked='checked'" : "" %> />
+      <label for="watchFiles"><fmt:message key="configWatchFiles" /></label>
+    </div>
   </fieldset>
 
   <div class="meshcmsbuttons">
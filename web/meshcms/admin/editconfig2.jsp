@@ -53,6 +53,16 @@
   c.setReplaceThumbnails(Utils.isTrue(request.getParameter("replaceThumbnails")));
 
   c.setCacheType(Utils.parseInt(request.getParameter("cacheType"), Configuration.NO_CACHE));
+  c.setMemoryCacheSize(Utils.parseInt(request.getParameter("memoryCacheSize"), c.getMemoryCacheSize()));
+  c.setDiskCacheSize(Utils.parseInt(request.getParameter("diskCacheSize"), c.getDiskCacheSize()));
+  c.setCompressionLevel(Utils.parseInt(request.getParameter("compressionLevel"), c.getCompressionLevel()));
+  c.setGuestMaxAge(Utils.parseInt(request.getParameter("guestMaxAge"), c.getGuestMaxAge()));
+  c.setMaxStaleAge(Utils.parseInt(request.getParameter("maxStaleAge"), c.getMaxStaleAge()));
+  c.setCacheableParameters(Utils.tokenize(request.getParameter("cacheableParameters"), ":;, "));
+  c.setIgnoredParameters(Utils.tokenize(request.getParameter("ignoredParameters"), ":;, "));
+  c.setWarmUpPages(Utils.parseInt(request.getParameter("warmUpPages"), c.getWarmUpPages()));
+  c.setWarmUpThreads(Utils.parseInt(request.getParameter("warmUpThreads"), c.getWarmUpThreads()));
+  c.setParserThreads(Utils.parseInt(request.getParameter("parserThreads"), c.getParserThreads()));
   c.setTidy(Utils.parseInt(request.getParameter("tidy"), Configuration.TIDY_NO));
   c.setMailServer(request.getParameter("mailServer"));
   c.setSmtpUsername(request.getParameter("smtpUsername"));
@@ -68,6 +78,9 @@
   c.setEditorModulesCollapsed(Utils.isTrue(request.getParameter("editorModulesCollapsed")));
   c.setRedirectRoot(Utils.isTrue(request.getParameter("redirectRoot")));
   c.setPasswordProtected(Utils.isTrue(request.getParameter("passwordProtected")));
+  c.setConditionalGet(Utils.isTrue(request.getParameter("conditionalGet")));
+  c.setCacheByLanguage(Utils.isTrue(request.getParameter("cacheByLanguage")));
+  c.setWatchFiles(Utils.isTrue(request.getParameter("watchFiles")));
 
   int el = Utils.parseInt(request.getParameter("excerptLength"), -1);
   if (el >= 0 && el != c.getExcerptLength()) {
@@ -84,6 +97,7 @@
 
   webSite.setLastAdminThemeBlock(0L); // re-enable the ability to use a custom admin theme
   webSite.updateSiteMap(true); // needed to re-init the cache
+  webSite.updateFileWatching();
 
   if (c.store(webSite)) {
 %>
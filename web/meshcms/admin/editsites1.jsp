@@ -87,6 +87,24 @@
       <input type="text" id="mainWebSiteDomains" name="mainWebSiteDomains"
        style="width: 90%;" value="<%= Utils.noNull(msm.getMainWebSiteDomains()) %>" />
     </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="siteIdleTime"><fmt:message key="sitesIdleTime" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="siteIdleTime" name="siteIdleTime"
+       style="width: 90%;" value="<%= msm.getSiteIdleTime() %>" />
+    </div>
+
+    <div class="meshcmsfieldlabel">
+      <label for="sitesMemoryBudget"><fmt:message key="sitesMemoryBudget" /></label>
+    </div>
+
+    <div class="meshcmsfield">
+      <input type="text" id="sitesMemoryBudget" name="sitesMemoryBudget"
+       style="width: 90%;" value="<%= msm.getSitesMemoryBudget() %>" />
+    </div>
   </fieldset>
 <% } else { %>
   <input type="hidden" name="useDirsAsDomains" value="true" />
@@ -118,7 +136,7 @@
            value="<%= Utils.noNull(msm.getDomains(dirs[i])) %>" />
         </td>
         <td style="text-align: center;">
-        <% if (((MainWebSite) webSite).getVirtualSite(dirs[i]).getCMSPath() != null) { %>
+        <% if (((MainWebSite) webSite).getVirtualSiteCMSPath(dirs[i]) != null) { %>
           <img src="filemanager/images/tick.png" alt=""
            style='vertical-align:middle;' title="<fmt:message key="genericYes" />" />
         <% } else { %>
@@ -74,6 +74,8 @@
     msm.setUseDirsAsDomains(Utils.isTrue(request.getParameter("useDirsAsDomains")));
     msm.setManageTripleWs(Utils.isTrue(request.getParameter("manageTripleWs")));
     msm.setMainWebSiteDomains(request.getParameter("mainWebSiteDomains"));
+    msm.setSiteIdleTime(Utils.parseInt(request.getParameter("siteIdleTime"), msm.getSiteIdleTime()));
+    msm.setSitesMemoryBudget(Utils.parseInt(request.getParameter("sitesMemoryBudget"), msm.getSitesMemoryBudget()));
     String[] dirs = mainWebSite.getFile(mainWebSite.getVirtualSitesPath()).list();
     List jspBlocks = msm.getJSPBlocks();
     jspBlocks.clear();
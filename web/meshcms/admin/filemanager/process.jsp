@@ -49,8 +49,11 @@
   String cp = request.getContextPath();
   List errMsgs = new ArrayList();
   boolean needsUpdate = false;
+  boolean needsFullUpdate = false;
   String action = request.getParameter("f_action");
   Path path = new Path(request.getParameter("f_dir"));
+  List changedPaths = new ArrayList();
+  changedPaths.add(path);
   String redirect = null;
   ResourceBundle bundle = WebUtils.getPageResourceBundle(pageContext);
   Locale locale = WebUtils.getPageLocale(pageContext);
@@ -233,6 +236,7 @@
         if (fileClipboard.isCut()) {
           for (int i = 0; i < paths.length; i++) {
             if (webSite.move(userInfo, paths[i], path.add(paths[i].getLastElement()))) {
+              changedPaths.add(paths[i]);
               needsUpdate = true;
             } else {
               Object[] args = { paths[i].getLastElement(), path.getAsLink() };
@@ -255,7 +259,7 @@
         }
       }
     } else if (action.equals("refresh")) {
-      needsUpdate = true;
+      needsFullUpdate = true;
     }
   }
 
@@ -264,8 +268,10 @@
     request.getParameter("s_thumbs") + "&field=" + Utils.noNull(request.getParameter("s_field"));
   }
 
-  if (needsUpdate) {
+  if (needsFullUpdate) {
     webSite.updateSiteMap(true);
+  } else if (needsUpdate) {
+    webSite.updateSiteMap((Path[]) changedPaths.toArray(new Path[changedPaths.size()]));
   }
 %>
 
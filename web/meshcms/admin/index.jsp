@@ -76,6 +76,9 @@
    <% if (userInfo.canDo(UserInfo.CAN_BROWSE_FILES)) { %>
   <a href="refresh.jsp" class="meshcmspanelicon"><img src="filemanager/images/arrow_refresh.png" alt="" />
   <fmt:message key="homeRefresh" /></a>
+
+  <a href="cachestats.jsp" class="meshcmspanelicon"><img src="filemanager/images/page_white_lightning.png" alt="" />
+  <fmt:message key="homeCacheStats" /></a>
    <% } %>
 
    <% if (userInfo.canDo(UserInfo.CAN_EDIT_PAGES)) { %>
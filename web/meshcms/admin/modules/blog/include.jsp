@@ -169,6 +169,11 @@
       }
 
       boolean sortByHits = "mostviewed".equalsIgnoreCase(md.getAdvancedParam("sort", null));
+
+      if (sortByHits) {
+        WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_HITS);
+      }
+
       Comparator comp = sortByHits ?
           (Comparator) new PageHitsComparator() : (Comparator) new PageDateComparator();
       Collections.sort(pagesList, comp);
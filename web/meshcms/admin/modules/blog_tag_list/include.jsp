@@ -55,6 +55,7 @@
 
   if (argPath != null) {
     SiteMap siteMap = webSite.getSiteMap();
+    WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_CONTENTS);
     ArrayList pagesList = new ArrayList(siteMap.getPagesList(argPath));
     Iterator iter = pagesList.iterator();
     Path pagePathInMenu = siteMap.getPathInMenu(md.getPagePath());
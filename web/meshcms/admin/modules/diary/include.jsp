@@ -164,6 +164,8 @@
   ResourceBundle pageBundle = ResourceBundle.getBundle
    ("org/meshcms/webui/Locales", locale);
 
+  WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_CONTENTS);
+
   // Get the path information.
   Path argPath = md.getModuleArgumentDirectoryPath(webSite, true);
   Path dirPath = webSite.getDirectory(md.getPagePath());
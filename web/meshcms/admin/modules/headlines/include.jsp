@@ -53,6 +53,7 @@
     return;
   }
 
+  WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_CONTENTS);
   Path argPath = md.getModuleArgumentDirectoryPath(webSite, true);
   Path dirPath = webSite.getDirectory(md.getPagePath());
   File[] files = md.getModuleFiles(webSite, true);
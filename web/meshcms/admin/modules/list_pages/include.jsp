@@ -51,6 +51,7 @@
     argPath = md.getPagePath();
   }
 
+  WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_CONTENTS);
   List list = webSite.getSiteMap().getPagesInDirectory(argPath, false);
 
   if (list != null && list.size() > 0) {
@@ -83,6 +83,7 @@
     int maxChars = Utils.parseInt(md.getAdvancedParam("maxchars", ""), 500);
     int items = Utils.parseInt(md.getAdvancedParam("items", null), 5);
     int minVisits = Utils.parseInt(md.getAdvancedParam("minvisits", ""), 0);
+    WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_HITS);
     Arrays.sort(pages, new PageHitsComparator());
     DateFormat df = md.getDateFormat(locale, "date");
     int count = 0;
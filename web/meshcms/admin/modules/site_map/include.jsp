@@ -48,6 +48,7 @@
 
   if (argPath != null) {
     SiteMap siteMap = webSite.getSiteMap();
+    WebUtils.setSiteMapDependency(request, CacheDependencies.SITE_STRUCTURE);
     SiteInfo siteInfo = webSite.getSiteInfo();
     int lastLevel = argPath.getElementCount() - 1;
     Path pagePath = webSite.getRequestedPath(request);
@@ -94,7 +94,7 @@
       file.setLastModified(time + 3000L);
     }
     
-    webSite.updateSiteMap(true);
+    webSite.updateSiteMap(new Path[] { filePath });
 %>
   <p><% if (Utils.isNullOrEmpty(title)) { %>
       <fmt:message key="saveOkNoTitle" />